@@ -16,10 +16,17 @@
  */
 package net.vleu.par.android;
 
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
 import net.vleu.par.models.Directive;
-import net.vleu.par.models.Directive.ThrowingVisitor;
 import net.vleu.par.models.Directive.Visitor;
 import net.vleu.par.protocolbuffer.Commands.DirectiveData;
 import net.vleu.par.protocolbuffer.Commands.HapticNotificationData;
@@ -32,11 +39,175 @@ import android.content.Intent;
 import android.os.Vibrator;
 
 /**
- *
+ * Applies the directives by batches. The status bar notifications of a batch
+ * are merged into a single {@link Notification}, and its vibration sequences
+ * into a single pattern, so that a backlog of directives neither floods the
+ * status bar nor makes the vibrations overlap. The batches are applied in the
+ * background, see {@link #executeAll(List)}.
  */
-public class DirectivesExecutor implements Visitor {
+@ThreadSafe
+public final class DirectivesExecutor {
+    /**
+     * Collects the effects of the directives of a batch, then applies them at
+     * once. Used by a single thread.
+     */
+    @NotThreadSafe
+    private final class Batch implements Visitor, Runnable {
+        private final List<DirectiveData> directives;
+        /** The last {@link StatusBarNotificationData} visited, or null */
+        private StatusBarNotificationData lastNotification = null;
+        /** How many {@link StatusBarNotificationData} were visited */
+        private int notificationsCount = 0;
+        /** The merged vibration sequences, in its first elements */
+        private long[] vibrationPattern = new long[16];
+        /** How many elements of {@link #vibrationPattern} are used */
+        private int vibrationPatternLength = 0;
+        /** How many vibration sequences were merged */
+        private int vibrationsCount = 0;
+
+        Batch(final List<DirectiveData> directives) {
+            this.directives = directives;
+        }
+
+        /**
+         * Appends a vibration sequence to {@link #vibrationPattern}, after a
+         * pause of {@value DirectivesExecutor#VIBRATIONS_GAP_MS} ms. Like the
+         * patterns of {@link Vibrator#vibrate(long[], int)}, a sequence
+         * alternates pauses and vibrations, starting with a pause.
+         * 
+         * @param sequence
+         *            Must not be empty
+         */
+        private void appendVibration(final long[] sequence) {
+            if (this.vibrationsCount == MAX_MERGED_VIBRATIONS)
+                return;
+            this.vibrationsCount++;
+            final int neededLength =
+                    this.vibrationPatternLength + sequence.length + 1;
+            if (neededLength > this.vibrationPattern.length) {
+                final long[] grown =
+                        new long[Math.max(neededLength,
+                                this.vibrationPattern.length * 2)];
+                System.arraycopy(this.vibrationPattern, 0, grown, 0,
+                        this.vibrationPatternLength);
+                this.vibrationPattern = grown;
+            }
+            int n = 0;
+            if (this.vibrationPatternLength > 0) {
+                final long pause = VIBRATIONS_GAP_MS + sequence[n++];
+                /* An odd length means that the pattern ends with a pause */
+                if (this.vibrationPatternLength % 2 == 1)
+                    this.vibrationPattern[this.vibrationPatternLength - 1] +=
+                            pause;
+                else
+                    this.vibrationPattern[this.vibrationPatternLength++] =
+                            pause;
+            }
+            for (; n < sequence.length; n++)
+                this.vibrationPattern[this.vibrationPatternLength++] =
+                        sequence[n];
+        }
+
+        /**
+         * Shows a single notification for all the
+         * {@link StatusBarNotificationData} of the batch: the last one, along
+         * with their count if there were several
+         */
+        private void notifyStatusBar() {
+            final Context context = DirectivesExecutor.this.context;
+            final StatusBarNotificationData data = this.lastNotification;
+            final Notification notification = new Notification();
+            final String title;
+            if (this.notificationsCount == 1)
+                title = data.getTitle();
+            else {
+                title =
+                        context.getString(R.string.notifications_merged_title,
+                                this.notificationsCount);
+                notification.number = this.notificationsCount;
+            }
+            notification.tickerText = data.getTitle();
+            notification.icon = R.drawable.ic_launcher;
+            notification.when = System.currentTimeMillis();
+            final Intent notificationIntent =
+                    new Intent(context, DirectivesExecutor.class);
+            final PendingIntent contentIntent =
+                    PendingIntent.getActivity(context, 0, notificationIntent,
+                            0);
+            notification.setLatestEventInfo(context, title, data.getText(),
+                    contentIntent);
+            DirectivesExecutor.this.notificationManager.notify(
+                    NOTIFICATION_IDS.incrementAndGet(), notification);
+        }
+
+        @Override
+        public void run() {
+            for (final DirectiveData directive : this.directives)
+                Directive.accept(directive, this);
+            if (this.notificationsCount > 0)
+                notifyStatusBar();
+            if (this.vibrationPatternLength > 0) {
+                final long[] pattern = new long[this.vibrationPatternLength];
+                System.arraycopy(this.vibrationPattern, 0, pattern, 0,
+                        pattern.length);
+                DirectivesExecutor.this.vibrator.vibrate(pattern, -1);
+            }
+        }
+
+        @Override
+        public void visit(final HapticNotificationData data) {
+            final long[] vibrateSequence;
+            if (data.getVibrationSequenceCount() == 0)
+                vibrateSequence = Directive.DEFAULT_VIBRATION_SEQUENCE;
+            else {
+                vibrateSequence = new long[data.getVibrationSequenceCount()];
+                for (int n = 0; n < vibrateSequence.length; n++)
+                    vibrateSequence[n] = data.getVibrationSequence(n);
+            }
+            appendVibration(vibrateSequence);
+        }
+
+        @Override
+        public void visit(final StatusBarNotificationData data) {
+            this.notificationsCount++;
+            this.lastNotification = data;
+        }
+    }
+
+    /**
+     * How many batches can wait for {@link #EXECUTOR} at most. Beyond that,
+     * the thread calling {@link #executeAll(List)} applies its batch itself.
+     */
+    private static final int MAX_PENDING_BATCHES = 16;
+
+    /**
+     * How many vibration sequences are merged into the pattern of a batch at
+     * most, the others would only make the device vibrate for longer
+     */
+    private static final int MAX_MERGED_VIBRATIONS = 4;
+
+    /** Each batch gets its own notification */
+    private static final AtomicInteger NOTIFICATION_IDS = new AtomicInteger();
+
+    /** Applies the batches, one at a time and in order */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                    MAX_PENDING_BATCHES), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread res =
+                            new Thread(runnable, "DirectivesExecutor");
+                    res.setDaemon(true);
+                    return res;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /**
+     * The pause between two merged vibration sequences, so that they can be
+     * told apart
+     */
+    private static final long VIBRATIONS_GAP_MS = 500;
 
-    private static final AtomicInteger notificationId = new AtomicInteger();
     private final Context context;
     private final NotificationManager notificationManager;
     private final Vibrator vibrator;
@@ -50,48 +221,18 @@ public class DirectivesExecutor implements Visitor {
                         .getSystemService(Context.NOTIFICATION_SERVICE);
     }
 
-    public void execute(final DirectiveData data) {
-        Directive.accept(data, this);
-    }
-
-    /**
-     * Do not call this directly, it will be called by
-     * {@link Directive#accept(DirectiveData, ThrowingVisitor) for
-     * #execute(DirectiveData)
-     */
-    @Override
-    public void visit(final HapticNotificationData data) {
-        long[] vibrateSequence;
-        if (data.getVibrationSequenceCount() == 0)
-            vibrateSequence = Directive.DEFAULT_VIBRATION_SEQUENCE;
-        else {
-            vibrateSequence = new long[data.getVibrationSequenceCount()];
-            for (int n = 0; n < vibrateSequence.length; n++)
-                vibrateSequence[n] = data.getVibrationSequence(n);
-        }
-        this.vibrator.vibrate(vibrateSequence, -1);
-    }
-
     /**
-     * Do not call this directly, it will be called by
-     * {@link Directive#accept(DirectiveData, ThrowingVisitor) for
-     * #execute(DirectiveData)
+     * Applies the directives as a single batch, in the background. This
+     * returns without waiting unless {@value #MAX_PENDING_BATCHES} batches are
+     * already waiting, in which case the batch is applied before returning.
+     * 
+     * @param directives
+     *            The directives to apply, in order. The list must not be
+     *            modified afterwards.
+     * @return Done once the directives have been applied, they must not be
+     *         acknowledged before
      */
-    @Override
-    public void visit(final StatusBarNotificationData data) {
-        final Notification notification = new Notification();
-        notification.tickerText = data.getTitle();
-        notification.icon = R.drawable.ic_launcher;
-        notification.when = System.currentTimeMillis();
-        final Intent notificationIntent =
-                new Intent(this.context, DirectivesExecutor.class);
-        final PendingIntent contentIntent =
-                PendingIntent.getActivity(this.context, 0, notificationIntent,
-                        0);
-        notification.setLatestEventInfo(this.context, data.getTitle(),
-                data.getText(), contentIntent);
-        this.notificationManager.notify(notificationId.incrementAndGet(),
-                notification);
+    public Future<?> executeAll(final List<DirectiveData> directives) {
+        return EXECUTOR.submit(new Batch(directives));
     }
-
 }
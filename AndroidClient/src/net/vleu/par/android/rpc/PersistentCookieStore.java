@@ -35,18 +35,31 @@ package net.vleu.par.android.rpc;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.vleu.par.android.Config;
 
 import org.apache.http.client.CookieStore;
 import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
 
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
+import android.util.Log;
+import biz.source_code.base64Coder.Base64UrlCoder;
 
 /**
  * A persistent cookie store which implements the Apache HttpClient
@@ -54,6 +67,12 @@ import android.text.TextUtils;
  * user's device between application sessions since they are serialized and
  * stored in {@link SharedPreferences}.
  * <p>
+ * The cookies are loaded on first use, then kept in memory. The changes are
+ * written in the background, several changes in a row being written by a
+ * single commit. As each instance replaces all the cookies stored in its
+ * {@link SharedPreferences}, there is a single one per name, see
+ * {@link #forPreferences(Context, String)}.
+ * <p>
  * Instances of this class are designed to be used with
  * {@link AsyncHttpClient#setCookieStore}, but can also be used with a regular
  * old apache HttpClient/HttpContext if you prefer.
@@ -62,154 +81,306 @@ class PersistentCookieStore implements CookieStore {
     private static final String COOKIE_NAME_PREFIX = "cookie-";
     private static final String COOKIE_NAME_STORE = "cookies_names";
 
-    private final SharedPreferences cookiePrefs;
-    private final ConcurrentHashMap<String, Cookie> cookies;
-
     /**
-     * Construct a persistent cookie store.
+     * Starts the cookies encoded by {@link #encodeCookie(Cookie)}, followed
+     * by a Base64 string. The legacy ones are hexadecimal strings, which never
+     * contain ':'.
      */
-    public PersistentCookieStore(final SharedPreferences cookiePrefs) {
-        this.cookiePrefs = cookiePrefs;
-        this.cookies = new ConcurrentHashMap<String, Cookie>();
+    private static final String ENCODING_V1_PREFIX = "1:";
 
-        // Load any previously stored cookies into the store
-        final String storedCookieNames =
-                this.cookiePrefs.getString(COOKIE_NAME_STORE, null);
-        if (storedCookieNames != null) {
-            final String[] cookieNames =
-                    TextUtils.split(storedCookieNames, ",");
-            for (final String name : cookieNames) {
-                final String encodedCookie =
-                        this.cookiePrefs.getString(COOKIE_NAME_PREFIX + name,
-                                null);
-                if (encodedCookie != null) {
-                    final Cookie decodedCookie = decodeCookie(encodedCookie);
-                    if (decodedCookie != null)
-                        this.cookies.put(name, decodedCookie);
+    /** The instances, by name of their {@link SharedPreferences} */
+    private static final ConcurrentHashMap<String, PersistentCookieStore>
+            INSTANCES = new ConcurrentHashMap<String, PersistentCookieStore>();
+
+    private static final String TAG = Config
+            .makeLogTag(PersistentCookieStore.class);
+
+    /** Writes the cookies of all the instances, one commit at a time */
+    private static final ExecutorService WRITER = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread res =
+                            new Thread(runnable, "PersistentCookieStore");
+                    res.setDaemon(true);
+                    return res;
                 }
-            }
+            });
 
-            // Clear out expired cookies
-            clearExpired(new Date());
+    /**
+     * Decodes a cookie encoded by {@link #encodeCookie(Cookie)}, or by the
+     * previous versions of this class
+     * 
+     * @param cookieStr
+     *            The encoded cookie
+     * @return The cookie, null if it could not be decoded
+     */
+    protected static Cookie decodeCookie(final String cookieStr) {
+        try {
+            if (cookieStr.startsWith(ENCODING_V1_PREFIX))
+                return decodeCookieV1(Base64UrlCoder.decode(cookieStr
+                        .substring(ENCODING_V1_PREFIX.length())));
+            else
+                return decodeLegacyCookie(hexStringToByteArray(cookieStr));
+        }
+        catch (final Exception e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG, "Could not decode a cookie", e);
+            return null;
         }
     }
 
-    @Override
-    public void addCookie(final Cookie cookie) {
-        final String name = cookie.getName();
+    /**
+     * Returns the store of the cookies kept in the named
+     * {@link SharedPreferences}, the same one for the whole process
+     * 
+     * @param context
+     *            Used to open the {@link SharedPreferences}, won't be kept
+     * @param sharedPrefsName
+     *            The name of the {@link SharedPreferences}
+     * @return The instance for this name
+     */
+    static PersistentCookieStore forPreferences(final Context context,
+            final String sharedPrefsName) {
+        final PersistentCookieStore existing = INSTANCES.get(sharedPrefsName);
+        if (existing != null)
+            return existing;
+        final PersistentCookieStore created =
+                new PersistentCookieStore(context.getSharedPreferences(
+                        sharedPrefsName, Context.MODE_PRIVATE));
+        final PersistentCookieStore raced =
+                INSTANCES.putIfAbsent(sharedPrefsName, created);
+        return raced == null ? created : raced;
+    }
 
-        // Save cookie into local store
-        this.cookies.put(name, cookie);
+    private static Cookie decodeCookieV1(final byte[] bytes)
+            throws IOException {
+        final DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(bytes));
+        final BasicClientCookie res =
+                new BasicClientCookie(in.readUTF(), readNullableUTF(in));
+        res.setComment(readNullableUTF(in));
+        res.setDomain(readNullableUTF(in));
+        if (in.readBoolean())
+            res.setExpiryDate(new Date(in.readLong()));
+        res.setPath(readNullableUTF(in));
+        res.setVersion(in.readInt());
+        res.setSecure(in.readBoolean());
+        return res;
+    }
 
-        // Save cookie into persistent store
-        final SharedPreferences.Editor prefsWriter = this.cookiePrefs.edit();
-        prefsWriter.putString(COOKIE_NAME_STORE,
-                TextUtils.join(",", this.cookies.keySet()));
-        prefsWriter.putString(COOKIE_NAME_PREFIX + name,
-                encodeCookie(new SerializableCookie(cookie)));
-        prefsWriter.commit();
+    /**
+     * Decodes the cookies written by the previous versions of this class,
+     * with Java serialization
+     */
+    private static Cookie decodeLegacyCookie(final byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        final ObjectInputStream ois =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+        return ((SerializableCookie) ois.readObject()).getCookie();
     }
 
-    // Using some super basic byte array <-> hex conversions so we don't have
-    // to rely on any large Base64 libraries. Can be overridden if you like!
-    protected String byteArrayToHexString(final byte[] b) {
-        final StringBuffer sb = new StringBuffer(b.length * 2);
-        for (final byte element : b) {
-            final int v = element & 0xff;
-            if (v < 16)
-                sb.append('0');
-            sb.append(Integer.toHexString(v));
+    /**
+     * Encodes the fields of the cookie with a {@link DataOutputStream}, as a
+     * Base64 string preceded by {@link #ENCODING_V1_PREFIX}
+     * 
+     * @param cookie
+     *            The cookie to encode
+     * @return The encoded cookie
+     */
+    protected static String encodeCookie(final Cookie cookie) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(128);
+        final DataOutputStream out = new DataOutputStream(os);
+        try {
+            out.writeUTF(cookie.getName());
+            writeNullableUTF(out, cookie.getValue());
+            writeNullableUTF(out, cookie.getComment());
+            writeNullableUTF(out, cookie.getDomain());
+            final Date expiryDate = cookie.getExpiryDate();
+            out.writeBoolean(expiryDate != null);
+            if (expiryDate != null)
+                out.writeLong(expiryDate.getTime());
+            writeNullableUTF(out, cookie.getPath());
+            out.writeInt(cookie.getVersion());
+            out.writeBoolean(cookie.isSecure());
+        }
+        catch (final IOException e) {
+            throw new InternalError("A ByteArrayOutputStream cannot fail");
         }
-        return sb.toString().toUpperCase();
+        return ENCODING_V1_PREFIX
+            + new String(Base64UrlCoder.encode(os.toByteArray()));
+    }
+
+    protected static byte[] hexStringToByteArray(final String s) {
+        final int len = s.length();
+        final byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2)
+            data[i / 2] =
+                    (byte) ((Character.digit(s.charAt(i), 16) << 4) + Character
+                            .digit(s.charAt(i + 1), 16));
+        return data;
+    }
+
+    private static String readNullableUTF(final DataInputStream in)
+            throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(final DataOutputStream out,
+            final String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null)
+            out.writeUTF(str);
+    }
+
+    private final SharedPreferences cookiePrefs;
+
+    private final ConcurrentHashMap<String, Cookie> cookies;
+
+    /** True if {@link #cookies} was loaded from {@link #cookiePrefs} */
+    private volatile boolean loaded = false;
+
+    /**
+     * The names of the cookies in {@link #cookiePrefs}, confined to
+     * {@link #WRITER}
+     */
+    private final HashSet<String> persistedNames = new HashSet<String>();
+
+    /**
+     * True if {@link #WRITER} was asked to persist {@link #cookies} and has
+     * not started yet
+     */
+    private final AtomicBoolean writePending = new AtomicBoolean(false);
+
+    /**
+     * Construct a persistent cookie store. Nothing is read before the cookies
+     * are needed.
+     */
+    private PersistentCookieStore(final SharedPreferences cookiePrefs) {
+        this.cookiePrefs = cookiePrefs;
+        this.cookies = new ConcurrentHashMap<String, Cookie>();
+    }
+
+    @Override
+    public void addCookie(final Cookie cookie) {
+        ensureLoaded();
+        this.cookies.put(cookie.getName(), cookie);
+        scheduleWrite();
     }
 
     @Override
     public void clear() {
-        // Clear cookies from local store
+        ensureLoaded();
         this.cookies.clear();
-
-        // Clear cookies from persistent store
-        final SharedPreferences.Editor prefsWriter = this.cookiePrefs.edit();
-        for (final String name : this.cookies.keySet())
-            prefsWriter.remove(COOKIE_NAME_PREFIX + name);
-        prefsWriter.remove(COOKIE_NAME_STORE);
-        prefsWriter.commit();
+        scheduleWrite();
     }
 
     @Override
     public boolean clearExpired(final Date date) {
+        ensureLoaded();
         boolean clearedAny = false;
-        final SharedPreferences.Editor prefsWriter = this.cookiePrefs.edit();
-
         for (final ConcurrentHashMap.Entry<String, Cookie> entry : this.cookies
-                .entrySet()) {
-            final String name = entry.getKey();
-            final Cookie cookie = entry.getValue();
-            if (cookie.isExpired(date)) {
-                // Clear cookies from local store
-                this.cookies.remove(name);
-
-                // Clear cookies from persistent store
-                prefsWriter.remove(COOKIE_NAME_PREFIX + name);
-
-                // We've cleared at least one
+                .entrySet())
+            if (entry.getValue().isExpired(date)) {
+                this.cookies.remove(entry.getKey());
                 clearedAny = true;
             }
-        }
-
-        // Update names in persistent store
         if (clearedAny)
-            prefsWriter.putString(COOKIE_NAME_STORE,
-                    TextUtils.join(",", this.cookies.keySet()));
-        prefsWriter.commit();
-
+            scheduleWrite();
         return clearedAny;
     }
 
-    //
-    // Cookie serialization/deserialization
-    //
-
-    protected Cookie decodeCookie(final String cookieStr) {
-        final byte[] bytes = hexStringToByteArray(cookieStr);
-        final ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-        Cookie cookie = null;
-        try {
-            final ObjectInputStream ois = new ObjectInputStream(is);
-            cookie = ((SerializableCookie) ois.readObject()).getCookie();
-        }
-        catch (final Exception e) {
-            e.printStackTrace();
-        }
-
-        return cookie;
-    }
-
-    protected String encodeCookie(final SerializableCookie cookie) {
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        try {
-            final ObjectOutputStream outputStream = new ObjectOutputStream(os);
-            outputStream.writeObject(cookie);
-        }
-        catch (final Exception e) {
-            return null;
+    /**
+     * Loads the cookies from {@link #cookiePrefs} on the first call. The
+     * cookies that were stored in the legacy format are written again in the
+     * current one.
+     */
+    private void ensureLoaded() {
+        if (this.loaded)
+            return;
+        synchronized (this) {
+            if (this.loaded)
+                return;
+            final String storedCookieNames =
+                    this.cookiePrefs.getString(COOKIE_NAME_STORE, null);
+            final HashSet<String> names = new HashSet<String>();
+            boolean legacyFound = false;
+            if (storedCookieNames != null)
+                for (final String name : TextUtils.split(storedCookieNames,
+                        ","))
+                    if (name.length() > 0) {
+                        names.add(name);
+                        final String encodedCookie =
+                                this.cookiePrefs.getString(COOKIE_NAME_PREFIX
+                                    + name, null);
+                        if (encodedCookie == null)
+                            continue;
+                        legacyFound |=
+                                !encodedCookie.startsWith(ENCODING_V1_PREFIX);
+                        final Cookie decodedCookie =
+                                decodeCookie(encodedCookie);
+                        if (decodedCookie != null)
+                            this.cookies.put(name, decodedCookie);
+                    }
+            WRITER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PersistentCookieStore.this.persistedNames.addAll(names);
+                }
+            });
+            this.loaded = true;
+            if (!clearExpired(new Date()) && legacyFound)
+                scheduleWrite();
         }
-
-        return byteArrayToHexString(os.toByteArray());
     }
 
     @Override
     public List<Cookie> getCookies() {
+        ensureLoaded();
         return new ArrayList<Cookie>(this.cookies.values());
     }
 
-    protected byte[] hexStringToByteArray(final String s) {
-        final int len = s.length();
-        final byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2)
-            data[i / 2] =
-                    (byte) ((Character.digit(s.charAt(i), 16) << 4) + Character
-                            .digit(s.charAt(i + 1), 16));
-        return data;
+    /**
+     * Asks {@link #WRITER} to persist {@link #cookies}, unless it was already
+     * asked and has not started yet, in which case it will see this change
+     * too
+     */
+    private void scheduleWrite() {
+        if (this.writePending.getAndSet(true))
+            return;
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                PersistentCookieStore.this.writePending.set(false);
+                writeCookies();
+            }
+        });
+    }
+
+    /**
+     * Replaces the cookies stored in {@link #cookiePrefs} with
+     * {@link #cookies}, in a single commit. Only called by {@link #WRITER}.
+     */
+    private void writeCookies() {
+        final SharedPreferences.Editor prefsWriter = this.cookiePrefs.edit();
+        final HashSet<String> names =
+                new HashSet<String>(this.cookies.keySet());
+        for (final String name : this.persistedNames)
+            if (!names.contains(name))
+                prefsWriter.remove(COOKIE_NAME_PREFIX + name);
+        for (final String name : names) {
+            final Cookie cookie = this.cookies.get(name);
+            if (cookie != null)
+                prefsWriter.putString(COOKIE_NAME_PREFIX + name,
+                        encodeCookie(cookie));
+        }
+        if (names.isEmpty())
+            prefsWriter.remove(COOKIE_NAME_STORE);
+        else
+            prefsWriter.putString(COOKIE_NAME_STORE, TextUtils.join(",",
+                    names));
+        prefsWriter.commit();
+        this.persistedNames.clear();
+        this.persistedNames.addAll(names);
     }
 }
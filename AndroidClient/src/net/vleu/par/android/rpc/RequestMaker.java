@@ -16,12 +16,17 @@
  */
 package net.vleu.par.android.rpc;
 
+import java.util.List;
+
 import net.vleu.par.C2dmToken;
 import net.vleu.par.DeviceName;
 import net.vleu.par.models.DeviceId;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.GetDeviceDirectivesData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.RegisterDeviceData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData.DirectivesCursorData;
 import android.content.Context;
 
 /**
@@ -39,15 +44,43 @@ public final class RequestMaker {
      * Creates protocol buffers representing this request, as described in the
      * .proto file
      * 
+     * @param cursor
+     *            As returned by {@link #findDirectivesCursor(GatewayResponseData)}
+     *            to resume fetching the directives, can be null
+     * @param acknowledgements
+     *            For each creator, the latest directive applied
      * @return A {@link GetDeviceDirectivesData} filled to be sent to the server
      */
-    public GetDeviceDirectivesData makeGetDirectivesData() {
+    public GetDeviceDirectivesData makeGetDirectivesData(final String cursor,
+            final List<DirectiveIdData> acknowledgements) {
         final GatewayRequestData.GetDeviceDirectivesData.Builder builder =
                 GatewayRequestData.GetDeviceDirectivesData.newBuilder();
         builder.setDeviceId(this.identifier.value);
+        if (cursor != null)
+            builder.setCursor(cursor);
+        builder.addAllAcknowledgements(acknowledgements);
         return builder.build();
     }
 
+    /**
+     * Searches the response for a cursor telling that more directives are
+     * queued for this device
+     * 
+     * @param response
+     *            The response to a request made with
+     *            {@link #makeGetDirectivesData(String, List)}
+     * @return The cursor to pass to
+     *         {@link #makeGetDirectivesData(String, List)}, or
+     *         null if all directives have been fetched
+     */
+    public String findDirectivesCursor(final GatewayResponseData response) {
+        for (final DirectivesCursorData cursorData : response
+                .getDirectivesCursorList())
+            if (this.identifier.value.equals(cursorData.getDeviceId()))
+                return cursorData.getCursor();
+        return null;
+    }
+
     /**
      * Creates protocol buffers representing this request, as described in the
      * .proto file
@@ -44,7 +44,8 @@ import org.apache.http.impl.cookie.BasicClientCookie;
 
 /**
  * A wrapper class around {@link Cookie} and/or {@link BasicClientCookie}
- * designed for use in {@link PersistentCookieStore}.
+ * designed for use in {@link PersistentCookieStore}. It now only reads the
+ * cookies persisted by its previous versions.
  */
 class SerializableCookie implements Serializable {
     private static final long serialVersionUID = 6374381828722046732L;
@@ -33,7 +33,15 @@ package net.vleu.par.android.rpc;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.jcip.annotations.ThreadSafe;
 import net.vleu.par.WrappedString;
@@ -41,16 +49,31 @@ import net.vleu.par.android.Config;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.impl.cookie.BasicClientCookie;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
 import android.accounts.Account;
@@ -61,7 +84,6 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Activity;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -118,6 +140,56 @@ public final class Transceiver {
         }
     }
 
+    /**
+     * Holds the {@link DefaultHttpClient} shared by all the instances, so that
+     * they reuse the connections to the server instead of paying for a TLS
+     * handshake at each synchronization. It is built on first use.
+     */
+    private static final class SharedHttpClient {
+        /** How long a pooled connection can stay idle before being closed */
+        private static final long IDLE_CONNECTIONS_TIMEOUT_MS = 60 * 1000;
+
+        /** All the requests go to the same server */
+        private static final int MAX_CONNECTIONS = 2;
+
+        /** Connecting and waiting for data, in milliseconds */
+        private static final int SOCKET_TIMEOUT_MS = 30 * 1000;
+
+        static final ThreadSafeClientConnManager CONNECTION_MANAGER;
+
+        static final DefaultHttpClient INSTANCE;
+
+        static {
+            final HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpConnectionParams.setConnectionTimeout(params,
+                    SOCKET_TIMEOUT_MS);
+            HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS));
+            final SchemeRegistry schemes = new SchemeRegistry();
+            schemes.register(new Scheme("http", PlainSocketFactory
+                    .getSocketFactory(), 80));
+            schemes.register(new Scheme("https", SSLSocketFactory
+                    .getSocketFactory(), 443));
+            CONNECTION_MANAGER =
+                    new ThreadSafeClientConnManager(params, schemes);
+            INSTANCE = new DefaultHttpClient(CONNECTION_MANAGER, params);
+        }
+
+        /**
+         * Closes the connections the server probably closed on its side,
+         * instead of finding out when sending a request
+         */
+        static void closeIdleConnections() {
+            CONNECTION_MANAGER.closeExpiredConnections();
+            CONNECTION_MANAGER.closeIdleConnections(
+                    IDLE_CONNECTIONS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
     private static final String APPENGINE_TOKEN_TYPE = "ah";
 
     public static final String[] GOOGLE_ACCOUNT_REQUIRED_SYNCABILITY_FEATURES =
@@ -133,6 +205,35 @@ public final class Transceiver {
             (new BasicHttpParams()).setBooleanParameter(
                     ClientPNames.HANDLE_REDIRECTS, false);
 
+    /** The accounts whose {@link SacsidToken} is being refreshed */
+    private static final ConcurrentMap<String, Boolean> REFRESHING_ACCOUNTS =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * How long a {@link SacsidToken} is valid when its cookie has no expiry
+     * date, the default of App Engine. Such cookies are given this expiry
+     * date when received, so that it is persisted along with them.
+     */
+    private static final long SACSID_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * A {@link SacsidToken} expiring sooner than that is refreshed in the
+     * background, while it is still used
+     */
+    private static final long SACSID_REFRESH_MARGIN_MS = 6 * 60 * 60 * 1000L;
+
+    /** Refreshes the {@link SacsidToken}s of all the instances */
+    private static final ExecutorService SACSID_REFRESHER = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread res =
+                            new Thread(runnable, "SacsidTokenRefresher");
+                    res.setDaemon(true);
+                    return res;
+                }
+            });
+
     private static final String SERVER_AUTH_URL_PREFIX = Config.SERVER_BASE_URL
         + "/_ah/login?continue=http://localhost/&auth=";
 
@@ -197,6 +298,38 @@ public final class Transceiver {
                 callback, null);
     }
 
+    /**
+     * Reads what is left of the response, so that its connection goes back to
+     * the pool, still open, instead of being closed like
+     * {@link HttpUriRequest#abort()} does. The connection is only closed if
+     * this fails.
+     * 
+     * @param request
+     *            The request that was executed
+     * @param response
+     *            Its response, can be null if there were none
+     */
+    private static void releaseConnection(final HttpUriRequest request,
+            final HttpResponse response) {
+        final HttpEntity entity =
+                response == null ? null : response.getEntity();
+        try {
+            if (entity != null)
+                entity.consumeContent();
+        }
+        catch (final IOException e) {
+            request.abort();
+        }
+    }
+
+    /**
+     * @return The number of connections to the server currently kept open,
+     *         idle or in use, by all the instances
+     */
+    public static int getPooledConnectionsCount() {
+        return SharedHttpClient.CONNECTION_MANAGER.getConnectionsInPool();
+    }
+
     /**
      * Lists all Google accounts on this device
      * 
@@ -209,25 +342,49 @@ public final class Transceiver {
         return am.getAccountsByType(GOOGLE_ACCOUNT_TYPE);
     }
 
+    /**
+     * @return A copy of the cookie, with the given expiry date, made of the
+     *         fields {@link PersistentCookieStore} keeps
+     */
+    private static Cookie withExpiryDate(final Cookie cookie,
+            final Date expiryDate) {
+        final BasicClientCookie res =
+                new BasicClientCookie(cookie.getName(), cookie.getValue());
+        res.setComment(cookie.getComment());
+        res.setDomain(cookie.getDomain());
+        res.setExpiryDate(expiryDate);
+        res.setPath(cookie.getPath());
+        res.setVersion(cookie.getVersion());
+        res.setSecure(cookie.isSecure());
+        return res;
+    }
+
     private final Account account;
 
     private final Context context;
 
+    /**
+     * The cookies of {@link #account}, including the {@link SacsidToken},
+     * shared with the other instances for this account
+     */
+    private final PersistentCookieStore cookieStore;
+
+    /** Shared by all the instances, see {@link SharedHttpClient} */
     private final DefaultHttpClient httpClient;
 
-    private final SharedPreferences sharedPreferences;
+    /**
+     * How many blocking exchanges with the network
+     * {@link #exchangeWithServer(GatewayRequestData)} made so far
+     */
+    private final AtomicInteger roundTrips = new AtomicInteger();
 
     public Transceiver(final Account account, final Context context) {
         final String sharedPrefsName = SHARED_PREFERENCES_PREFIX + account.name;
         this.account = account;
         this.context = context;
-        this.httpClient = new DefaultHttpClient();
-        this.sharedPreferences =
-                context.getSharedPreferences(sharedPrefsName,
-                        Context.MODE_PRIVATE);
-        final PersistentCookieStore cookieStore =
-                new PersistentCookieStore(this.sharedPreferences);
-        this.httpClient.setCookieStore(cookieStore);
+        this.httpClient = SharedHttpClient.INSTANCE;
+        this.cookieStore =
+                PersistentCookieStore.forPreferences(context, sharedPrefsName);
     }
 
     /**
@@ -263,22 +420,26 @@ public final class Transceiver {
     }
 
     /**
-     * Clears the SACSID token we might have had
+     * Clears the SACSID token we might have had, along with its expiry date
      */
     public void clearSacsidToken() {
-        this.httpClient.getCookieStore().clear();
+        this.cookieStore.clear();
     }
 
     /**
      * Releases allocated resources. The instance cannot be used afterward.
+     * The connections belong to all the instances, so only the idle ones are
+     * closed.
      */
     public void dispose() {
-        this.httpClient.getConnectionManager().shutdown();
+        SharedHttpClient.closeIdleConnections();
     }
 
     /**
      * Performs authentication if necessary, then exchange the data with the
-     * server and returns the response
+     * server and returns the response. As long as the {@link SacsidToken} is
+     * valid, this takes a single HTTP exchange: it is refreshed in the
+     * background when it is about to expire.
      * 
      * @param request
      * @return The response to the request, null if none
@@ -289,28 +450,51 @@ public final class Transceiver {
     public GatewayResponseData exchangeWithServer(
             final GatewayRequestData request) throws IOException,
             OperationCanceledException, AuthenticatorException {
+        return exchangeWithServer(request, Config.SERVER_RPC_URL_PROTOBUFF);
+    }
+
+    /**
+     * Does the same as {@link #exchangeWithServer(GatewayRequestData)}, with
+     * the RPC at the given URL
+     * 
+     * @param request
+     * @param url
+     *            Where to post the request
+     * @return The response to the request, null if none
+     * @throws IOException
+     * @throws OperationCanceledException
+     * @throws AuthenticatorException
+     */
+    private GatewayResponseData exchangeWithServer(
+            final GatewayRequestData request, final String url)
+            throws IOException, OperationCanceledException,
+            AuthenticatorException {
         final int maxRetries = 10;
         for (int retry = 0; retry < maxRetries; retry++) {
-            if (!hasSacsidToken()) {
+            final long nowMs = System.currentTimeMillis();
+            Cookie sacsid = getSacsidCookie();
+            final long expiryMs =
+                    sacsid == null ? -1 : getSacsidExpiryMs(sacsid);
+            if (sacsid != null && expiryMs >= 0 && expiryMs <= nowMs) {
+                /* Saves the round trip that would be rejected */
+                clearSacsidToken();
+                sacsid = null;
+            }
+            if (sacsid == null) {
                 /* Gets a Google Auth Token and promotes it to a SACSID Token */
-                final GoogleAuthToken googleAuthToken =
-                        blockingGetNewAuthToken();
-                try {
-                    promoteToken(googleAuthToken);
-                }
-                catch (final InvalidGoogleAuthTokenException e) {
-                    if (Log.isLoggable(TAG, Log.WARN))
-                        Log.w(TAG,
-                                "The google auth token is invalid. Refreshing all cookies. ",
-                                e);
-                    invalidatesGoogleAuthToken(googleAuthToken);
+                this.roundTrips.addAndGet(2);
+                if (!obtainSacsidToken()) {
                     clearSacsidToken();
                     continue;
                 }
             }
+            else if (expiryMs < 0
+                || expiryMs - nowMs < SACSID_REFRESH_MARGIN_MS)
+                refreshSacsidTokenInBackground();
             /* Executes the query */
             try {
-                return postData(request);
+                this.roundTrips.incrementAndGet();
+                return postData(request, url);
             }
             catch (final AuthenticationTokenExpired e) {
                 clearSacsidToken();
@@ -328,17 +512,46 @@ public final class Transceiver {
     }
 
     /**
-     * Goes through {@link #httpClient}'s cookies to find an {@link SacsidToken}
+     * @return How many blocking exchanges with the network
+     *         {@link #exchangeWithServer(GatewayRequestData)} made since this
+     *         instance was built, fetching and promoting tokens included
+     */
+    public int getRoundTrips() {
+        return this.roundTrips.get();
+    }
+
+    /**
+     * Goes through {@link #cookieStore} to find an {@link SacsidToken}
      * 
-     * @return true if it finds one, else false
+     * @return The cookie holding it, null if there are none
      */
-    public boolean hasSacsidToken() {
-        final List<Cookie> cookies =
-                this.httpClient.getCookieStore().getCookies();
+    private Cookie getSacsidCookie() {
+        final List<Cookie> cookies = this.cookieStore.getCookies();
         for (final Cookie cookie : cookies)
             if (cookie.getName().equals("SACSID"))
-                return true;
-        return false;
+                return cookie;
+        return null;
+    }
+
+    /**
+     * @param sacsid
+     *            The cookie holding the {@link SacsidToken}
+     * @return When it expires, as per {@link System#currentTimeMillis()}, or
+     *         -1 if this is not known, for cookies received before
+     *         {@link #promoteToken(GoogleAuthToken)} dated them
+     */
+    private static long getSacsidExpiryMs(final Cookie sacsid) {
+        final Date expiryDate = sacsid.getExpiryDate();
+        return expiryDate == null ? -1 : expiryDate.getTime();
+    }
+
+    /**
+     * Goes through {@link #cookieStore} to find an {@link SacsidToken}
+     * 
+     * @return true if it finds one, else false
+     */
+    public boolean hasSacsidToken() {
+        return getSacsidCookie() != null;
     }
 
     /**
@@ -354,11 +567,74 @@ public final class Transceiver {
         }
     }
 
+    /**
+     * Like {@link #exchangeWithServer(GatewayRequestData)}, but the server
+     * holds the request until directives are queued for the device, or for
+     * about 15 seconds, which is less than the socket timeout.
+     * 
+     * @param request
+     *            Must be made only of GetDeviceDirectives, else the server
+     *            rejects it
+     * @return The response to the request, null if none
+     * @throws IOException
+     * @throws OperationCanceledException
+     * @throws AuthenticatorException
+     */
+    public GatewayResponseData longPollServer(final GatewayRequestData request)
+            throws IOException, OperationCanceledException,
+            AuthenticatorException {
+        return exchangeWithServer(request,
+                Config.SERVER_RPC_URL_LONG_POLL_PROTOBUFF);
+    }
+
+    /**
+     * @return A context to pass along with a single request to
+     *         {@link #httpClient}, so that it uses {@link #cookieStore}. They
+     *         cannot be shared, as the requests can be made concurrently.
+     */
+    private HttpContext newHttpContext() {
+        final HttpContext res = new BasicHttpContext();
+        res.setAttribute(ClientContext.COOKIE_STORE, this.cookieStore);
+        return res;
+    }
+
+    /**
+     * Gets a Google Auth Token and promotes it to a SACSID Token, which
+     * replaces the current one if any. This takes two round trips.
+     * 
+     * @return false if the Google Auth Token was rejected, in which case it
+     *         has been invalidated and the SACSID token left as it was
+     * @throws IOException
+     *             Most likely a network failure
+     * @throws OperationCanceledException
+     *             If the user did not let us use the account
+     * @throws AuthenticatorException
+     *             If no Google Auth Token could be obtained
+     */
+    private boolean obtainSacsidToken() throws IOException,
+            OperationCanceledException, AuthenticatorException {
+        final GoogleAuthToken googleAuthToken = blockingGetNewAuthToken();
+        try {
+            promoteToken(googleAuthToken);
+            return true;
+        }
+        catch (final InvalidGoogleAuthTokenException e) {
+            if (Log.isLoggable(TAG, Log.WARN))
+                Log.w(TAG,
+                        "The google auth token is invalid. Refreshing all cookies. ",
+                        e);
+            invalidatesGoogleAuthToken(googleAuthToken);
+            return false;
+        }
+    }
+
     /**
      * Sends the request to the distant server and parses the response
      * 
      * @param request
      *            Won't be checked
+     * @param url
+     *            Where to post it
      * @return The response, or null if there weren't any
      * @throws IOException
      *             I/O error, usually because of network trouble
@@ -366,16 +642,16 @@ public final class Transceiver {
      *             The token expired while we were using it, it needs to be
      *             renewed
      */
-    private GatewayResponseData postData(final GatewayRequestData request)
-            throws IOException, AuthenticationTokenExpired {
-        final HttpPost httpRequest = new HttpPost(Config.SERVER_RPC_URL_PROTOBUFF);
+    private GatewayResponseData postData(final GatewayRequestData request,
+            final String url) throws IOException, AuthenticationTokenExpired {
+        final HttpPost httpRequest = new HttpPost(url);
         final ByteArrayEntity requestEntity =
                 new ByteArrayEntity(request.toByteArray());
-        InputStream responseStream = null;
         HttpResponse response = null;
         httpRequest.setEntity(requestEntity);
+        SharedHttpClient.closeIdleConnections();
         try {
-            response = this.httpClient.execute(httpRequest);
+            response = this.httpClient.execute(httpRequest, newHttpContext());
             final int statusCode = response.getStatusLine().getStatusCode();
 
             if (statusCode == 403)
@@ -389,24 +665,21 @@ public final class Transceiver {
                     + "; message: " + answer);
             }
             else {
-                responseStream = response.getEntity().getContent();
+                final InputStream responseStream =
+                        response.getEntity().getContent();
                 return GatewayResponseData.parseFrom(responseStream);
             }
         }
         finally {
-            httpRequest.abort();
-            if (responseStream != null)
-                responseStream.close();
-            /*
-             * if (response != null) response.getEntity().consumeContent();
-             */
+            releaseConnection(httpRequest, response);
         }
     }
 
     /**
      * Promotes a {@link GoogleAuthToken} into an {@link SacsidToken} by talking
-     * with the AppEngine server and adds this token to {@link #httpClient}'s
-     * cookie jar.
+     * with the AppEngine server and adds this token to {@link #cookieStore},
+     * replacing the previous one. The previous one is left as it was if this
+     * fails.
      * 
      * @param account
      *            The account to which the {@link GoogleAuthToken} is associated
@@ -420,6 +693,7 @@ public final class Transceiver {
     private void promoteToken(final GoogleAuthToken googleAuthToken)
             throws IOException, InvalidGoogleAuthTokenException {
 
+        final Cookie previousSacsid = getSacsidCookie();
         HttpResponse response = null;
         HttpGet request = null;
         try {
@@ -428,32 +702,58 @@ public final class Transceiver {
             /* The auth page will redirect to an url we don't care about */
             request.setParams(HTTP_PARAMS_NO_REDIRECTIONS);
 
-            response = this.httpClient.execute(request);
+            SharedHttpClient.closeIdleConnections();
+            response = this.httpClient.execute(request, newHttpContext());
         }
         finally {
             if (request != null)
-                request.abort();
-            /*
-             * if (response != null) response.getEntity().consumeContent();
-             */
+                releaseConnection(request, response);
         }
 
-        if (response.getStatusLine().getStatusCode() == 403) {
-            clearSacsidToken();
+        if (response.getStatusLine().getStatusCode() == 403)
             throw new InvalidGoogleAuthTokenException(
                     "Token rejected by the server");
-        }
 
-        if (!hasSacsidToken()) {
-            clearSacsidToken();
+        final Cookie sacsid = getSacsidCookie();
+        if (sacsid == null || sacsid == previousSacsid)
             // If no SACSID cookie was passed, it usually means the auth
             // token was invalid;
             throw new InvalidGoogleAuthTokenException(
                     "SACSID cookie not found in HTTP response: "
                         + response.getStatusLine().toString()
                         + "; assuming invalid auth token.");
+        if (sacsid.getExpiryDate() == null)
+            this.cookieStore.addCookie(withExpiryDate(sacsid, new Date(System
+                    .currentTimeMillis() + SACSID_LIFETIME_MS)));
+    }
 
-        }
+    /**
+     * Gets a new {@link SacsidToken} in the background, unless it is already
+     * being done for this account. The current token stays in use until then,
+     * and is kept if this fails.
+     */
+    private void refreshSacsidTokenInBackground() {
+        final String accountName = this.account.name;
+        if (REFRESHING_ACCOUNTS.putIfAbsent(accountName, Boolean.TRUE) != null)
+            return;
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "Refreshing the SACSID token of " + accountName);
+        SACSID_REFRESHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    obtainSacsidToken();
+                }
+                catch (final Exception e) {
+                    if (Log.isLoggable(TAG, Log.WARN))
+                        Log.w(TAG, "Failed refreshing the SACSID token of "
+                            + accountName, e);
+                }
+                finally {
+                    REFRESHING_ACCOUNTS.remove(accountName);
+                }
+            }
+        });
     }
 
 }
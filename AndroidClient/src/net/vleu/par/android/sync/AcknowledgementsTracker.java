@@ -0,0 +1,169 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.android.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.vleu.par.models.GatewayRequest;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps track of the latest directive applied for each creator, as described
+ * in "big_picture.txt" at the root of the project. It is loaded from and saved
+ * to a {@link SharedPreferences} private to the account.
+ */
+@NotThreadSafe
+final class AcknowledgementsTracker {
+    /**
+     * The account name will be appended to get the name of the
+     * {@link SharedPreferences}
+     */
+    private static final String PREFERENCE_FILE_PREFIX = "Acknowledgements-";
+
+    /**
+     * @param hex
+     *            As returned by {@link Long#toHexString(long)}
+     * @return The parsed number
+     */
+    private static long parseHex(final String hex) {
+        /* Long.parseLong does not accept unsigned 64 bits numbers */
+        if (hex.length() != 16)
+            return Long.parseLong(hex, 16);
+        return (Long.parseLong(hex.substring(0, 8), 16) << 32)
+            | Long.parseLong(hex.substring(8), 16);
+    }
+
+    /**
+     * @param timestamp
+     *            As per {@link DirectiveIdData#getTimestamp()}
+     * @return The timestamp as an unsigned number
+     */
+    private static long unsigned(final int timestamp) {
+        return timestamp & 0xFFFFFFFFL;
+    }
+
+    /** The creators forgotten since the last call to {@link #save()} */
+    private final ArrayList<Long> forgottenCreators = new ArrayList<Long>();
+
+    /**
+     * Maps creator ids to the latest timestamp applied, the latter being
+     * unsigned. They are stored in {@link #storage} as hexadecimal strings.
+     */
+    private final HashMap<Long, Long> latestTimestamps =
+            new HashMap<Long, Long>();
+
+    private final SharedPreferences storage;
+
+    /**
+     * @param account
+     *            The account whose directives are tracked
+     */
+    public AcknowledgementsTracker(final Context context, final Account account) {
+        this.storage =
+                context.getSharedPreferences(PREFERENCE_FILE_PREFIX
+                    + account.name, Context.MODE_PRIVATE);
+        for (final Map.Entry<String, ?> entry : this.storage.getAll()
+                .entrySet())
+            try {
+                this.latestTimestamps.put(parseHex(entry.getKey()),
+                        parseHex((String) entry.getValue()));
+            }
+            catch (final RuntimeException e) {
+                /* An invalid entry, it will be overwritten or forgotten */
+            }
+    }
+
+    /**
+     * Forgets about creators, as told by the Gateway
+     * 
+     * @param creatorIds
+     *            As per {@link DirectiveIdData#getCreatorId()}
+     */
+    public void forget(final List<Long> creatorIds) {
+        for (final Long creatorId : creatorIds)
+            if (this.latestTimestamps.remove(creatorId) != null)
+                this.forgottenCreators.add(creatorId);
+    }
+
+    /**
+     * @param id
+     *            The id of a directive sent by the Gateway
+     * @return True if a directive with the same id or a later one has already
+     *         been applied
+     */
+    public boolean isAlreadyApplied(final DirectiveIdData id) {
+        final Long latest = this.latestTimestamps.get(id.getCreatorId());
+        return latest != null && unsigned(id.getTimestamp()) <= latest;
+    }
+
+    /**
+     * @return At most {@link GatewayRequest#MAX_ACKNOWLEDGEMENTS}
+     *         acknowledgements to send to the Gateway
+     */
+    public List<DirectiveIdData> makeAcknowledgements() {
+        final ArrayList<DirectiveIdData> res =
+                new ArrayList<DirectiveIdData>(Math.min(
+                        this.latestTimestamps.size(),
+                        GatewayRequest.MAX_ACKNOWLEDGEMENTS));
+        for (final Map.Entry<Long, Long> entry : this.latestTimestamps
+                .entrySet()) {
+            if (res.size() >= GatewayRequest.MAX_ACKNOWLEDGEMENTS)
+                break;
+            final DirectiveIdData.Builder builder =
+                    DirectiveIdData.newBuilder();
+            builder.setCreatorId(entry.getKey());
+            builder.setTimestamp(entry.getValue().intValue());
+            res.add(builder.build());
+        }
+        return res;
+    }
+
+    /**
+     * Records that a directive has been applied
+     * 
+     * @param id
+     *            The id of the applied directive
+     */
+    public void markApplied(final DirectiveIdData id) {
+        if (!isAlreadyApplied(id))
+            this.latestTimestamps.put(id.getCreatorId(),
+                    unsigned(id.getTimestamp()));
+    }
+
+    /**
+     * Writes the changes to the persistent storage
+     */
+    public void save() {
+        final SharedPreferences.Editor editor = this.storage.edit();
+        for (final Long creatorId : this.forgottenCreators)
+            editor.remove(Long.toHexString(creatorId));
+        for (final Map.Entry<Long, Long> entry : this.latestTimestamps
+                .entrySet())
+            editor.putString(Long.toHexString(entry.getKey()), Long
+                    .toHexString(entry.getValue()));
+        // TODO(unbrice): Use apply (Android >3.0)
+        editor.commit();
+        this.forgottenCreators.clear();
+    }
+}
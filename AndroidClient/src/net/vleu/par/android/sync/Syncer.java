@@ -17,7 +17,9 @@
 package net.vleu.par.android.sync;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
 
 import net.vleu.par.C2dmToken;
 import net.vleu.par.android.Config;
@@ -26,6 +28,7 @@ import net.vleu.par.android.preferences.Preferences;
 import net.vleu.par.android.rpc.RequestMaker;
 import net.vleu.par.android.rpc.Transceiver;
 import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
 import android.accounts.Account;
@@ -49,6 +52,10 @@ import com.google.android.c2dm.C2DMessaging;
 final class Syncer {
 
     public static final class SynchronizationParameters {
+        /** The key of {@link #getLongPoll()} in the bundle */
+        private static final String SYNC_EXTRAS_LONG_POLL =
+                "net.vleu.par.android.sync.LONG_POLL";
+
         private final Bundle bundle;
 
         public SynchronizationParameters() {
@@ -79,6 +86,15 @@ final class Syncer {
                     ContentResolver.SYNC_EXTRAS_INITIALIZE, false);
         }
 
+        /**
+         * @return True if, once synchronized, the {@link Syncer} should keep
+         *         a long poll open with the server, see
+         *         {@link Syncer#LONG_POLL_DURATION_MS}
+         */
+        public boolean getLongPoll() {
+            return this.bundle.getBoolean(SYNC_EXTRAS_LONG_POLL, false);
+        }
+
         /**
          * @see ContentResolver.SYNC_EXTRAS_MANUAL
          */
@@ -111,6 +127,13 @@ final class Syncer {
                     value);
         }
 
+        /**
+         * @see #getLongPoll()
+         */
+        public void setLongPoll(final boolean value) {
+            this.bundle.putBoolean(SYNC_EXTRAS_LONG_POLL, value);
+        }
+
         /**
          * @see ContentResolver.SYNC_EXTRAS_MANUAL
          */
@@ -138,6 +161,21 @@ final class Syncer {
      */
     private static final String KEY_PREFIX_LAST_SYNC_MS = "last_sync_ms-";
 
+    /**
+     * For how long a synchronization with
+     * {@link SynchronizationParameters#getLongPoll()} keeps asking the server
+     * for directives, each request being held by the server until some are
+     * queued
+     */
+    private static final long LONG_POLL_DURATION_MS = 5 * 60 * 1000;
+
+    /**
+     * How many times we'll ask the server for more directives during a single
+     * synchronization, so that a huge backlog cannot keep us busy forever.
+     * The remaining ones will be fetched by the next synchronization.
+     */
+    private static final int MAX_DIRECTIVES_PAGES_PER_SYNC = 16;
+
     private static final String METADATA_PREFERENCE_FILE = "SyncAdpterMetadata";
 
     private static final String TAG = Config.makeLogTag(Syncer.class);
@@ -148,8 +186,16 @@ final class Syncer {
      */
     private final Account account;
 
+    /**
+     * The latest directives applied, they will be acknowledged to the server
+     */
+    private final AcknowledgementsTracker acknowledgements;
+
     private final Context context;
 
+    /** Applies the directives of each response as a batch */
+    private final DirectivesExecutor directivesExecutor;
+
     /**
      * @value {@link #KEY_PREFIX_LAST_C2DM_TOKEN} + this.account.name
      */
@@ -180,7 +226,9 @@ final class Syncer {
             throw new IllegalArgumentException("Invalid account type: "
                 + account.type);
         this.account = account;
+        this.acknowledgements = new AcknowledgementsTracker(context, account);
         this.context = context;
+        this.directivesExecutor = new DirectivesExecutor(context);
         this.keyForLastSyncMs = KEY_PREFIX_LAST_SYNC_MS + account.name;
         this.keyForLastC2dmTokenKey = KEY_PREFIX_LAST_C2DM_TOKEN + account.name;
         this.parameters = parameters;
@@ -189,11 +237,81 @@ final class Syncer {
         this.transceiver = new Transceiver(account, context);
     }
 
-    private void applyDirectives(final List<DirectiveData> directives) {
-        final DirectivesExecutor executor =
-                new DirectivesExecutor(this.context);
-        for (final DirectiveData directive : directives)
-            executor.execute(directive);
+    /**
+     * Applies the directives of a response that were not already applied, as
+     * a single batch, then saves the acknowledgements. The batch runs in the
+     * background, but is waited for: a directive acknowledged before being
+     * applied would be lost if the process was killed in between.
+     * 
+     * @param resp
+     *            A response from the server
+     */
+    private void applyDirectives(final GatewayResponseData resp) {
+        final ArrayList<DirectiveData> toApply =
+                new ArrayList<DirectiveData>(resp.getDirectiveCount());
+        final HashSet<DirectiveIdData> toAcknowledge =
+                new HashSet<DirectiveIdData>();
+        /* The forgotten creators may have new directives in this response */
+        this.acknowledgements.forget(resp.getCreatorIdsToForgetList());
+        for (final DirectiveData directive : resp.getDirectiveList()) {
+            if (directive.hasId()) {
+                if (this.acknowledgements.isAlreadyApplied(directive.getId())
+                    || !toAcknowledge.add(directive.getId()))
+                    continue;
+            }
+            toApply.add(directive);
+        }
+        if (!toApply.isEmpty())
+            try {
+                this.directivesExecutor.executeAll(toApply).get();
+            }
+            catch (final InterruptedException e) {
+                /* The sync was canceled, the directives will be sent again */
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (final ExecutionException e) {
+                if (Log.isLoggable(TAG, Log.ERROR))
+                    Log.e(TAG, "Failed applying directives", e.getCause());
+                return;
+            }
+        for (final DirectiveIdData id : toAcknowledge)
+            this.acknowledgements.markApplied(id);
+        this.acknowledgements.save();
+    }
+
+    /**
+     * Keeps asking the server for directives as long as it tells us that more
+     * are queued, and applies them.
+     * 
+     * @param firstResponse
+     *            The response whose directives have already been applied
+     * @throws IOException
+     * @throws OperationCanceledException
+     * @throws AuthenticatorException
+     * @see Transceiver#exchangeWithServer(GatewayRequestData)
+     */
+    private void fetchRemainingDirectives(
+            final GatewayResponseData firstResponse) throws IOException,
+            OperationCanceledException, AuthenticatorException {
+        GatewayResponseData resp = firstResponse;
+        for (int page = 1; page < MAX_DIRECTIVES_PAGES_PER_SYNC; page++) {
+            final String cursor = this.requestMaker.findDirectivesCursor(resp);
+            if (cursor == null)
+                return;
+            final GatewayRequestData request =
+                    GatewayRequestData
+                            .newBuilder()
+                            .addGetDeviceDirectives(
+                                    this.requestMaker.makeGetDirectivesData(
+                                            cursor, this.acknowledgements
+                                                    .makeAcknowledgements()))
+                            .build();
+            resp = this.transceiver.exchangeWithServer(request);
+            if (resp == null)
+                return;
+            applyDirectives(resp);
+        }
     }
 
     /**
@@ -233,6 +351,40 @@ final class Syncer {
             return false;
     }
 
+    /**
+     * Keeps a long poll open with the server, applying the directives as soon
+     * as they are queued, for {@value #LONG_POLL_DURATION_MS} ms or until the
+     * synchronization is canceled. This spares the delay of C2DM, for as long
+     * as the device can afford to keep a connection open.
+     * 
+     * @throws IOException
+     * @throws OperationCanceledException
+     * @throws AuthenticatorException
+     * @see Transceiver#longPollServer(GatewayRequestData)
+     */
+    private void longPollDirectives() throws IOException,
+            OperationCanceledException, AuthenticatorException {
+        final long deadlineMs =
+                System.currentTimeMillis() + LONG_POLL_DURATION_MS;
+        while (System.currentTimeMillis() < deadlineMs
+            && !Thread.currentThread().isInterrupted()) {
+            final GatewayRequestData request =
+                    GatewayRequestData
+                            .newBuilder()
+                            .addGetDeviceDirectives(
+                                    this.requestMaker.makeGetDirectivesData(
+                                            null, this.acknowledgements
+                                                    .makeAcknowledgements()))
+                            .build();
+            final GatewayResponseData resp =
+                    this.transceiver.longPollServer(request);
+            if (resp == null)
+                return;
+            applyDirectives(resp);
+            fetchRemainingDirectives(resp);
+        }
+    }
+
     /**
      * Logs the message as an error, displays it if the synchronization is
      * manual
@@ -258,6 +410,15 @@ final class Syncer {
         }
     }
 
+    /**
+     * Registers the device and fetches its directives with a single request.
+     * When the SACSID token is valid, that is a single round trip, unless
+     * more directives than fit in a response are queued, or unless
+     * {@link SynchronizationParameters#getLongPoll()} asks to keep polling.
+     * 
+     * @param syncResult
+     *            Where the errors are counted
+     */
     public void performSynchronization(final SyncResult syncResult) {
         final boolean newLocalData = localDataChangedSinceLastSync();
         final boolean uploadOnly = this.parameters.getUploadOnly();
@@ -295,10 +456,17 @@ final class Syncer {
         }
         else
             requestBuilder.addGetDeviceDirectives(this.requestMaker
-                    .makeGetDirectivesData());
+                    .makeGetDirectivesData(null,
+                            this.acknowledgements.makeAcknowledgements()));
 
         try {
             resp = this.transceiver.exchangeWithServer(requestBuilder.build());
+            if (resp != null) {
+                applyDirectives(resp);
+                fetchRemainingDirectives(resp);
+                if (!uploadOnly && this.parameters.getLongPoll())
+                    longPollDirectives();
+            }
         }
         catch (final OperationCanceledException e) {
             if (Log.isLoggable(TAG, Log.DEBUG))
@@ -320,13 +488,12 @@ final class Syncer {
             syncResult.stats.numIoExceptions++;
             return;
         }
-        if (resp != null)
-            applyDirectives(resp.getDirectiveList());
         if (c2dmToken != null)
             setLastSentC2dmToken(c2dmToken);
         setLastSyncTimeToNow();
         if (Log.isLoggable(TAG, Log.INFO))
-            Log.i(TAG, "Synced: " + this.account.name);
+            Log.i(TAG, "Synced: " + this.account.name + " in "
+                + this.transceiver.getRoundTrips() + " round trips");
     }
 
     /**
@@ -74,6 +74,22 @@ public final class SynchronizationControler {
         requestSynchronization(context, false);
     }
 
+    /**
+     * Triggers a synchronization which then keeps a long poll open with the
+     * server for a few minutes, so that the directives are applied without
+     * waiting for C2DM
+     */
+    public static void
+            requestLongPollingSynchronization(final Context context) {
+        final Syncer.SynchronizationParameters bundle =
+                new Syncer.SynchronizationParameters();
+        bundle.setExpeditedSync(true);
+        bundle.setLongPoll(true);
+        for (final Account account : Transceiver.listGoogleAccounts(context))
+            ContentResolver.requestSync(account, Config.SYNC_AUTHORITY,
+                    bundle.getBundle());
+    }
+
     /** Triggers a synchronization if an account exists for this account */
     private static void requestSynchronization(final Context context,
             final boolean uploadOnly) {
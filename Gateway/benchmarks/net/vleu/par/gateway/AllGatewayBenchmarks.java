@@ -0,0 +1,120 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import net.vleu.par.gateway.BenchmarkRunner.Result;
+import net.vleu.par.gateway.datastore.DirectiveEntityBenchmarks;
+
+/**
+ * Runs all the benchmarks of the Gateway, from the Gateway directory so that
+ * war/WEB-INF/queue.xml is found. The arguments are:
+ * <ul>
+ * <li>--filter=TEXT: only runs the benchmarks whose name contains TEXT</li>
+ * <li>--save=FILE: saves the results, to be used as a baseline later</li>
+ * <li>--baseline=FILE: compares the results with a saved baseline, and exits
+ * with status 1 if a benchmark got slower than tolerated</li>
+ * <li>--tolerance=RATIO: how much slower than the baseline a benchmark can
+ * be, {@value #DEFAULT_TOLERANCE} by default</li>
+ * <li>--quick: shortens the warm-up and the rounds, for smoke tests</li>
+ * </ul>
+ */
+public final class AllGatewayBenchmarks {
+    /** How much slower than the baseline a benchmark can be, by default */
+    public static final double DEFAULT_TOLERANCE = 0.25;
+
+    /**
+     * @return All the benchmarks of the Gateway
+     * @throws IOException
+     *             If a benchmark could not prepare its data
+     */
+    public static List<Benchmark> all() throws IOException {
+        final ArrayList<Benchmark> res = new ArrayList<Benchmark>();
+        res.addAll(ApiServletBenchmarks.all());
+        res.addAll(Base64UrlCoderBenchmarks.all());
+        res.addAll(ModelsBenchmarks.all());
+        res.addAll(DirectiveEntityBenchmarks.all());
+        return res;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        String filter = "";
+        String baselinePath = null;
+        String savePath = null;
+        double tolerance = DEFAULT_TOLERANCE;
+        BenchmarkRunner runner = new BenchmarkRunner();
+        for (final String arg : args)
+            if (arg.startsWith("--filter="))
+                filter = arg.substring("--filter=".length());
+            else if (arg.startsWith("--baseline="))
+                baselinePath = arg.substring("--baseline=".length());
+            else if (arg.startsWith("--save="))
+                savePath = arg.substring("--save=".length());
+            else if (arg.startsWith("--tolerance="))
+                tolerance =
+                        Double.parseDouble(arg.substring("--tolerance="
+                                .length()));
+            else if (arg.equals("--quick"))
+                runner = new BenchmarkRunner(200, 50, 5);
+            else
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+
+        final ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final Benchmark benchmark : all())
+            if (benchmark.name.contains(filter))
+                benchmarks.add(benchmark);
+        final List<Result> results = runner.runAll(benchmarks, System.out);
+
+        if (savePath != null) {
+            final FileOutputStream out = new FileOutputStream(savePath);
+            try {
+                BenchmarkRunner.toProperties(results).store(out,
+                        "Nanoseconds per operation");
+            }
+            finally {
+                out.close();
+            }
+        }
+        if (baselinePath != null) {
+            final Properties baseline = new Properties();
+            final FileInputStream in = new FileInputStream(baselinePath);
+            try {
+                baseline.load(in);
+            }
+            finally {
+                in.close();
+            }
+            final List<String> regressions =
+                    BenchmarkRunner.findRegressions(results, baseline,
+                            tolerance);
+            for (final String regression : regressions)
+                System.err.println("Regression: " + regression);
+            if (!regressions.isEmpty())
+                System.exit(1);
+        }
+    }
+
+    /** This class only has static methods */
+    private AllGatewayBenchmarks() {
+    }
+}
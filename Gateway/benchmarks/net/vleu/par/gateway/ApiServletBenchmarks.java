@@ -0,0 +1,286 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.vleu.par.Config;
+import net.vleu.par.gateway.datastore.DeviceEntityTest;
+import net.vleu.par.gateway.datastore.DirectiveEntityTest;
+import net.vleu.par.models.UserIdTest;
+import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.GetDeviceDirectivesData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.QueueDirectiveData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.RegisterDeviceData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData.DeviceDescriptionData;
+import net.vleu.par.protocolbuffer.SchemaGatewayCommands;
+
+import com.dyuproject.protostuff.JsonIOUtil;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+/**
+ * Benchmarks the {@link ApiServlet}, from the bytes of the request to the
+ * bytes of the response, and the {@link Encapsulations} alone
+ */
+public final class ApiServletBenchmarks {
+    /**
+     * Decodes requests then encodes responses, without handling them, to
+     * compare the cost of the {@link Encapsulation}s
+     */
+    private static final class CodecBenchmark extends Benchmark {
+        private final Encapsulation encapsulation;
+        private final byte[] requestBytes;
+        private final List<GatewayResponseData> responses;
+        private final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        public CodecBenchmark(final Encapsulation encapsulation)
+                throws IOException {
+            super("Encapsulation." + encapsulation.getUrlSuffix()
+                + ".roundTrip");
+            this.encapsulation = encapsulation;
+            this.requestBytes =
+                    encodeRequests(encapsulation, Arrays.asList(
+                            buildRegisterRequest(), buildQueueAndGetRequest()));
+            this.responses =
+                    Arrays.asList(buildDummyResponse(), buildDummyResponse());
+        }
+
+        @Override
+        public Object run() throws Exception {
+            final ArrayList<String> errors = new ArrayList<String>(0);
+            final List<GatewayRequestData> requests =
+                    this.encapsulation.parseRequests(new ByteArrayInputStream(
+                            this.requestBytes), ApiServlet.MAX_COMMAND_SIZE,
+                            errors);
+            if (requests == null)
+                throw new IllegalStateException(errors.toString());
+            this.sink.reset();
+            this.encapsulation.writeResponses(
+                    this.responses.subList(0, requests.size()), this.sink);
+            return requests;
+        }
+    }
+
+    /**
+     * Parses, checks and handles a request queueing directives then reading
+     * them back, and serializes the response. The directives are stored with
+     * the same ids at each run and acknowledged in the same request, so the
+     * datastore does not grow.
+     */
+    private static final class DoPostBenchmark extends Benchmark {
+        private final Encapsulation encapsulation;
+        private final LocalServiceTestHelper helper =
+                new LocalServiceTestHelper(
+                        new LocalDatastoreServiceTestConfig()
+                                .setStoreDelayMs(0),
+                        new LocalMemcacheServiceTestConfig(),
+                        new LocalTaskQueueTestConfig()
+                                .setDisableAutoTaskExecution(true)
+                                .setQueueXmlPath(QUEUE_XML_PATH));
+        private final byte[] requestBytes;
+        private ApiServlet servlet;
+        private final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        public DoPostBenchmark(final Encapsulation encapsulation)
+                throws IOException {
+            super("ApiServlet.doPostExceptIOs." + encapsulation.getUrlSuffix());
+            this.encapsulation = encapsulation;
+            this.requestBytes =
+                    encodeRequests(encapsulation,
+                            Arrays.asList(buildQueueAndGetRequest()));
+        }
+
+        /**
+         * Handles a single serialized request
+         * 
+         * @return The serialized response
+         */
+        private Object handle(final byte[] requestBytes) throws Exception {
+            final ArrayList<String> errors = new ArrayList<String>(0);
+            final List<GatewayRequestData> requests =
+                    this.encapsulation.parseRequests(new ByteArrayInputStream(
+                            requestBytes), ApiServlet.MAX_COMMAND_SIZE, errors);
+            if (requests == null)
+                throw new IllegalStateException(errors.toString());
+            final ArrayList<GatewayResponseData> responses =
+                    new ArrayList<GatewayResponseData>(requests.size());
+            for (final GatewayRequestData request : requests) {
+                final GatewayResponseData.Builder responseBuilder =
+                        GatewayResponseData.newBuilder();
+                final Object error =
+                        this.servlet.doPostExceptIOs(
+                                UserIdTest.DUMMY_USER_ID, request, errors,
+                                responseBuilder);
+                if (error != null)
+                    throw new IllegalStateException("Request rejected: "
+                        + errors);
+                responses.add(responseBuilder.build());
+            }
+            this.sink.reset();
+            this.encapsulation.writeResponses(responses, this.sink);
+            return this.sink.toByteArray();
+        }
+
+        @Override
+        public Object run() throws Exception {
+            return handle(this.requestBytes);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            this.helper.setUp();
+            this.servlet =
+                    new ApiServlet(new DirectiveStore(), new DeviceRegistrar(),
+                            new DeviceWaker(), new DirectivesSignal(),
+                            new ServletHelper());
+            handle(encodeRequests(this.encapsulation,
+                    Arrays.asList(buildRegisterRequest())));
+        }
+
+        @Override
+        public void tearDown() {
+            this.helper.tearDown();
+        }
+    }
+
+    /** How many directives are queued by each benchmarked request */
+    public static final int DIRECTIVES_PER_REQUEST = 10;
+
+    /** The creator of the directives queued by the benchmarks */
+    private static final long DUMMY_CREATOR_ID = 42;
+
+    /** Relative to the Gateway directory */
+    private static final String QUEUE_XML_PATH = "war/WEB-INF/queue.xml";
+
+    /**
+     * @return The benchmarks of this class, for all the standard
+     *         {@link Encapsulations}
+     * @throws IOException
+     *             If the requests could not be serialized
+     */
+    public static List<Benchmark> all() throws IOException {
+        final ArrayList<Benchmark> res = new ArrayList<Benchmark>();
+        for (final Encapsulation encapsulation : Arrays.asList(
+                Encapsulations.JSON, Encapsulations.PROTOBUFF,
+                Encapsulations.PROTOBUFF_STREAM)) {
+            res.add(new DoPostBenchmark(encapsulation));
+            res.add(new CodecBenchmark(encapsulation));
+        }
+        return res;
+    }
+
+    /** @return A response like those sent to a device draining directives */
+    private static GatewayResponseData buildDummyResponse() {
+        final GatewayResponseData.Builder res =
+                GatewayResponseData.newBuilder();
+        for (int n = 0; n < DIRECTIVES_PER_REQUEST; n++)
+            res.addDirective(DirectiveEntityTest.DUMMY_DIRECTIVE
+                    .asProtocolBuffer());
+        res.addDeviceDescriptions(DeviceDescriptionData.newBuilder()
+                .setDeviceId(DeviceEntityTest.DUMMY_DEVICE_ID.value)
+                .setFriendlyName(DeviceEntityTest.DUMMY_DEVICE_NAME.value));
+        return res.build();
+    }
+
+    /**
+     * @return A request queueing {@value #DIRECTIVES_PER_REQUEST} directives,
+     *         then fetching and acknowledging them all
+     */
+    static GatewayRequestData buildQueueAndGetRequest() {
+        final GatewayRequestData.Builder res = GatewayRequestData.newBuilder();
+        for (int n = 1; n <= DIRECTIVES_PER_REQUEST; n++) {
+            final DirectiveData.Builder directive =
+                    DirectiveData.newBuilder(DirectiveEntityTest.DUMMY_DIRECTIVE
+                            .asProtocolBuffer());
+            directive.setId(DirectiveIdData.newBuilder()
+                    .setCreatorId(DUMMY_CREATOR_ID).setTimestamp(n));
+            res.addQueueDirective(QueueDirectiveData.newBuilder()
+                    .setDeviceId(DeviceEntityTest.DUMMY_DEVICE_ID.value)
+                    .setDirective(directive));
+        }
+        res.addGetDeviceDirectives(GetDeviceDirectivesData
+                .newBuilder()
+                .setDeviceId(DeviceEntityTest.DUMMY_DEVICE_ID.value)
+                .addAcknowledgements(
+                        DirectiveIdData.newBuilder()
+                                .setCreatorId(DUMMY_CREATOR_ID)
+                                .setTimestamp(DIRECTIVES_PER_REQUEST)));
+        return res.build();
+    }
+
+    /** @return A request registering the device the directives are sent to */
+    static GatewayRequestData buildRegisterRequest() {
+        return GatewayRequestData
+                .newBuilder()
+                .addRegisterDevice(
+                        RegisterDeviceData
+                                .newBuilder()
+                                .setDeviceId(
+                                        DeviceEntityTest.DUMMY_DEVICE_ID.value)
+                                .setFriendlyName(
+                                        DeviceEntityTest.DUMMY_DEVICE_NAME.value))
+                .build();
+    }
+
+    /**
+     * Serializes requests as a client would
+     * 
+     * @param encapsulation
+     *            One of the standard {@link Encapsulations}
+     * @param requests
+     *            Several requests are only supported by
+     *            {@link Encapsulations#PROTOBUFF_STREAM}, the others only
+     *            keep the last one
+     * @return The body of the HTTP request
+     * @throws IOException
+     *             If the serialization failed
+     */
+    static byte[] encodeRequests(final Encapsulation encapsulation,
+            final List<GatewayRequestData> requests) throws IOException {
+        final GatewayRequestData last = requests.get(requests.size() - 1);
+        if (encapsulation == Encapsulations.JSON)
+            return JsonIOUtil.toByteArray(last,
+                    SchemaGatewayCommands.GatewayRequestData.WRITE,
+                    Config.SERVER_RPC_JSON_NUMERIC);
+        else if (encapsulation == Encapsulations.PROTOBUFF)
+            return last.toByteArray();
+        else if (encapsulation == Encapsulations.PROTOBUFF_STREAM) {
+            final ByteArrayOutputStream res = new ByteArrayOutputStream();
+            for (final GatewayRequestData request : requests)
+                request.writeDelimitedTo(res);
+            return res.toByteArray();
+        }
+        else
+            throw new IllegalArgumentException("Unknown encapsulation: "
+                + encapsulation.getUrlSuffix());
+    }
+
+    /** This class only has static methods */
+    private ApiServletBenchmarks() {
+    }
+}
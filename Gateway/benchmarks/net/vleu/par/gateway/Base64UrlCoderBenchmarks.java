@@ -0,0 +1,101 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import net.vleu.par.gateway.datastore.DeviceEntityTest;
+import biz.source_code.base64Coder.Base64UrlCoder;
+
+/**
+ * Compares the allocating API of {@link Base64UrlCoder} with the ones
+ * writing into caller-supplied buffers, on data the size of a DeviceId
+ */
+public final class Base64UrlCoderBenchmarks {
+    /** The encoding of a typical DeviceId */
+    private static final String ENCODED =
+            DeviceEntityTest.DUMMY_DEVICE_ID.value;
+
+    /** The bytes of a typical DeviceId */
+    private static final byte[] DECODED = Base64UrlCoder.decode(ENCODED);
+
+    /**
+     * @return The benchmarks of this class
+     */
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Benchmark("Base64UrlCoder.encode") {
+            @Override
+            public Object run() {
+                return new String(Base64UrlCoder.encode(DECODED));
+            }
+        }, new Benchmark("Base64UrlCoder.encode(char[])") {
+            private final char[] out = new char[Base64UrlCoder
+                    .encodedLength(DECODED.length)];
+
+            @Override
+            public Object run() {
+                Base64UrlCoder.encode(DECODED, 0, DECODED.length, this.out, 0);
+                return this.out;
+            }
+        }, new Benchmark("Base64UrlCoder.encode(ByteBuffer)") {
+            private final ByteBuffer in = ByteBuffer.wrap(DECODED);
+            private final ByteBuffer out = ByteBuffer
+                    .allocateDirect(Base64UrlCoder
+                            .encodedLength(DECODED.length));
+
+            @Override
+            public Object run() {
+                this.in.rewind();
+                this.out.clear();
+                Base64UrlCoder.encode(this.in, this.out);
+                return this.out;
+            }
+        }, new Benchmark("Base64UrlCoder.decode") {
+            @Override
+            public Object run() {
+                return Base64UrlCoder.decode(ENCODED);
+            }
+        }, new Benchmark("Base64UrlCoder.decode(byte[])") {
+            private final byte[] out = new byte[DECODED.length];
+
+            @Override
+            public Object run() {
+                Base64UrlCoder.decode(ENCODED, 0, ENCODED.length(), this.out,
+                        0);
+                return this.out;
+            }
+        }, new Benchmark("Base64UrlCoder.decode(ByteBuffer)") {
+            private final ByteBuffer in = ByteBuffer.wrap(ENCODED.getBytes());
+            private final ByteBuffer out = ByteBuffer
+                    .allocateDirect(DECODED.length);
+
+            @Override
+            public Object run() {
+                this.in.rewind();
+                this.out.clear();
+                Base64UrlCoder.decode(this.in, this.out);
+                return this.out;
+            }
+        });
+    }
+
+    /** This class only has static methods */
+    private Base64UrlCoderBenchmarks() {
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * A piece of code whose speed is measured by the {@link BenchmarkRunner}.
+ * The runner calls {@link #setUp()}, then {@link #run()} many times in a row
+ * from a single thread, then {@link #tearDown()}.
+ */
+@NotThreadSafe
+public abstract class Benchmark {
+    /** Identifies the benchmark in the reports and the baselines */
+    public final String name;
+
+    /**
+     * @param name
+     *            Identifies the benchmark in the reports and the baselines, it
+     *            must be unique and must not contain '='
+     */
+    protected Benchmark(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Runs the measured operation once
+     * 
+     * @return Anything computed by the operation. It is consumed by the
+     *         runner, so that the JIT cannot optimize the operation away.
+     * @throws Exception
+     *             Aborts the benchmark
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Called once before the first call to {@link #run()}, does nothing by
+     * default
+     * 
+     * @throws Exception
+     *             Aborts the benchmark
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Called once after the last call to {@link #run()}, even if it failed.
+     * Does nothing by default.
+     * 
+     * @throws Exception
+     *             Aborts the benchmark
+     */
+    public void tearDown() throws Exception {
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
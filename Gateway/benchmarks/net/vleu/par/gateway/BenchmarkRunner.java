@@ -0,0 +1,236 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Measures {@link Benchmark}s: each one is warmed up, so that the JIT
+ * compiles it, then timed over several rounds. The median round is kept, as
+ * it is the least sensitive to the garbage collector and to the noise of the
+ * machine.
+ */
+@NotThreadSafe
+public final class BenchmarkRunner {
+    /** The outcome of a {@link Benchmark} */
+    @Immutable
+    public static final class Result {
+        /** As per {@link Benchmark#name} */
+        public final String name;
+        /** Of the median round */
+        public final double nanosPerOperation;
+        /** How many operations were timed, warm-up excluded */
+        public final long operations;
+        /** Standard deviation of the rounds, divided by their mean */
+        public final double relativeDeviation;
+
+        public Result(final String name, final double nanosPerOperation,
+                final double relativeDeviation, final long operations) {
+            this.name = name;
+            this.nanosPerOperation = nanosPerOperation;
+            this.relativeDeviation = relativeDeviation;
+            this.operations = operations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s %12.1f ns/op  ±%5.1f%%  (%d ops)",
+                    this.name, this.nanosPerOperation,
+                    this.relativeDeviation * 100, this.operations);
+        }
+    }
+
+    /** Default duration of each timed round */
+    public static final long DEFAULT_ROUND_MILLIS = 500;
+
+    /** Default number of timed rounds */
+    public static final int DEFAULT_ROUNDS = 10;
+
+    /** Default duration of the warm-up, before the timed rounds */
+    public static final long DEFAULT_WARM_UP_MILLIS = 2000;
+
+    /**
+     * Everything returned by {@link Benchmark#run()} ends up mixed in it, so
+     * that the JIT cannot prove the results useless
+     */
+    private static volatile int consumed;
+
+    /**
+     * Compares results with a baseline
+     * 
+     * @param results
+     *            The results to check
+     * @param baseline
+     *            As returned by {@link #toProperties(List)} for an earlier
+     *            run, the benchmarks missing from it are ignored
+     * @param tolerance
+     *            How much slower than the baseline a benchmark can be, 0.2
+     *            meaning 20%
+     * @return A description of each benchmark slower than tolerated, empty if
+     *         there are none
+     */
+    public static List<String> findRegressions(final List<Result> results,
+            final Properties baseline, final double tolerance) {
+        final ArrayList<String> res = new ArrayList<String>();
+        for (final Result result : results) {
+            final String baselineStr = baseline.getProperty(result.name);
+            if (baselineStr == null)
+                continue;
+            final double baselineNanos = Double.parseDouble(baselineStr);
+            if (result.nanosPerOperation > baselineNanos * (1 + tolerance))
+                res.add(String.format("%s: %.1f ns/op, was %.1f ns/op",
+                        result.name, result.nanosPerOperation, baselineNanos));
+        }
+        return res;
+    }
+
+    /**
+     * @param results
+     *            The results to save
+     * @return The nanoseconds per operation of each result, by name
+     */
+    public static Properties toProperties(final List<Result> results) {
+        final Properties res = new Properties();
+        for (final Result result : results)
+            res.setProperty(result.name,
+                    Double.toString(result.nanosPerOperation));
+        return res;
+    }
+
+    private final long roundMillis;
+
+    private final int rounds;
+
+    private final long warmUpMillis;
+
+    public BenchmarkRunner() {
+        this(DEFAULT_WARM_UP_MILLIS, DEFAULT_ROUND_MILLIS, DEFAULT_ROUNDS);
+    }
+
+    /**
+     * @param warmUpMillis
+     *            How long each benchmark runs before being timed
+     * @param roundMillis
+     *            Approximate duration of each timed round
+     * @param rounds
+     *            How many rounds are timed, at least 1
+     */
+    public BenchmarkRunner(final long warmUpMillis, final long roundMillis,
+            final int rounds) {
+        if (rounds < 1)
+            throw new IllegalArgumentException("Invalid rounds: " + rounds);
+        this.warmUpMillis = warmUpMillis;
+        this.roundMillis = roundMillis;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Calls {@link Benchmark#run()} the given number of times
+     * 
+     * @return The time it took, in nanoseconds
+     */
+    private long runBatch(final Benchmark benchmark, final long operations)
+            throws Exception {
+        int mixed = 0;
+        final long start = System.nanoTime();
+        for (long n = 0; n < operations; n++)
+            mixed ^= System.identityHashCode(benchmark.run());
+        final long elapsed = System.nanoTime() - start;
+        consumed ^= mixed;
+        return elapsed;
+    }
+
+    /**
+     * Warms up then times a benchmark
+     * 
+     * @param benchmark
+     *            The benchmark to measure
+     * @return Its result
+     * @throws Exception
+     *             If the benchmark failed
+     */
+    public Result run(final Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            /* Warms up, doubling the batches until the warm-up is over */
+            long batch = 1;
+            long warmUpOperations = 0;
+            long warmUpNanos = 0;
+            while (warmUpNanos < this.warmUpMillis * 1000000) {
+                warmUpNanos += runBatch(benchmark, batch);
+                warmUpOperations += batch;
+                batch *= 2;
+            }
+            /* Sizes the rounds after the warm-up */
+            final double estimatedNanos =
+                    (double) warmUpNanos / warmUpOperations;
+            final long operationsPerRound =
+                    Math.max(1, (long) (this.roundMillis * 1000000
+                        / estimatedNanos));
+            final double[] samples = new double[this.rounds];
+            double sum = 0;
+            for (int round = 0; round < this.rounds; round++) {
+                samples[round] =
+                        (double) runBatch(benchmark, operationsPerRound)
+                            / operationsPerRound;
+                sum += samples[round];
+            }
+            final double mean = sum / this.rounds;
+            double squares = 0;
+            for (final double sample : samples)
+                squares += (sample - mean) * (sample - mean);
+            Arrays.sort(samples);
+            return new Result(benchmark.name, samples[this.rounds / 2],
+                    Math.sqrt(squares / this.rounds) / mean,
+                    operationsPerRound * this.rounds);
+        }
+        finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * Runs benchmarks one after the other, printing each result as soon as
+     * it is known
+     * 
+     * @param benchmarks
+     *            The benchmarks to run
+     * @param report
+     *            Where to print the results
+     * @return The results, in the same order
+     * @throws Exception
+     *             If a benchmark failed
+     */
+    public List<Result> runAll(final List<Benchmark> benchmarks,
+            final PrintStream report) throws Exception {
+        final ArrayList<Result> res =
+                new ArrayList<Result>(benchmarks.size());
+        for (final Benchmark benchmark : benchmarks) {
+            final Result result = run(benchmark);
+            report.println(result);
+            res.add(result);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.vleu.par.gateway.datastore.DeviceEntityTest;
+import net.vleu.par.gateway.datastore.DirectiveEntityTest;
+import net.vleu.par.models.DeviceId;
+import net.vleu.par.models.Directive;
+import net.vleu.par.models.GatewayRequest;
+import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+
+/**
+ * Benchmarks the models shared with the clients, as used on the hot path of
+ * the {@link ApiServlet}
+ */
+public final class ModelsBenchmarks {
+    /**
+     * Has the length of a valid {@link DeviceId}, but is rejected by the
+     * Base64URL whitelist
+     */
+    private static final String INVALID_DEVICE_ID = "CTJ5BgAAAAA*";
+
+    /**
+     * @return The benchmarks of this class
+     */
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new Benchmark("Directive.asProtocolBufferBytes") {
+            private final DirectiveData proto =
+                    DirectiveEntityTest.DUMMY_DIRECTIVE.asProtocolBuffer();
+
+            @Override
+            public Object run() {
+                /* A new Directive each time, as they cache their bytes */
+                return new Directive(this.proto).asProtocolBufferBytes();
+            }
+        }, new Benchmark("Directive.hashCode") {
+            private final Directive directive =
+                    DirectiveEntityTest.DUMMY_DIRECTIVE;
+
+            @Override
+            public Object run() {
+                return this.directive.hashCode();
+            }
+        }, new Benchmark("DeviceId.isValidDeviceIdString") {
+            private final String valid = DeviceEntityTest.DUMMY_DEVICE_ID.value;
+
+            @Override
+            public Object run() {
+                return DeviceId.isValidDeviceIdString(this.valid)
+                    && !DeviceId.isValidDeviceIdString(INVALID_DEVICE_ID);
+            }
+        }, new Benchmark("GatewayRequest.isValid") {
+            private final GatewayRequestData request = ApiServletBenchmarks
+                    .buildQueueAndGetRequest();
+
+            @Override
+            public Object run() {
+                final ArrayList<String> errors = new ArrayList<String>(0);
+                if (!GatewayRequest.isValid(this.request, errors))
+                    throw new IllegalStateException(errors.toString());
+                return errors;
+            }
+        });
+    }
+
+    /** This class only has static methods */
+    private ModelsBenchmarks() {
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway.datastore;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.vleu.par.gateway.Benchmark;
+import net.vleu.par.models.UserIdTest;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Benchmarks the conversions between directives and {@link Entity}s, alone
+ * and through the local datastore
+ */
+public final class DirectiveEntityBenchmarks {
+    /** Sets up the local datastore around a benchmark */
+    private static abstract class DatastoreBenchmark extends Benchmark {
+        private final LocalServiceTestHelper helper =
+                new LocalServiceTestHelper(
+                        new LocalDatastoreServiceTestConfig()
+                                .setStoreDelayMs(0));
+
+        public DatastoreBenchmark(final String name) {
+            super(name);
+        }
+
+        @Override
+        public void setUp() {
+            this.helper.setUp();
+        }
+
+        @Override
+        public void tearDown() {
+            this.helper.tearDown();
+        }
+    }
+
+    /**
+     * @return The benchmarks of this class
+     */
+    public static List<Benchmark> all() {
+        return Arrays.<Benchmark> asList(new DatastoreBenchmark(
+                "DirectiveEntity.roundTrip") {
+            @Override
+            public Object run() throws Exception {
+                final Entity entity =
+                        DirectiveEntity.entityFromDirective(
+                                UserIdTest.DUMMY_USER_ID,
+                                DeviceEntityTest.DUMMY_DEVICE_ID,
+                                DirectiveEntityTest.DUMMY_DIRECTIVE);
+                return DirectiveEntity.directiveFromEntity(entity);
+            }
+        }, new DatastoreBenchmark("DirectiveEntity.datastoreRoundTrip") {
+            @Override
+            public Object run() throws Exception {
+                final DatastoreService datastore =
+                        ThreadLocalDatastoreService.getSingleton().get();
+                final Entity entity =
+                        DirectiveEntity.entityFromDirective(
+                                UserIdTest.DUMMY_USER_ID,
+                                DeviceEntityTest.DUMMY_DEVICE_ID,
+                                DirectiveEntityTest.DUMMY_DIRECTIVE);
+                datastore.put(entity);
+                final Entity read = datastore.get(entity.getKey());
+                datastore.delete(entity.getKey());
+                return DirectiveEntity.directiveFromEntity(read);
+            }
+        });
+    }
+
+    /** This class only has static methods */
+    private DirectiveEntityBenchmarks() {
+    }
+}
@@ -17,28 +17,35 @@
 package net.vleu.par.gateway;
 
 import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
-import javax.servlet.ServletInputStream;
-import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.jcip.annotations.ThreadSafe;
 import net.vleu.par.C2dmToken;
-import net.vleu.par.Config;
 import net.vleu.par.DeviceName;
+import net.vleu.par.gateway.DirectiveStore.DirectivesPage;
+import net.vleu.par.gateway.DirectiveStore.PageCursor;
 import net.vleu.par.gateway.datastore.TooManyConcurrentAccesses;
+import net.vleu.par.gateway.datastore.TransactionHelper;
 import net.vleu.par.models.Device;
 import net.vleu.par.models.DeviceId;
 import net.vleu.par.models.Directive;
 import net.vleu.par.models.GatewayRequest;
 import net.vleu.par.models.UserId;
 import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.EnumerateDevicesData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.GetDeviceDirectivesData;
@@ -46,10 +53,10 @@ import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.QueueDirec
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.RegisterDeviceData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData.DeviceDescriptionData;
-import net.vleu.par.protocolbuffer.SchemaGatewayCommands;
-
-import com.dyuproject.protostuff.JsonIOUtil;
-import com.google.protobuf.InvalidProtocolBufferException;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData.DirectivesCursorData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData.ErrorData;
+import net.vleu.par.utils.BoundedInputStream;
+import net.vleu.par.utils.BoundedInputStream.SizeLimitExceeded;
 
 @ThreadSafe
 @SuppressWarnings("serial")
@@ -86,14 +93,10 @@ public final class ApiServlet extends HttpServlet {
         }
     }
 
-    private static enum Encapsulation {
-        JSON, PROTOBUFF
-    }
-
     /**
      * Thrown when a request is discovered to be invalid after the point where
      * it should have been checked by
-     * {@link GatewayRequest#isValid(GatewayRequestData, ArrayList)}
+     * {@link GatewayRequest#validate(GatewayRequestData, ArrayList)}
      */
     public static class InvalidRequestPassedVerification extends Exception {
 
@@ -106,17 +109,108 @@ public final class ApiServlet extends HttpServlet {
     }
 
     private class RequestHandler implements GatewayRequest.ThrowingVisitor {
+        /**
+         * The creator id given to the directives of this request that came
+         * without a {@link DirectiveIdData}, 0 until one is needed
+         */
+        private long anonymousCreatorId = 0;
+        /** The last timestamp given along with {@link #anonymousCreatorId} */
+        private int anonymousCreatorTimestamp = 0;
+        /**
+         * Directives that have been visited but not yet stored, grouped by
+         * device. They are stored by {@link #flushQueuedDirectives()}.
+         */
+        private final LinkedHashMap<DeviceId, List<Directive>> queuedDirectives =
+                new LinkedHashMap<DeviceId, List<Directive>>();
+        /** The request being handled, it holds its checked DeviceIds */
+        final GatewayRequest request;
         final GatewayResponseData.Builder resp;
         final UserId userId;
 
-        public RequestHandler(final GatewayResponseData.Builder resp,
-                final UserId userId) {
+        public RequestHandler(final GatewayRequest request,
+                final GatewayResponseData.Builder resp, final UserId userId) {
+            this.request = request;
             this.userId = userId;
             this.resp = resp;
         }
 
+        /**
+         * @param deviceIdStr
+         *            A DeviceId found in {@link #request}
+         * @return The {@link DeviceId} built when the request was checked
+         * @throws InvalidRequestPassedVerification
+         *             If it was not checked and turns out to be invalid
+         */
+        private DeviceId checkOrThrowInvalidRequestPassedVerification(
+                final String deviceIdStr)
+                throws InvalidRequestPassedVerification {
+            final DeviceId res = this.request.getValidDeviceId(deviceIdStr);
+            if (res != null)
+                return res;
+            else if (DeviceId.isValidDeviceIdString(deviceIdStr))
+                return new DeviceId(deviceIdStr);
+            else
+                throw new InvalidRequestPassedVerification(
+                        "Invalid DeviceId: " + deviceIdStr);
+        }
+
+        /**
+         * Gives a {@link DirectiveIdData} to directives that come without one,
+         * so that the device can acknowledge them. The gateway then acts as
+         * their creator, with a fresh creator id for each request: all the
+         * directives of a request being stored together, the device cannot
+         * acknowledge one of them before the others are stored.
+         * 
+         * @param directiveData
+         *            The directive as sent by the user
+         * @return The directive, with an id
+         */
+        private DirectiveData withDirectiveId(final DirectiveData directiveData) {
+            if (directiveData.hasId())
+                return directiveData;
+            while (this.anonymousCreatorId == 0)
+                this.anonymousCreatorId = CREATOR_IDS_GENERATOR.nextLong();
+            this.anonymousCreatorTimestamp++;
+            final DirectiveIdData.Builder id = DirectiveIdData.newBuilder();
+            id.setCreatorId(this.anonymousCreatorId);
+            id.setTimestamp(this.anonymousCreatorTimestamp);
+            return DirectiveData.newBuilder(directiveData).setId(id).build();
+        }
+
+        /**
+         * Stores the directives visited so far with a single batch, wakes
+         * up the requests long-polling for them, then queues the wake-ups of
+         * all the devices with another batch. It must be called after
+         * visiting the whole request.
+         * 
+         * @throws TooManyConcurrentAccesses
+         *             If the datastore was too busy to store the directives,
+         *             the devices whose directives were partly stored are
+         *             still woken up
+         */
+        public void flushQueuedDirectives() throws TooManyConcurrentAccesses {
+            if (this.queuedDirectives.isEmpty())
+                return;
+            final ArrayList<DeviceId> storedDeviceIds =
+                    new ArrayList<DeviceId>(this.queuedDirectives.size());
+            try {
+                ApiServlet.this.directiveStore.storeAll(this.userId,
+                        this.queuedDirectives, storedDeviceIds);
+            }
+            finally {
+                if (!storedDeviceIds.isEmpty()) {
+                    ApiServlet.this.directivesSignal.signal(this.userId,
+                            storedDeviceIds);
+                    ApiServlet.this.deviceWaker.queueWakes(this.userId,
+                            storedDeviceIds);
+                }
+            }
+            this.queuedDirectives.clear();
+        }
+
         @Override
         public void visit(final EnumerateDevicesData data) throws Exception {
+            flushQueuedDirectives();
             final ArrayList<Device> deviceList =
                     ApiServlet.this.deviceRegistrar
                             .enumerateOwnedDevices(this.userId);
@@ -133,35 +227,61 @@ public final class ApiServlet extends HttpServlet {
         public void visit(final GetDeviceDirectivesData req)
                 throws InvalidRequestPassedVerification,
                 TooManyConcurrentAccesses {
+            flushQueuedDirectives();
             final DeviceId deviceId =
                     checkOrThrowInvalidRequestPassedVerification(req
                             .getDeviceId());
-            final ArrayList<Directive> directives =
-                    ApiServlet.this.directiveStore.fetchAndDelete(this.userId,
-                            deviceId);
-            for (final Directive directive : directives)
-                this.resp.addDirective(directive.asProtocolBuffer());
-
+            final PageCursor startCursor;
+            if (req.hasCursor())
+                try {
+                    startCursor =
+                            PageCursor.fromWebSafeString(req.getCursor());
+                }
+                catch (final IllegalArgumentException e) {
+                    throw new InvalidRequestPassedVerification(
+                            "Invalid cursor: " + req.getCursor());
+                }
+            else
+                startCursor = null;
+            final DirectivesPage page =
+                    ApiServlet.this.directiveStore.fetch(this.userId, deviceId,
+                            req.getAcknowledgementsList(), startCursor,
+                            DirectiveStore.MAX_DIRECTIVES_PER_PAGE);
+            PassThroughDirectives.add(this.resp, page.directives);
+            for (final Long creatorId : page.creatorIdsToForget)
+                this.resp.addCreatorIdsToForget(creatorId);
+            if (page.cursor != null) {
+                final DirectivesCursorData.Builder cursorProto =
+                        DirectivesCursorData.newBuilder();
+                cursorProto.setDeviceId(deviceId.value);
+                cursorProto.setCursor(page.cursor.toWebSafeString());
+                this.resp.addDirectivesCursor(cursorProto);
+            }
         }
 
         @Override
         public void visit(final QueueDirectiveData req)
-                throws InvalidRequestPassedVerification,
-                TooManyConcurrentAccesses {
-            final DirectiveData directiveData = req.getDirective();
+                throws InvalidRequestPassedVerification {
+            final DirectiveData directiveData =
+                    withDirectiveId(req.getDirective());
             final Directive directive = new Directive(directiveData);
             final DeviceId deviceId =
                     checkOrThrowInvalidRequestPassedVerification(req
                             .getDeviceId());
-            ApiServlet.this.directiveStore.store(this.userId, deviceId,
-                    directive);
-            ApiServlet.this.deviceWaker.queueWake(this.userId, deviceId);
-
+            List<Directive> deviceDirectives =
+                    this.queuedDirectives.get(deviceId);
+            if (deviceDirectives == null) {
+                deviceDirectives = new ArrayList<Directive>();
+                this.queuedDirectives.put(deviceId, deviceDirectives);
+            }
+            deviceDirectives.add(directive);
         }
 
         @Override
         public void visit(final RegisterDeviceData req)
-                throws InvalidRequestPassedVerification {
+                throws InvalidRequestPassedVerification,
+                TooManyConcurrentAccesses {
+            flushQueuedDirectives();
             final DeviceId deviceId =
                     checkOrThrowInvalidRequestPassedVerification(req
                             .getDeviceId());
@@ -177,118 +297,159 @@ public final class ApiServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Generates the creator ids for the directives that come without a
+     * {@link DirectiveIdData}, see {@link RequestHandler}
+     */
+    private static final Random CREATOR_IDS_GENERATOR = new SecureRandom();
+
+    /**
+     * Name of the servlet init-parameter telling whether responses may be
+     * compressed for the clients that accept it, "true" or "false"
+     */
+    public static final String GZIP_RESPONSES_INIT_PARAM = "gzipResponses";
+
+    /**
+     * Responses whose Protocol Buffer serialization is smaller than this
+     * number of bytes are never compressed: the gzip header would eat most
+     * of the gain
+     */
+    static final int GZIP_MIN_RESPONSE_SIZE = 512;
+
     private static final Logger LOG = Logger.getLogger(ApiServlet.class
             .getName());
 
-    /** Maximal size in bytes for the serialized protocol buffers we accept */
-    public static final int MAX_COMMAND_SIZE = 1024;
+    /** Rejects the requests that are long-polled but may not be */
+    private static final DoPostError LONG_POLL_ERROR = new DoPostError(
+            Level.FINE, HttpCodes.HTTP_BAD_REQUEST_STATUS,
+            "Only GetDeviceDirectives can be long-polled");
 
-    private static DeviceId checkOrThrowInvalidRequestPassedVerification(
-            final String deviceIdStr) throws InvalidRequestPassedVerification {
-        if (DeviceId.isValidDeviceIdString(deviceIdStr))
-            return new DeviceId(deviceIdStr);
-        else
-            throw new InvalidRequestPassedVerification("Invalid DeviceId: "
-                + deviceIdStr);
-    }
+    /**
+     * Name of the servlet init-parameter telling for how many milliseconds a
+     * request made only of {@link GetDeviceDirectivesData} is held while no
+     * directives are queued. If absent or 0, requests are never held, else
+     * they must be made only of {@link GetDeviceDirectivesData}. It must be
+     * less than {@link #TRANSACTIONS_DEADLINE_MILLIS}.
+     */
+    public static final String LONG_POLL_MILLIS_INIT_PARAM = "longPollMillis";
 
-    private static String joinStrings(final ArrayList<String> strings,
-            final String separator) {
-        final StringBuilder stringBuilder = new StringBuilder();
-        for (final String s : strings)
-            stringBuilder.append(s);
-        return stringBuilder.toString();
-    }
+    /**
+     * Default maximal size in bytes for the serialized requests we accept. It
+     * can be overridden by the {@value #MAX_COMMAND_SIZE_INIT_PARAM}
+     * init-parameter.
+     */
+    public static final int MAX_COMMAND_SIZE = 64 * 1024;
 
     /**
-     * Decides which encapsulation to use, according the URL
+     * Name of the servlet init-parameter overriding {@link #MAX_COMMAND_SIZE}
+     */
+    public static final String MAX_COMMAND_SIZE_INIT_PARAM = "maxCommandSize";
+
+    /**
+     * How long the transactions can keep retrying after the request arrived.
+     * AppEngine kills the requests after 30 seconds, this leaves time to send
+     * an error back.
+     */
+    private static final long TRANSACTIONS_DEADLINE_MILLIS = 20 * 1000;
+
+    /**
+     * Tells whether the Accept-Encoding header of the client gives gzip a
+     * quality above 0. An explicit gzip coding overrides the * wildcard,
+     * whatever their order, as per RFC 2616 section 14.3.
      * 
      * @param httpReq
      *            The request
-     * @return One of {@link Encapsulation}
+     * @return True if the response can be sent compressed with gzip
      */
-    private static Encapsulation parseEncapsulation(
-            final HttpServletRequest httpReq) {
-
-        /* Validates request type */
-        if (httpReq.getServletPath().endsWith(Config.SERVER_RPC_JSON_SUFFIX))
-            return Encapsulation.JSON;
-        else if (httpReq.getServletPath().endsWith(
-                Config.SERVER_RPC_PROTOBUFF_SUFFIX))
-            return Encapsulation.PROTOBUFF;
-        else
-            return null;
-
+    static boolean acceptsGzip(final HttpServletRequest httpReq) {
+        final String acceptEncoding = httpReq.getHeader("Accept-Encoding");
+        if (acceptEncoding == null)
+            return false;
+        Boolean gzipAcceptable = null;
+        Boolean wildcardAcceptable = null;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] parameters = coding.split(";");
+            final String name = parameters[0].trim();
+            if (name.equalsIgnoreCase("gzip"))
+                gzipAcceptable = hasPositiveQuality(parameters);
+            else if (name.equals("*"))
+                wildcardAcceptable = hasPositiveQuality(parameters);
+        }
+        if (gzipAcceptable != null)
+            return gzipAcceptable;
+        return wildcardAcceptable != null && wildcardAcceptable;
     }
 
     /**
-     * Parses the request from bytes to a protocol buffer. Must be thread-safe.
-     * 
-     * @param requestBytes
-     *            The byte array, never null or empty.
-     * @param errors
-     *            Strings describing the errors will be added to it
-     * @param encapsulation
-     * @see Encapsulation
-     * @return null if parsing failed, the parsed Protocol Buffer else
+     * @param parameters
+     *            A coding of an Accept-Encoding header split on ';', its name
+     *            first
+     * @return False if its quality is 0 or cannot be parsed, true if it is
+     *         above 0 or absent
      */
-    private static GatewayRequestData parseRequest(final byte[] requestBytes,
-            final ArrayList<String> errors, final Encapsulation encapsulation) {
-        switch (encapsulation) {
-        case PROTOBUFF:
-            try {
-                return GatewayRequestData.parseFrom(requestBytes);
-            }
-            catch (final InvalidProtocolBufferException e) {
-                errors.add(e.getMessage());
-                return null;
-            }
-        case JSON:
-            final GatewayRequestData.Builder res =
-                    GatewayRequestData.newBuilder();
-            try {
-                JsonIOUtil.mergeFrom(requestBytes, 0, requestBytes.length, res,
-                        SchemaGatewayCommands.GatewayRequestData.MERGE,
-                        Config.SERVER_RPC_JSON_NUMERIC);
-            }
-            catch (final IOException e) {
-                errors.add("Invalid JSON: " + e.getMessage());
-                return null;
-            }
-            return res.build();
-        default:
-            throw new InternalError("Unknow encapsulation: " + encapsulation);
+    private static boolean hasPositiveQuality(final String[] parameters) {
+        for (int n = 1; n < parameters.length; n++) {
+            final String parameter = parameters[n].trim();
+            if (parameter.startsWith("q="))
+                try {
+                    return Float.parseFloat(parameter.substring(2)) > 0;
+                }
+                catch (final NumberFormatException e) {
+                    return false;
+                }
         }
+        return true;
     }
 
     /**
-     * Reads up to {@value #MAX_COMMAND_SIZE} bytes from the stream and returns
-     * them
-     * 
-     * @param stream
-     *            The stream to read from
-     * @return A byte array of up to {@value #MAX_COMMAND_SIZE} bytes, null if
-     *         it failed reading
-     * @throws IOException
-     *             If some I/O error occurs while reading the stream
-     * 
+     * @param resp
+     *            The response to a request made only of
+     *            {@link GetDeviceDirectivesData}
+     * @return True if it tells nothing to the device, so that the request can
+     *         be held until directives are queued
      */
-    private static byte[] readAllBytes(final ServletInputStream stream)
-            throws IOException {
-        final byte[] buffer = new byte[MAX_COMMAND_SIZE];
-        int position = 0;
-        int lastRet;
-        do {
-            lastRet =
-                    stream.read(buffer, position, MAX_COMMAND_SIZE - position);
-            if (lastRet > 0)
-                position += lastRet;
-        } while (lastRet > 0);
-        if (lastRet == 0) {
-            LOG.warning("Truncating a too large input");
-            return null;
-        }
-        return Arrays.copyOf(buffer, position);
+    private static boolean isEmptyHanded(
+            final GatewayResponseData.Builder resp) {
+        return resp.getDirectiveCount() == 0
+            && !resp.getUnknownFields().hasField(
+                    GatewayResponseData.DIRECTIVE_FIELD_NUMBER)
+            && resp.getCreatorIdsToForgetCount() == 0
+            && resp.getDirectivesCursorCount() == 0;
+    }
+
+    /**
+     * @param requestPB
+     *            A parsed request
+     * @return True if it can be held until directives are queued: it must be
+     *         made only of {@link GetDeviceDirectivesData}, as handling it
+     *         again must have no side effects
+     */
+    private static boolean isLongPollable(final GatewayRequestData requestPB) {
+        return requestPB.getGetDeviceDirectivesCount() > 0
+            && requestPB.getRegisterDeviceCount() == 0
+            && requestPB.getQueueDirectiveCount() == 0
+            && !requestPB.hasEnumerateDevices();
+    }
+
+    /**
+     * @param errors
+     *            Strings describing why the request is invalid
+     * @return The error rejecting the request
+     */
+    private static DoPostError rejectionError(final ArrayList<String> errors) {
+        final String logMsg =
+                "Requests rejected: " + joinStrings(errors, " --- \n");
+        final String userMsg = joinStrings(errors, "<br />\n");
+        return new DoPostError(Level.FINE, logMsg,
+                HttpCodes.HTTP_BAD_REQUEST_STATUS, userMsg);
+    }
+
+    private static String joinStrings(final ArrayList<String> strings,
+            final String separator) {
+        final StringBuilder stringBuilder = new StringBuilder();
+        for (final String s : strings)
+            stringBuilder.append(s);
+        return stringBuilder.toString();
     }
 
     /**
@@ -296,41 +457,46 @@ public final class ApiServlet extends HttpServlet {
      * Must be thread-safe.
      * 
      * This function is responsible for calling
-     * {@link HttpServletResponse#setContentType(String)}
-     * {@link HttpServletResponse#setContentLength(int)} and writing on
-     * {@link HttpServletResponse#getOutputStream()}
+     * {@link HttpServletResponse#setContentType(String)} and writing on
+     * {@link HttpServletResponse#getOutputStream()}. The responses are
+     * streamed: the length is only sent when it is known in advance and the
+     * responses are not compressed, else the container falls back to chunked
+     * transfers.
      * 
      * @param httpResp
      *            Must not be null
      * @param encapsulation
      * @see Encapsulation
-     * @param responseProto
-     *            Must not be null
+     * @param responses
+     *            One response per request, must not be null
+     * @param gzipAccepted
+     *            True if the client accepts gzip-compressed responses
      * @throws IOException
      *             Failed in writing or serializing the response
      */
-    private static void writeResponse(final HttpServletResponse httpResp,
+    private static void writeResponses(final HttpServletResponse httpResp,
             final Encapsulation encapsulation,
-            final GatewayResponseData responseProto) throws IOException {
-        final ServletOutputStream outputStream = httpResp.getOutputStream();
-        final byte[] respBytes;
-        switch (encapsulation) {
-        case PROTOBUFF:
-            httpResp.setContentType("application/octet-stream");
-            respBytes = responseProto.toByteArray();
-            break;
-        case JSON:
-            httpResp.setContentType("application/json");
-            respBytes =
-                    JsonIOUtil.toByteArray(responseProto,
-                            SchemaGatewayCommands.GatewayResponseData.WRITE,
-                            Config.SERVER_RPC_JSON_NUMERIC);
-            break;
-        default:
-            throw new InternalError("Unknow encapsulation: " + encapsulation);
-        }
-        httpResp.setContentLength(respBytes.length);
-        outputStream.write(respBytes);
+            final List<GatewayResponseData> responses,
+            final boolean gzipAccepted) throws IOException {
+        httpResp.setContentType(encapsulation.getContentType());
+        httpResp.setHeader("Vary", "Accept-Encoding");
+        int protobuffSize = 0;
+        for (final GatewayResponseData response : responses)
+            protobuffSize += response.getSerializedSize();
+        if (gzipAccepted && protobuffSize >= GZIP_MIN_RESPONSE_SIZE) {
+            httpResp.setHeader("Content-Encoding", "gzip");
+            final GZIPOutputStream gzipStream =
+                    new GZIPOutputStream(httpResp.getOutputStream());
+            encapsulation.writeResponses(responses, gzipStream);
+            gzipStream.finish();
+        }
+        else {
+            final int serializedSize =
+                    encapsulation.getSerializedSize(responses);
+            if (serializedSize >= 0)
+                httpResp.setContentLength(serializedSize);
+            encapsulation.writeResponses(responses, httpResp.getOutputStream());
+        }
     }
 
     private final DeviceRegistrar deviceRegistrar;
@@ -339,27 +505,113 @@ public final class ApiServlet extends HttpServlet {
 
     private final DirectiveStore directiveStore;
 
+    /** Wakes up the long-polling requests when directives are stored */
+    private final DirectivesSignal directivesSignal;
+
+    /**
+     * Whether responses are compressed for the clients that accept it, set
+     * from the {@value #GZIP_RESPONSES_INIT_PARAM} init-parameter by
+     * {@link #init()}
+     */
+    private volatile boolean gzipResponses = true;
+
+    /**
+     * How long a request made only of {@link GetDeviceDirectivesData} is held
+     * while no directives are queued, 0 if never, set from the
+     * {@value #LONG_POLL_MILLIS_INIT_PARAM} init-parameter by {@link #init()}
+     */
+    private volatile long longPollMillis = 0;
+
+    /**
+     * Maximal size in bytes for the serialized requests we accept, set from
+     * the {@value #MAX_COMMAND_SIZE_INIT_PARAM} init-parameter by
+     * {@link #init()}
+     */
+    private volatile int maxCommandSize = MAX_COMMAND_SIZE;
+
     private final ServletHelper servletHelper;
 
     public ApiServlet() {
         this(new DirectiveStore(), new DeviceRegistrar(), new DeviceWaker(),
-                new ServletHelper());
+                new DirectivesSignal(), new ServletHelper());
     }
 
     /** For dependency-injection during tests */
     ApiServlet(final DirectiveStore directiveStore,
             final DeviceRegistrar deviceRegistrar,
-            final DeviceWaker deviceWaker, final ServletHelper servletHelper) {
+            final DeviceWaker deviceWaker,
+            final DirectivesSignal directivesSignal,
+            final ServletHelper servletHelper) {
         this.directiveStore = directiveStore;
+        this.directivesSignal = directivesSignal;
         this.deviceRegistrar = deviceRegistrar;
         this.deviceWaker = deviceWaker;
         this.servletHelper = servletHelper;
     }
 
+    /**
+     * Reads the {@value #MAX_COMMAND_SIZE_INIT_PARAM},
+     * {@value #GZIP_RESPONSES_INIT_PARAM} and
+     * {@value #LONG_POLL_MILLIS_INIT_PARAM} init-parameters, if any, and warms
+     * up the {@link JsonCodec}
+     * 
+     * @throws ServletException
+     *             If a parameter is invalid
+     */
+    @Override
+    public void init() throws ServletException {
+        try {
+            JsonCodec.warmUp();
+        }
+        catch (final IOException e) {
+            throw new ServletException("Could not warm up the JSON codec", e);
+        }
+        final String gzipResponsesStr =
+                getInitParameter(GZIP_RESPONSES_INIT_PARAM);
+        if (gzipResponsesStr != null) {
+            if (!gzipResponsesStr.equals("true")
+                && !gzipResponsesStr.equals("false"))
+                throw new ServletException("Invalid "
+                    + GZIP_RESPONSES_INIT_PARAM + ": " + gzipResponsesStr);
+            this.gzipResponses = Boolean.parseBoolean(gzipResponsesStr);
+        }
+        final String longPollMillisStr =
+                getInitParameter(LONG_POLL_MILLIS_INIT_PARAM);
+        if (longPollMillisStr != null) {
+            try {
+                this.longPollMillis = Long.parseLong(longPollMillisStr);
+            }
+            catch (final NumberFormatException e) {
+                throw new ServletException("Invalid "
+                    + LONG_POLL_MILLIS_INIT_PARAM + ": " + longPollMillisStr,
+                        e);
+            }
+            if (this.longPollMillis < 0
+                || this.longPollMillis >= TRANSACTIONS_DEADLINE_MILLIS)
+                throw new ServletException("Invalid "
+                    + LONG_POLL_MILLIS_INIT_PARAM + ": " + longPollMillisStr);
+        }
+        final String maxCommandSizeStr =
+                getInitParameter(MAX_COMMAND_SIZE_INIT_PARAM);
+        if (maxCommandSizeStr == null)
+            return;
+        try {
+            this.maxCommandSize = Integer.parseInt(maxCommandSizeStr);
+        }
+        catch (final NumberFormatException e) {
+            throw new ServletException("Invalid " + MAX_COMMAND_SIZE_INIT_PARAM
+                + ": " + maxCommandSizeStr, e);
+        }
+        if (this.maxCommandSize <= 0)
+            throw new ServletException("Invalid " + MAX_COMMAND_SIZE_INIT_PARAM
+                + ": " + maxCommandSizeStr);
+    }
+
     /**
      * Reads the request, handles it and writes down the response or the error
-     * message. Depending on the URL suffix, the queries and responses are
-     * expected to be encapsulated in JSON or ProtolBuffers.
+     * message. Depending on the URL suffix or the Content-Type, the queries
+     * and responses are expected to be encapsulated in any of the registered
+     * {@link Encapsulations}.
      * 
      * The implementation just calls
      * {@link #doPostReturningErrors(HttpServletRequest, HttpServletResponse)}
@@ -375,7 +627,15 @@ public final class ApiServlet extends HttpServlet {
     @Override
     public void doPost(final HttpServletRequest httpReq,
             final HttpServletResponse httpResp) throws IOException {
-        final DoPostError error = doPostReturningErrors(httpReq, httpResp);
+        final DoPostError error;
+        TransactionHelper.setRequestDeadline(System.currentTimeMillis()
+            + TRANSACTIONS_DEADLINE_MILLIS);
+        try {
+            error = doPostReturningErrors(httpReq, httpResp);
+        }
+        finally {
+            TransactionHelper.clearRequestDeadline();
+        }
         if (error != null) {
             LOG.log(error.logLevel, error.logMessage);
             httpResp.sendError(error.httpCode, error.userMessage);
@@ -383,48 +643,86 @@ public final class ApiServlet extends HttpServlet {
     }
 
     /**
-     * Parses the request, handles it and adds the response to the provided
+     * Checks the request, handles it and adds the response to the provided
      * {@link GatewayResponseData.Builder}, or returns a {@link DoPostError}.
      * 
-     * This method does no I/Os.
+     * This method does no I/Os. It is package-private so that it can be
+     * benchmarked.
      * 
-     * @param encapsulation
-     *            The {@link Encapsulation} to use for parsing the requestBytes
      * @param userId
      *            The {@link UserId} of the authenticated user who sent the
      *            request
-     * @param requestBytes
-     *            The unparsed request as a byte array
+     * @param requestPB
+     *            The parsed request, null if parsing failed
+     * @param errors
+     *            Strings describing the errors met while parsing the request
      * @param responseBuilder
      *            The response will be merged to it
      * @return null if everything went fine, else a {@link DoPostError}
      */
-    private DoPostError doPostExceptIOs(final UserId userId,
-            final Encapsulation encapsulation, final byte[] requestBytes,
+    DoPostError doPostExceptIOs(final UserId userId,
+            final GatewayRequestData requestPB, final ArrayList<String> errors,
             final GatewayResponseData.Builder responseBuilder) {
+        return doPostExceptIOs(userId, requestPB, errors, responseBuilder, 0);
+    }
 
-        final GatewayRequest request;
-        final ArrayList<String> errors = new ArrayList<String>(0);
-
-        /* Checks that the request is well-formed */
-        {
-            final GatewayRequestData requestPB =
-                    parseRequest(requestBytes, errors, encapsulation);
-            if (!GatewayRequest.isValid(requestPB, errors)) {
-                final String logMsg =
-                        "Requests rejected: " + joinStrings(errors, " --- \n");
-                final String userMsg = joinStrings(errors, "<br />\n");
-                return new DoPostError(Level.FINE, logMsg,
-                        HttpCodes.HTTP_BAD_REQUEST_STATUS, userMsg);
-            }
-            request = new GatewayRequest(requestPB);
-        }
+    /**
+     * Like
+     * {@link #doPostExceptIOs(UserId, GatewayRequestData, ArrayList, GatewayResponseData.Builder)}
+     * , but can hold the request until directives are queued for its devices,
+     * see {@link #longPoll(GatewayRequest, UserId, long)}.
+     * 
+     * @param longPollDeadlineMillis
+     *            0 to answer right away, else when to stop holding the
+     *            request, as per {@link System#currentTimeMillis()}. The
+     *            request must then be made only of
+     *            {@link GetDeviceDirectivesData}.
+     */
+    DoPostError doPostExceptIOs(final UserId userId,
+            final GatewayRequestData requestPB, final ArrayList<String> errors,
+            final GatewayResponseData.Builder responseBuilder,
+            final long longPollDeadlineMillis) {
+        final GatewayRequest request =
+                GatewayRequest.validate(requestPB, errors);
+        if (request == null)
+            return rejectionError(errors);
+        if (longPollDeadlineMillis != 0 && !isLongPollable(requestPB))
+            return LONG_POLL_ERROR;
+        return handleRequest(userId, request, responseBuilder,
+                longPollDeadlineMillis);
+    }
 
-        /* Handles the request */
+    /**
+     * Handles a checked request and adds the response to the provided
+     * {@link GatewayResponseData.Builder}, or returns a {@link DoPostError}.
+     * 
+     * @param userId
+     *            The {@link UserId} of the authenticated user who sent the
+     *            request
+     * @param request
+     *            The request, as checked by
+     *            {@link GatewayRequest#validate(GatewayRequestData, ArrayList)}
+     * @param responseBuilder
+     *            The response will be merged to it
+     * @param longPollDeadlineMillis
+     *            As per
+     *            {@link #doPostExceptIOs(UserId, GatewayRequestData, ArrayList, GatewayResponseData.Builder, long)}
+     * @return null if everything went fine, else a {@link DoPostError}
+     */
+    private DoPostError handleRequest(final UserId userId,
+            final GatewayRequest request,
+            final GatewayResponseData.Builder responseBuilder,
+            final long longPollDeadlineMillis) {
         try {
-            final RequestHandler handler =
-                    new RequestHandler(responseBuilder, userId);
-            request.accept(handler);
+            if (longPollDeadlineMillis != 0)
+                responseBuilder.mergeFrom(longPoll(request, userId,
+                        longPollDeadlineMillis));
+            else {
+                final RequestHandler handler =
+                        new RequestHandler(request, responseBuilder, userId);
+                request.accept(handler);
+                handler.flushQueuedDirectives();
+            }
         }
         catch (final InvalidRequestPassedVerification e) {
             return new DoPostError(Level.SEVERE,
@@ -444,10 +742,54 @@ public final class ApiServlet extends HttpServlet {
         return null;
     }
 
+    /**
+     * Handles a request made only of {@link GetDeviceDirectivesData}. While
+     * its response would tell nothing to the device, waits for directives to
+     * be queued for its devices and handles it again, until the deadline.
+     * 
+     * @param request
+     *            A checked request, see {@link #isLongPollable}
+     * @param userId
+     *            The {@link UserId} of the authenticated user who sent the
+     *            request
+     * @param deadlineMillis
+     *            When to answer even if there is nothing to tell, as per
+     *            {@link System#currentTimeMillis()}
+     * @return The response to the last handling of the request
+     * @throws Exception
+     *             As per {@link RequestHandler}
+     */
+    private GatewayResponseData longPoll(final GatewayRequest request,
+            final UserId userId, final long deadlineMillis) throws Exception {
+        final List<GetDeviceDirectivesData> getDirectivesList =
+                request.getGetDeviceDirectivesData();
+        final ArrayList<DeviceId> deviceIds =
+                new ArrayList<DeviceId>(getDirectivesList.size());
+        for (final GetDeviceDirectivesData data : getDirectivesList)
+            deviceIds.add(request.getValidDeviceId(data.getDeviceId()));
+        GatewayResponseData.Builder resp;
+        DirectivesSignal.Snapshot snapshot;
+        do {
+            /* Taken before fetching, so that no storage can be missed */
+            snapshot = this.directivesSignal.snapshot(userId, deviceIds);
+            resp = GatewayResponseData.newBuilder();
+            final RequestHandler handler =
+                    new RequestHandler(request, resp, userId);
+            for (final GetDeviceDirectivesData data : getDirectivesList)
+                handler.visit(data);
+        } while (isEmptyHanded(resp)
+            && this.directivesSignal.awaitChange(snapshot, deadlineMillis));
+        return resp.build();
+    }
+
     /**
      * Reads the request, handles it and writes down the response, or returns a
-     * {@link DoPostError}. Depending on the URL suffix, the queries and
-     * responses are expected to be encapsulated in JSON or ProtolBuffers.
+     * {@link DoPostError}. Depending on the URL suffix or the Content-Type,
+     * the queries and responses are expected to be encapsulated in any of the
+     * registered {@link Encapsulations}. When an encapsulation carries
+     * several requests, they are all checked before any is handled, then
+     * handled in order, each of them getting its own response or error, see
+     * {@link Encapsulation#carriesSeveralRequests()}.
      * 
      * The implementation just calls
      * {@link #doPostReturningErrors(HttpServletRequest, HttpServletResponse)}
@@ -475,43 +817,98 @@ public final class ApiServlet extends HttpServlet {
                     "Requests must be authenticated");
 
         /* Decide on encapsulation */
-        final Encapsulation encapsulation = parseEncapsulation(httpReq);
+        final Encapsulation encapsulation = Encapsulations.forRequest(httpReq);
         if (encapsulation == null)
             return new DoPostError(Level.FINE,
                     HttpCodes.HTTP_BAD_REQUEST_STATUS,
                     "Cannnot guess the required encapsulation");
 
-        /* Reads the request */
-        final byte[] requestBytes;
+        /* Reads and parses the request */
+        final BoundedInputStream requestStream =
+                new BoundedInputStream(httpReq.getInputStream(),
+                        this.maxCommandSize);
+        final ArrayList<String> errors = new ArrayList<String>(0);
+        final List<GatewayRequestData> requestPBs;
         try {
-            requestBytes = readAllBytes(httpReq.getInputStream());
+            requestPBs =
+                    encapsulation.parseRequests(requestStream,
+                            this.maxCommandSize, errors);
+        }
+        catch (final SizeLimitExceeded e) {
+            return new DoPostError(Level.WARNING,
+                    HttpCodes.HTTP_BAD_REQUEST_STATUS,
+                    "Request rejected for its size (too big)");
         }
         catch (final IOException e) {
             return new DoPostError(Level.FINE,
                     HttpCodes.HTTP_BAD_REQUEST_STATUS, e);
         }
-        if (requestBytes == null || requestBytes.length == 0)
+        if (requestStream.getBytesRead() == 0)
             return new DoPostError(Level.FINE,
                     HttpCodes.HTTP_BAD_REQUEST_STATUS,
-                    "Protocol buffer rejected for its size (empty or too big)");
+                    "Request rejected for its size (empty)");
 
-        /* Builds the response and call #doPostExceptIOs */
-        final GatewayResponseData.Builder responseBuilder =
-                GatewayResponseData.newBuilder();
-        try {
-            final DoPostError error =
-                    doPostExceptIOs(userId, encapsulation, requestBytes,
-                            responseBuilder);
-            if (error != null)
-                return error;
+        /* Builds the responses and call #doPostExceptIOs for each request */
+        final long longPollDeadlineMillis;
+        if (this.longPollMillis == 0)
+            longPollDeadlineMillis = 0;
+        else
+            longPollDeadlineMillis =
+                    System.currentTimeMillis() + this.longPollMillis;
+        final List<GatewayRequestData> requestsToHandle;
+        if (requestPBs == null)
+            requestsToHandle =
+                    Collections.<GatewayRequestData> singletonList(null);
+        else
+            requestsToHandle = requestPBs;
 
+        /*
+         * Checks all the requests before handling any of them, so that a
+         * rejected stream has no side effect and can be fixed and sent again
+         */
+        final ArrayList<GatewayRequest> requests =
+                new ArrayList<GatewayRequest>(requestsToHandle.size());
+        for (final GatewayRequestData requestPB : requestsToHandle) {
+            final GatewayRequest request =
+                    GatewayRequest.validate(requestPB, errors);
+            if (request == null) {
+                if (requestsToHandle.size() > 1)
+                    errors.add(0, "Request number " + requests.size()
+                        + " is invalid");
+                return rejectionError(errors);
+            }
+            if (longPollDeadlineMillis != 0 && !isLongPollable(requestPB))
+                return LONG_POLL_ERROR;
+            requests.add(request);
         }
-        catch (final Exception e) {
-            return new DoPostError(Level.SEVERE,
-                    HttpCodes.HTTP_INTERNAL_ERROR_STATUS, e);
+
+        /*
+         * Handles the requests. When the encapsulation can carry several of
+         * them, a failing one gets an error in its response and the others
+         * are still handled, as those before it cannot be undone.
+         */
+        final ArrayList<GatewayResponseData> responses =
+                new ArrayList<GatewayResponseData>(requests.size());
+        for (final GatewayRequest request : requests) {
+            final GatewayResponseData.Builder responseBuilder =
+                    GatewayResponseData.newBuilder();
+            final DoPostError error =
+                    handleRequest(userId, request, responseBuilder,
+                            longPollDeadlineMillis);
+            if (error != null) {
+                if (!encapsulation.carriesSeveralRequests())
+                    return error;
+                LOG.log(error.logLevel, "Request " + responses.size() + ": "
+                    + error.logMessage);
+                responseBuilder.clear().setError(
+                        ErrorData.newBuilder().setCode(error.httpCode)
+                                .setMessage(error.userMessage));
+            }
+            responses.add(responseBuilder.build());
         }
 
-        writeResponse(httpResp, encapsulation, responseBuilder.build());
+        writeResponses(httpResp, encapsulation, responses, this.gzipResponses
+            && acceptsGzip(httpReq));
         httpResp.flushBuffer();
         httpResp.getOutputStream().close();
         return null;
@@ -0,0 +1,102 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.util.logging.Logger;
+
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.ClientLoginToken;
+
+/**
+ * A cached C2DM authentication token, shared by the servlets that wake the
+ * devices up. <br>
+ * It will be refreshed from the {@link ServletHelper} (
+ * {@link ServletHelper#readServerConfiguration()}) when rejected by C2DM
+ * server, thus handling the case where another node gets the updated value.
+ */
+@ThreadSafe
+final class C2dmAuthTokenCache {
+    private static final Logger LOG = Logger.getLogger(C2dmAuthTokenCache.class
+            .getName());
+
+    /**
+     * May be null if there is no cached value. All accesses should be done
+     * through {@link #get()}, {@link #update(ClientLoginToken)} and
+     * {@link #reset()}
+     */
+    private volatile ClientLoginToken cachedC2dmAuthToken;
+
+    private final ServletHelper servletHelper;
+
+    /**
+     * @param servletHelper
+     *            Where to read and persist the {@link ServerConfiguration}
+     */
+    C2dmAuthTokenCache(final ServletHelper servletHelper) {
+        this.servletHelper = servletHelper;
+    }
+
+    /**
+     * Costs a single volatile read, unless {@link #reset()} was called.
+     * 
+     * @return {@link #cachedC2dmAuthToken} if not null, else reads it from
+     *         {@link ServletHelper#readServerConfiguration() it} and refreshes
+     *         the cached copy
+     */
+    public ClientLoginToken get() {
+        ClientLoginToken res = this.cachedC2dmAuthToken;
+        if (res == null) {
+            final ServerConfiguration config =
+                    this.servletHelper.readServerConfiguration();
+            res = config.getC2dmAuthToken();
+            this.cachedC2dmAuthToken = res;
+        }
+        return res;
+    }
+
+    /**
+     * Sets {@link #cachedC2dmAuthToken} to null and invalidates the
+     * {@link ServerConfiguration} cached by the {@link ServletHelper}, thus
+     * discarding the cached value
+     */
+    public void reset() {
+        this.cachedC2dmAuthToken = null;
+        this.servletHelper.invalidateServerConfiguration();
+    }
+
+    /**
+     * Sets {@link #cachedC2dmAuthToken} and stores an updated configuration
+     * using
+     * {@link ServletHelper#persistServerConfiguration(ServerConfiguration)},
+     * unless the token is unchanged
+     * 
+     * @param updatedC2dmAuthToken
+     *            A token returned by the C2DM servers, can be null
+     */
+    public void update(final ClientLoginToken updatedC2dmAuthToken) {
+        if (updatedC2dmAuthToken == null
+            || get().equals(updatedC2dmAuthToken))
+            return;
+        LOG.info("Got updated auth token from C2DM servers: "
+            + updatedC2dmAuthToken);
+        this.cachedC2dmAuthToken = updatedC2dmAuthToken;
+        final ServerConfiguration config =
+                this.servletHelper.readServerConfiguration();
+        config.setC2dmCAuthToken(updatedC2dmAuthToken);
+        this.servletHelper.persistServerConfiguration(config);
+    }
+}
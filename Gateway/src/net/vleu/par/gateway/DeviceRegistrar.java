@@ -16,49 +16,37 @@
  */
 package net.vleu.par.gateway;
 
-import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
-
 import java.util.ArrayList;
-import java.util.List;
 
 import net.jcip.annotations.ThreadSafe;
 import net.vleu.par.C2dmToken;
 import net.vleu.par.DeviceName;
+import net.vleu.par.gateway.datastore.DeviceCache;
 import net.vleu.par.gateway.datastore.DeviceEntity;
-import net.vleu.par.gateway.datastore.ThreadLocalDatastoreService;
 import net.vleu.par.models.Device;
 import net.vleu.par.models.DeviceId;
 import net.vleu.par.models.UserId;
 
-import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.Query;
 
 @ThreadSafe
 public class DeviceRegistrar {
 
-    private static final FetchOptions FETCH_ALL_OPTIONS = withChunkSize(
-            Integer.MAX_VALUE).prefetchSize(Integer.MAX_VALUE);
-
-    /**
-     * The GAE datastore where to store the {@link DeviceEntity}. They have to
-     * be local because the {@link DatastoreService} are not thread-safe.
-     */
-    private final ThreadLocal<DatastoreService> datastores;
+    /** Where to read and write the {@link DeviceEntity} */
+    private final DeviceCache deviceCache;
 
     public DeviceRegistrar() {
-        this(ThreadLocalDatastoreService.getSingleton());
+        this(DeviceCache.getSingleton());
     }
 
     /**
      * Allows dependency injection, for testing purposes.
      * 
-     * @param datastores
-     *            ThreadGlobal datastores.
+     * @param deviceCache
+     *            Where to read and write the {@link DeviceEntity}
      */
-    DeviceRegistrar(final ThreadLocal<DatastoreService> datastores) {
-        this.datastores = datastores;
+    DeviceRegistrar(final DeviceCache deviceCache) {
+        this.deviceCache = deviceCache;
     }
 
     /**
@@ -67,11 +55,7 @@ public class DeviceRegistrar {
      */
     public ArrayList<Device> enumerateOwnedDevices(final UserId ownerId) {
         final ArrayList<Device> result = new ArrayList<Device>();
-        final DatastoreService datastore = this.datastores.get();
-        final Query query = DeviceEntity.buildQueryForOwnedDevices(ownerId);
-        final List<Entity> queryResult =
-                datastore.prepare(null, query).asList(FETCH_ALL_OPTIONS);
-        for (final Entity entity : queryResult)
+        for (final Entity entity : this.deviceCache.getOwned(ownerId))
             result.add(DeviceEntity.deviceFromEntity(entity));
         return result;
     }
@@ -92,6 +76,6 @@ public class DeviceRegistrar {
                 new Device(deviceId, friendlyName, c2dmRegistrationId);
         final Entity deviceEntity =
                 DeviceEntity.entityFromDevice(ownerId, device);
-        this.datastores.get().put(null, deviceEntity);
+        this.deviceCache.put(ownerId, deviceEntity);
     }
 }
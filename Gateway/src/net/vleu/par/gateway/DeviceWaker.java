@@ -18,26 +18,44 @@
 package net.vleu.par.gateway;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
+import net.jcip.annotations.NotThreadSafe;
 import net.jcip.annotations.ThreadSafe;
-import net.vleu.par.C2dmToken;
 import net.vleu.par.ClientLoginToken;
+import net.vleu.par.gateway.datastore.DeviceCache;
 import net.vleu.par.gateway.datastore.DeviceEntity;
-import net.vleu.par.gateway.datastore.ThreadLocalDatastoreService;
+import net.vleu.par.gateway.datastore.ThreadLocalAsyncDatastoreService;
 import net.vleu.par.models.Device;
 import net.vleu.par.models.DeviceId;
 import net.vleu.par.models.UserId;
 import net.vleu.par.utils.C2dmRequestFactory;
 
-import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
 import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPRequest;
@@ -48,6 +66,30 @@ import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
 @ThreadSafe
 public class DeviceWaker {
 
+    /**
+     * This POJO describes the outcome of a call to
+     * {@link DeviceWaker#drainPullQueue(ClientLoginToken, int)}
+     */
+    public static final class DrainResult {
+        /** True if the C2DM servers refused the authentication token */
+        public final boolean c2dmAuthTokenRejected;
+        /** How many tasks failed and are left for a later lease */
+        public final int failedTasks;
+        /** How many tasks were leased */
+        public final int leasedTasks;
+        /** A new {@link ClientLoginToken} to use, or null */
+        public final ClientLoginToken updatedC2dmAuthToken;
+
+        DrainResult(final int leasedTasks, final int failedTasks,
+                final ClientLoginToken updatedC2dmAuthToken,
+                final boolean c2dmAuthTokenRejected) {
+            this.leasedTasks = leasedTasks;
+            this.failedTasks = failedTasks;
+            this.updatedC2dmAuthToken = updatedC2dmAuthToken;
+            this.c2dmAuthTokenRejected = c2dmAuthTokenRejected;
+        }
+    }
+
     /**
      * Thrown by
      * {@link DeviceWaker#reallyWake(ClientLoginToken, UserId, DeviceId)} when
@@ -61,6 +103,331 @@ public class DeviceWaker {
     public static class InvalidC2dmClientLoginToken extends Exception {
     }
 
+    /**
+     * How the wake tasks are run
+     */
+    public static enum WakeMode {
+        /**
+         * The wake tasks are queued in {@link #pullQueue}, and leased by
+         * batches by the {@link DeviceWakerBatchServlet}
+         */
+        PULL,
+        /**
+         * Each wake task is pushed to the {@link DeviceWakerServlet}
+         */
+        PUSH
+    }
+
+    /**
+     * Wakes devices up asynchronously. The lookup of a device overlaps with
+     * the requests to C2DM for the devices before it, and at most
+     * {@value DeviceWaker#MAX_IN_FLIGHT_WAKES} requests are in flight at once.
+     * 
+     * Java's {@link Future}s have no callbacks, therefore the pipeline only
+     * advances when one of the futures it returned is polled, and is meant to
+     * be used by a single thread, typically the one handling a request or
+     * draining the {@link DeviceWaker#pullQueue}.
+     */
+    @NotThreadSafe
+    public final class WakePipeline {
+        /** The result of a call to {@link WakePipeline#wake(UserId, DeviceId)} */
+        private final class PendingWake implements Future<ClientLoginToken> {
+            /** Set once the wake is done, if it failed */
+            private Throwable failure;
+            /** Set once the wake is done, if it succeeded */
+            private ClientLoginToken result;
+            /** The ongoing lookup of the device, null if it was read */
+            private final Future<Entity> deviceFuture;
+            /** The device, if it was already read */
+            private final Entity readDeviceEntity;
+            private final Key deviceKey;
+            private boolean done = false;
+            /** Set once the request to C2DM has been sent */
+            private Future<HTTPResponse> responseFuture;
+
+            PendingWake(final Key deviceKey, final Entity readDeviceEntity,
+                    final Future<Entity> deviceFuture) {
+                this.deviceKey = deviceKey;
+                this.readDeviceEntity = readDeviceEntity;
+                this.deviceFuture = deviceFuture;
+            }
+
+            /** The wake cannot be cancelled, because it is pipelined */
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                return false;
+            }
+
+            private void complete(final ClientLoginToken result,
+                    final Throwable failure) {
+                this.result = result;
+                this.failure = failure;
+                this.done = true;
+            }
+
+            /**
+             * Waits for the response of C2DM's servers and completes this wake
+             */
+            private void completeWithResponse() throws InterruptedException {
+                try {
+                    final HTTPResponse response = this.responseFuture.get();
+                    if (response.getResponseCode() == 200)
+                        complete(readNewAuthTokenFromC2dmResponse(response),
+                                null);
+                    else if (response.getResponseCode() == 401)
+                        complete(null, new InvalidC2dmClientLoginToken());
+                    else
+                        complete(null, new IOException(
+                                "The C2DM server anwsered a "
+                                    + response.getResponseCode() + " error."));
+                }
+                catch (final ExecutionException e) {
+                    complete(null, e.getCause());
+                }
+            }
+
+            @Override
+            public ClientLoginToken get() throws InterruptedException,
+                    ExecutionException {
+                while (!this.done)
+                    try {
+                        advance(this, false, 0);
+                    }
+                    catch (final TimeoutException e) {
+                        throw new InternalError("Untimed wait timed out");
+                    }
+                return getResult();
+            }
+
+            /**
+             * Same as {@link #get()}, but the calling thread stops driving the
+             * pipeline once the timeout has elapsed. The wake is then left in
+             * the pipeline, and a later call can wait for it again.
+             */
+            @Override
+            public ClientLoginToken get(final long timeout, final TimeUnit unit)
+                    throws InterruptedException, ExecutionException,
+                    TimeoutException {
+                final long deadlineNanos =
+                        System.nanoTime() + unit.toNanos(timeout);
+                while (!this.done)
+                    advance(this, true, deadlineNanos);
+                return getResult();
+            }
+
+            /** Returns the outcome of this wake, once it is done */
+            private ClientLoginToken getResult() throws ExecutionException {
+                if (this.failure != null)
+                    throw new ExecutionException(this.failure);
+                return this.result;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public boolean isDone() {
+                return this.done;
+            }
+
+            /**
+             * @return True if the device has been read
+             */
+            private boolean isDeviceRead() {
+                return this.deviceFuture == null || this.deviceFuture.isDone();
+            }
+
+            /**
+             * Waits for the lookup of the device, then sends the request to
+             * C2DM's servers or completes this wake
+             */
+            private void send() throws InterruptedException {
+                final Device device;
+                if (this.readDeviceEntity != null)
+                    device =
+                            DeviceEntity.deviceFromEntity(this.readDeviceEntity);
+                else
+                    try {
+                        final Entity deviceEntity = this.deviceFuture.get();
+                        DeviceWaker.this.deviceCache.offer(deviceEntity);
+                        device = DeviceEntity.deviceFromEntity(deviceEntity);
+                    }
+                    catch (final ExecutionException e) {
+                        complete(null, e.getCause());
+                        return;
+                    }
+                if (!device.hasC2dmRegistrationId()) {
+                    LOG.finest("Won't wake the device because it is not registered with C2DM");
+                    complete(null, null);
+                    return;
+                }
+                LOG.fine("Waking up " + this.deviceKey + " using id: "
+                    + device.getC2dmRegistrationId());
+                try {
+                    final HTTPRequest request =
+                            DeviceWaker.this.requestFactory.buildRequest(
+                                    WakePipeline.this.c2dmAuthToken,
+                                    device.getC2dmRegistrationId());
+                    this.responseFuture =
+                            DeviceWaker.this.urlFetchService.get().fetchAsync(
+                                    request);
+                }
+                catch (final IOException e) {
+                    complete(null, e);
+                }
+            }
+        }
+
+        /** Used to authenticate with Google C2DM servers */
+        private final ClientLoginToken c2dmAuthToken;
+
+        /** The wakes whose request to C2DM is in flight, oldest first */
+        private final LinkedList<PendingWake> inFlight =
+                new LinkedList<PendingWake>();
+
+        /** The wakes whose device is being looked up, oldest first */
+        private final LinkedList<PendingWake> lookingUp =
+                new LinkedList<PendingWake>();
+
+        private WakePipeline(final ClientLoginToken c2dmAuthToken) {
+            this.c2dmAuthToken = c2dmAuthToken;
+        }
+
+        /**
+         * Moves the pipeline forward, blocking if no wake is ready to move
+         * 
+         * @param target
+         *            The wake that the caller waits for
+         * @param timed
+         *            True if the caller gives up at deadlineNanos
+         * @param deadlineNanos
+         *            When to give up, as per {@link System#nanoTime()}
+         * @throws TimeoutException
+         *             If timed and nothing moved before the deadline
+         */
+        private void advance(final PendingWake target, final boolean timed,
+                final long deadlineNanos) throws InterruptedException,
+                TimeoutException {
+            boolean progressed = false;
+            /* Completes the wakes whose response came */
+            final Iterator<PendingWake> inFlightIterator =
+                    this.inFlight.iterator();
+            while (inFlightIterator.hasNext()) {
+                final PendingWake wake = inFlightIterator.next();
+                if (wake.responseFuture.isDone()) {
+                    inFlightIterator.remove();
+                    wake.completeWithResponse();
+                    progressed = true;
+                }
+            }
+            /* Sends the requests of the devices that have been read */
+            final Iterator<PendingWake> lookingUpIterator =
+                    this.lookingUp.iterator();
+            while (lookingUpIterator.hasNext()
+                && this.inFlight.size() < MAX_IN_FLIGHT_WAKES) {
+                final PendingWake wake = lookingUpIterator.next();
+                if (wake.isDeviceRead()) {
+                    lookingUpIterator.remove();
+                    sendAndTrack(wake);
+                    progressed = true;
+                }
+            }
+            if (progressed || target.isDone())
+                return;
+            /* Nothing is ready, blocks on the oldest operation */
+            if (!this.inFlight.isEmpty()) {
+                final PendingWake oldest = this.inFlight.getFirst();
+                await(oldest.responseFuture, timed, deadlineNanos);
+                this.inFlight.removeFirst();
+                oldest.completeWithResponse();
+            }
+            else {
+                final PendingWake oldest = this.lookingUp.getFirst();
+                await(oldest.deviceFuture, timed, deadlineNanos);
+                this.lookingUp.removeFirst();
+                sendAndTrack(oldest);
+            }
+        }
+
+        /**
+         * Waits until an operation of the pipeline is done, whatever its
+         * outcome
+         * 
+         * @throws TimeoutException
+         *             If timed and the operation was not done by deadlineNanos
+         */
+        private void await(final Future<?> future, final boolean timed,
+                final long deadlineNanos) throws InterruptedException,
+                TimeoutException {
+            try {
+                if (timed)
+                    future.get(deadlineNanos - System.nanoTime(),
+                            TimeUnit.NANOSECONDS);
+                else
+                    future.get();
+            }
+            catch (final ExecutionException e) {
+                /* Will be handled when completing the wake */
+            }
+        }
+
+        private void sendAndTrack(final PendingWake wake)
+                throws InterruptedException {
+            wake.send();
+            if (!wake.isDone())
+                this.inFlight.addLast(wake);
+        }
+
+        /**
+         * Starts waking a device up. Unless the device is cached, its lookup
+         * starts right away. The request to C2DM is sent once the pipeline
+         * advances.
+         * 
+         * @param ownerId
+         *            The user who registered the device
+         * @param deviceId
+         *            The device to wake up.
+         * @return A future which will give a new {@link ClientLoginToken} to
+         *         use in subsequent requests, or null. It may fail with an
+         *         {@link EntityNotFoundException} when the device is unknown,
+         *         an {@link InvalidC2dmClientLoginToken} when the C2DM
+         *         {@link ClientLoginToken} needs to be refreshed, or an
+         *         {@link IOException}.
+         */
+        public Future<ClientLoginToken> wake(final UserId ownerId,
+                final DeviceId deviceId) {
+            final Key deviceKey = DeviceEntity.keyForIds(ownerId, deviceId);
+            final Entity cached =
+                    DeviceWaker.this.deviceCache.getIfCached(deviceKey);
+            final PendingWake res;
+            if (cached != null)
+                res = new PendingWake(deviceKey, cached, null);
+            else
+                res =
+                        new PendingWake(deviceKey, null,
+                                DeviceWaker.this.asyncDatastores.get().get(
+                                        null, deviceKey));
+            this.lookingUp.addLast(res);
+            return res;
+        }
+
+        /**
+         * Same as {@link #wake(UserId, DeviceId)}, for a device that has
+         * already been read
+         * 
+         * @param deviceEntity
+         *            The {@link DeviceEntity} of the device to wake up
+         */
+        Future<ClientLoginToken> wake(final Entity deviceEntity) {
+            final PendingWake res =
+                    new PendingWake(deviceEntity.getKey(), deviceEntity, null);
+            this.lookingUp.addLast(res);
+            return res;
+        }
+    }
+
     /**
      * If this header is set in an answer to a request to C2DM's server, the
      * associated value will become the new {@link ClientLoginToken}
@@ -69,96 +436,470 @@ public class DeviceWaker {
      */
     private static final String C2DM_UPDATE_AUTH_HEADER = "Update-Client-Auth";
 
+    /** How long the tasks leased from {@link #pullQueue} are kept */
+    static final long LEASE_MILLIS = 60 * 1000;
+
     private static final Logger LOG = Logger.getLogger(DeviceWaker.class
             .getName());
 
+    /**
+     * How many requests to C2DM's servers can be in flight at once for a
+     * given {@link WakePipeline}
+     */
+    private static final int MAX_IN_FLIGHT_WAKES = 10;
+
+    /** Separates the fields of the payload of the pull tasks */
+    private static final char PAYLOAD_SEPARATOR = '\n';
+
+    /** The encoding of the payload of the pull tasks */
+    private static final String UTF8 = "UTF-8";
+
+    /** The first backoff after a transient failure to enqueue tasks */
+    private static final long ENQUEUE_MIN_BACKOFF_MILLIS = 50;
+
+    /** The longest backoff after a transient failure to enqueue tasks */
+    private static final long ENQUEUE_MAX_BACKOFF_MILLIS = 1000;
+
+    /** Randomizes the backoffs, so that concurrent requests do not collide */
+    private static final Random JITTER = new Random();
+
+    /** How many times we'll try to enqueue a batch of tasks */
+    private static final int MAX_ENQUEUE_ATTEMPTS = 5;
+
+    /**
+     * Above this number of wakes in {@link #scheduledWakes}, those whose task
+     * have fired are removed
+     */
+    private static final int MAX_TRACKED_WAKES = 4096;
+
     /**
      * We will aggregate all wake requests during this delay, so as to help
-     * preventing C2DM flood if the user is flooding the gateway
+     * preventing C2DM flood if the user is flooding the gateway. It can be
+     * overridden by the {@value #WAKE_DELAY_MILLIS_PROPERTY} system property.
      */
     private static final long WAKE_DELAY_MILLIS = 2 * 1000;
 
+    /** The system property overriding {@link #WAKE_DELAY_MILLIS} */
+    public static final String WAKE_DELAY_MILLIS_PROPERTY =
+            "net.vleu.par.gateway.wakeDelayMillis";
+
+    /**
+     * The system property holding the {@link WakeMode}, defaults to
+     * {@link WakeMode#PUSH}
+     */
+    public static final String WAKE_MODE_PROPERTY =
+            "net.vleu.par.gateway.wakeMode";
+
     /**
-     * TODO: The current task name are created using the time as a simple way to
-     * prevent redundant wake ups, using the fact that
-     * {@link #WAKE_DELAY_MILLIS} ms are required before the task to fire. A
-     * better way of doing this might be to use memcache
+     * Adds the tasks to the queue with a single batched call. Transient
+     * failures are retried after a jittered exponential backoff, at most
+     * {@value #MAX_ENQUEUE_ATTEMPTS} times.
      * 
-     * @param deviceId
-     *            The device that will be woken up
-     * @return A task name
+     * @param queue
+     *            Where to add the tasks
+     * @param tasks
+     *            The tasks to add
+     * @return True if the tasks were added
      */
-    private static String buildTaskName(final DeviceId deviceId) {
-        return Long.toHexString(System.currentTimeMillis() / WAKE_DELAY_MILLIS)
-            + '_' + deviceId.value;
+    private static boolean addTasks(final Queue queue,
+            final List<TaskOptions> tasks) {
+        long backoffMillis = ENQUEUE_MIN_BACKOFF_MILLIS;
+        for (int attempt = 1;; attempt++) {
+            try {
+                queue.add(tasks);
+                return true;
+            }
+            catch (final TaskAlreadyExistsException e) {
+                /*
+                 * Ignored, the device will be awoken. The tasks that did not
+                 * exist have been added anyway.
+                 */
+                LOG.fine("Some tasks already existed: " + e);
+                return true;
+            }
+            catch (final TransientFailureException e) {
+                if (attempt >= MAX_ENQUEUE_ATTEMPTS) {
+                    LOG.severe("Failed enqueueing " + tasks.size()
+                        + " tasks after " + attempt + " attempts: " + e);
+                    return false;
+                }
+                LOG.warning("TransientFailureException while enqueueing "
+                    + tasks.size() + " tasks: " + e + " Retrying in at most "
+                    + backoffMillis + " ms");
+            }
+            try {
+                Thread.sleep(1 + JITTER.nextInt((int) backoffMillis));
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoffMillis =
+                    Math.min(2 * backoffMillis, ENQUEUE_MAX_BACKOFF_MILLIS);
+        }
     }
 
     /**
-     * The GAE datastores where to get the {@link DeviceEntity}. They have to be
-     * thread-local because the {@link DatastoreService} are not thread-safe.
+     * Builds the payload of a pull task
+     * 
+     * @see #parsePayload(byte[])
      */
-    private final ThreadLocal<DatastoreService> datastores;
+    private static byte[] buildPayload(final UserId ownerId,
+            final DeviceId deviceId) {
+        try {
+            return (deviceId.value + PAYLOAD_SEPARATOR + ownerId.asString())
+                    .getBytes(UTF8);
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new InternalError("UTF-8 is not supported");
+        }
+    }
+
+    /**
+     * Builds the key used in {@link #scheduledWakes}
+     */
+    private static String buildWakeKey(final UserId ownerId,
+            final DeviceId deviceId) {
+        return ownerId.asString() + '/' + deviceId.value;
+    }
+
+    /**
+     * Parses the payload of a pull task
+     * 
+     * @param payload
+     *            As built by {@link #buildPayload(UserId, DeviceId)}
+     * @return The key of the device to wake up, or null if the payload is
+     *         invalid
+     */
+    private static Key parsePayload(final byte[] payload) {
+        final String asString;
+        try {
+            asString = new String(payload, UTF8);
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new InternalError("UTF-8 is not supported");
+        }
+        final int separatorIndex = asString.indexOf(PAYLOAD_SEPARATOR);
+        if (separatorIndex < 0)
+            return null;
+        final String deviceIdStr = asString.substring(0, separatorIndex);
+        final String userIdStr = asString.substring(separatorIndex + 1);
+        if (!DeviceId.isValidDeviceIdString(deviceIdStr))
+            return null;
+        return DeviceEntity.keyForIds(UserId.fromGoogleAuthId(userIdStr),
+                new DeviceId(deviceIdStr));
+    }
+
+    /**
+     * The GAE datastores where to get the {@link DeviceEntity}
+     * asynchronously. They have to be thread-local because the
+     * {@link AsyncDatastoreService} are not thread-safe.
+     */
+    private final ThreadLocal<AsyncDatastoreService> asyncDatastores;
+
+    /** Where to get the {@link DeviceEntity} from, when they are cached */
+    private final DeviceCache deviceCache;
 
     /** Used to form the requests to Google C2DM */
     private final C2dmRequestFactory requestFactory;
 
+    /**
+     * Maps the keys built by {@link #buildWakeKey(UserId, DeviceId)} to the
+     * time when the last wake task queued by this instance for that device
+     * will fire
+     */
+    private final ConcurrentHashMap<String, Long> scheduledWakes =
+            new ConcurrentHashMap<String, Long>();
+
+    /** Where the wake tasks go in the {@link WakeMode#PULL} mode */
+    private final Queue pullQueue;
+
+    /**
+     * Where the wake tasks go in the {@link WakeMode#PUSH} mode, and the tasks
+     * that drain {@link #pullQueue} in the {@link WakeMode#PULL} mode
+     */
     private final Queue taskQueue;
 
     /** Used to perform the requests to Google C2DM */
     final ThreadLocal<URLFetchService> urlFetchService;
 
+    /** How long the wake requests are coalesced before the device is woken */
+    private final long wakeDelayMillis;
+
+    private final WakeMode wakeMode;
+
     public DeviceWaker() {
-        this(ThreadLocalDatastoreService.getSingleton(),
+        this(DeviceCache.getSingleton(),
+                ThreadLocalAsyncDatastoreService.getSingleton(),
                 new C2dmRequestFactory(), QueueFactory
                         .getQueue(DeviceWakerServlet.APPENGINE_QUEUE_NAME),
+                QueueFactory
+                        .getQueue(DeviceWakerBatchServlet.APPENGINE_QUEUE_NAME),
                 new ThreadLocal<URLFetchService>() {
                     @Override
                     protected URLFetchService initialValue() {
                         return URLFetchServiceFactory.getURLFetchService();
                     }
-                });
+                }, Long.getLong(WAKE_DELAY_MILLIS_PROPERTY, WAKE_DELAY_MILLIS),
+                WakeMode.valueOf(System.getProperty(WAKE_MODE_PROPERTY,
+                        WakeMode.PUSH.name())));
     }
 
     /** Allows for injecting the private fields, for testing purposes */
-    DeviceWaker(final ThreadLocal<DatastoreService> datastoreService,
+    DeviceWaker(final DeviceCache deviceCache,
+            final ThreadLocal<AsyncDatastoreService> asyncDatastoreService,
             final C2dmRequestFactory requestFactory, final Queue taskQueue,
-            final ThreadLocal<URLFetchService> urlFetchService) {
-        this.datastores = datastoreService;
+            final Queue pullQueue,
+            final ThreadLocal<URLFetchService> urlFetchService,
+            final long wakeDelayMillis, final WakeMode wakeMode) {
+        if (wakeDelayMillis <= 0)
+            throw new IllegalArgumentException("Invalid wake delay: "
+                + wakeDelayMillis);
+        this.deviceCache = deviceCache;
+        this.asyncDatastores = asyncDatastoreService;
         this.requestFactory = requestFactory;
         this.taskQueue = taskQueue;
+        this.pullQueue = pullQueue;
         this.urlFetchService = urlFetchService;
+        this.wakeDelayMillis = wakeDelayMillis;
+        this.wakeMode = wakeMode;
     }
 
-    public boolean queueWake(final UserId ownerId, final DeviceId deviceId) {
-        final int MAX_RETRIES = 10;
-        final TaskOptions options = TaskOptions.Builder.withDefaults();
-        int retried = 0;
-        boolean done = false;
-        options.param(DeviceWakerServlet.DEVICE_ID_HTTP_PARAM, deviceId.value);
-        options.param(DeviceWakerServlet.USER_ID_HTTP_PARAM, ownerId.asString());
-        options.countdownMillis(WAKE_DELAY_MILLIS);
-        options.taskName(buildTaskName(deviceId));
-
-        do
+    /**
+     * The task names are created using the time, so that the instances do not
+     * queue redundant wake ups for the same window
+     * 
+     * @param deviceId
+     *            The device that will be woken up
+     * @param nowMillis
+     *            The current time
+     * @return A task name
+     */
+    private String buildTaskName(final DeviceId deviceId, final long nowMillis) {
+        return Long.toHexString(nowMillis / this.wakeDelayMillis) + '_'
+            + deviceId.value;
+    }
+
+    /**
+     * Leases at most maxTasks wake tasks from the pull queue and wakes the
+     * devices up. The devices are read from the {@link DeviceCache} in a
+     * single batch, then woken through a {@link WakePipeline}. The tasks that
+     * succeeded, or that cannot ever succeed, are deleted; the others will be
+     * leased again once their lease expires.
+     * 
+     * @param c2dmAuthToken
+     *            The client login token for authenticating with Google C2DM
+     *            servers
+     * @param maxTasks
+     *            The maximal number of tasks to lease
+     * @return What happened
+     */
+    DrainResult drainPullQueue(final ClientLoginToken c2dmAuthToken,
+            final int maxTasks) {
+        final List<TaskHandle> leased =
+                this.pullQueue.leaseTasks(LEASE_MILLIS, TimeUnit.MILLISECONDS,
+                        maxTasks);
+        final ArrayList<TaskHandle> doneTasks = new ArrayList<TaskHandle>();
+        final LinkedHashMap<Key, List<TaskHandle>> tasksByDevice =
+                new LinkedHashMap<Key, List<TaskHandle>>();
+        ClientLoginToken updatedC2dmAuthToken = null;
+        boolean c2dmAuthTokenRejected = false;
+        int failedTasks = 0;
+
+        /* Groups the tasks by device */
+        for (final TaskHandle task : leased) {
+            final Key deviceKey = parsePayload(task.getPayload());
+            if (deviceKey == null) {
+                LOG.severe("Invalid wake task: " + task.getName());
+                doneTasks.add(task);
+                continue;
+            }
+            List<TaskHandle> deviceTasks = tasksByDevice.get(deviceKey);
+            if (deviceTasks == null) {
+                deviceTasks = new ArrayList<TaskHandle>(1);
+                tasksByDevice.put(deviceKey, deviceTasks);
+            }
+            deviceTasks.add(task);
+        }
+
+        /* Reads the devices and starts waking them up */
+        final Map<Key, Entity> deviceEntities =
+                this.deviceCache.getAll(tasksByDevice.keySet());
+        final WakePipeline pipeline = newPipeline(c2dmAuthToken);
+        final LinkedHashMap<Key, Future<ClientLoginToken>> wakes =
+                new LinkedHashMap<Key, Future<ClientLoginToken>>();
+        for (final Map.Entry<Key, List<TaskHandle>> entry : tasksByDevice
+                .entrySet()) {
+            final Entity deviceEntity = deviceEntities.get(entry.getKey());
+            if (deviceEntity == null) {
+                LOG.severe("Unknown device: " + entry.getKey());
+                doneTasks.addAll(entry.getValue());
+                continue;
+            }
+            wakes.put(entry.getKey(), pipeline.wake(deviceEntity));
+        }
+
+        /* Waits for the wakes, which drives the pipeline */
+        for (final Map.Entry<Key, Future<ClientLoginToken>> entry : wakes
+                .entrySet()) {
+            final List<TaskHandle> deviceTasks =
+                    tasksByDevice.get(entry.getKey());
             try {
-                this.taskQueue.add(options);
-                done = true;
+                final ClientLoginToken newToken = entry.getValue().get();
+                if (newToken != null)
+                    updatedC2dmAuthToken = newToken;
+                doneTasks.addAll(deviceTasks);
+                continue;
             }
-            catch (final TaskAlreadyExistsException e) {
-                /* Ignored, the device will be awoken */
-                done = true;
-                LOG.warning("Queueing done (existed)");
+            catch (final ExecutionException e) {
+                if (e.getCause() instanceof InvalidC2dmClientLoginToken)
+                    c2dmAuthTokenRejected = true;
+                else
+                    LOG.warning("Failed waking " + entry.getKey() + ": "
+                        + e.getCause());
             }
-            catch (final TransientFailureException e) {
-                retried++;
-                LOG.warning("TransientFailureException while enqueueing a task: "
-                    + e.toString() + " Retried " + retried + " times");
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        while (!done && retried < MAX_RETRIES);
-        if (!done)
-            LOG.severe("Failed enqueueing a task. Retried " + retried
-                + " times");
-        return done;
+            failedTasks += deviceTasks.size();
+        }
+
+        if (!doneTasks.isEmpty())
+            this.pullQueue.deleteTask(doneTasks);
+        return new DrainResult(leased.size(), failedTasks,
+                updatedC2dmAuthToken, c2dmAuthTokenRejected);
+    }
+
+    /**
+     * Removes the wakes whose task have fired from {@link #scheduledWakes}, if
+     * it holds more than {@value #MAX_TRACKED_WAKES} of them
+     * 
+     * @param nowMillis
+     *            The current time
+     */
+    private void forgetFiredWakesIfTooMany(final long nowMillis) {
+        if (this.scheduledWakes.size() <= MAX_TRACKED_WAKES)
+            return;
+        final Iterator<Long> iterator =
+                this.scheduledWakes.values().iterator();
+        while (iterator.hasNext())
+            if (iterator.next() <= nowMillis)
+                iterator.remove();
+    }
+
+    /**
+     * @return Where the {@link DeviceEntity}s are read from, whose counters
+     *         are worth logging
+     */
+    DeviceCache getDeviceCache() {
+        return this.deviceCache;
+    }
+
+    /**
+     * @param c2dmAuthToken
+     *            Used to authenticate with Google C2DM servers
+     * @return A new {@link WakePipeline}, for use by the calling thread
+     */
+    public WakePipeline newPipeline(final ClientLoginToken c2dmAuthToken) {
+        return new WakePipeline(c2dmAuthToken);
+    }
+
+    /**
+     * Queues a task that will drain the pull queue, in the
+     * {@link WakeMode#PULL} mode
+     * 
+     * @param countdownMillis
+     *            How long to wait before draining
+     * @return False if the task could not be queued
+     */
+    boolean queueDrain(final long countdownMillis) {
+        final TaskOptions drainTask =
+                TaskOptions.Builder.withUrl(DeviceWakerBatchServlet.URL);
+        drainTask.countdownMillis(countdownMillis);
+        return addTasks(this.taskQueue, Collections.singletonList(drainTask));
+    }
+
+    /**
+     * Queues a task that will wake the device up.
+     * 
+     * @see #queueWakes(UserId, Collection)
+     * @param ownerId
+     *            The user who registered the device
+     * @param deviceId
+     *            The device to wake up
+     * @return False if the task could not be queued
+     */
+    public boolean queueWake(final UserId ownerId, final DeviceId deviceId) {
+        return queueWakes(ownerId, Collections.singleton(deviceId));
+    }
+
+    /**
+     * Queues tasks that will wake the devices up once
+     * {@link #wakeDelayMillis} ms have passed, so that the wakes requested
+     * during that window are coalesced. The devices for which this instance
+     * already queued a task that has not fired yet are skipped, and the others
+     * are queued with a single batched call.
+     * 
+     * @param ownerId
+     *            The user who registered the devices
+     * @param deviceIds
+     *            The devices to wake up
+     * @return False if the tasks could not be queued
+     */
+    public boolean queueWakes(final UserId ownerId,
+            final Collection<DeviceId> deviceIds) {
+        final long nowMillis = System.currentTimeMillis();
+        final Long fireTimeMillis = nowMillis + this.wakeDelayMillis;
+        final ArrayList<String> reservedKeys =
+                new ArrayList<String>(deviceIds.size());
+        final ArrayList<TaskOptions> tasks =
+                new ArrayList<TaskOptions>(deviceIds.size());
+        forgetFiredWakesIfTooMany(nowMillis);
+        for (final DeviceId deviceId : deviceIds) {
+            final String key = buildWakeKey(ownerId, deviceId);
+            if (!reserveWake(key, nowMillis, fireTimeMillis))
+                continue;
+            final TaskOptions options;
+            if (this.wakeMode == WakeMode.PULL) {
+                options = TaskOptions.Builder.withMethod(Method.PULL);
+                options.payload(buildPayload(ownerId, deviceId));
+            }
+            else {
+                options = TaskOptions.Builder.withDefaults();
+                options.param(DeviceWakerServlet.DEVICE_ID_HTTP_PARAM,
+                        deviceId.value);
+                options.param(DeviceWakerServlet.USER_ID_HTTP_PARAM,
+                        ownerId.asString());
+            }
+            options.countdownMillis(this.wakeDelayMillis);
+            options.taskName(buildTaskName(deviceId, nowMillis));
+            reservedKeys.add(key);
+            tasks.add(options);
+        }
+        if (tasks.isEmpty())
+            return true;
+        if (this.wakeMode == WakeMode.PULL) {
+            /*
+             * Within a window, all instances add the same drain task. It
+             * fires once all the wake tasks added during the window can be
+             * leased.
+             */
+            final long window = nowMillis / this.wakeDelayMillis;
+            final TaskOptions drainTask =
+                    TaskOptions.Builder.withUrl(DeviceWakerBatchServlet.URL);
+            drainTask.taskName("drain_" + Long.toHexString(window));
+            drainTask.etaMillis((window + 2) * this.wakeDelayMillis);
+            if (addTasks(this.pullQueue, tasks)
+                && addTasks(this.taskQueue, Collections
+                        .singletonList(drainTask)))
+                return true;
+        }
+        else if (addTasks(this.taskQueue, tasks))
+            return true;
+        /* Lets the next call retry */
+        for (final String key : reservedKeys)
+            this.scheduledWakes.remove(key, fireTimeMillis);
+        return false;
     }
 
     /**
@@ -207,29 +948,53 @@ public class DeviceWaker {
     ClientLoginToken reallyWake(final ClientLoginToken c2dmAuthToken,
             final UserId ownerId, final DeviceId deviceId) throws IOException,
             EntityNotFoundException, InvalidC2dmClientLoginToken {
-        final Key deviceKey = DeviceEntity.keyForIds(ownerId, deviceId);
-        final Entity deviceEntity = this.datastores.get().get(null, deviceKey);
-        final Device device = DeviceEntity.deviceFromEntity(deviceEntity);
-        if (device.hasC2dmRegistrationId()) {
-            LOG.severe("Waking up the device using id: "
-                + device.getC2dmRegistrationId());
-            final C2dmToken c2dmRegistrationId = device.getC2dmRegistrationId();
-            final HTTPRequest request =
-                    this.requestFactory.buildRequest(c2dmAuthToken,
-                            c2dmRegistrationId);
-            final HTTPResponse response =
-                    this.urlFetchService.get().fetch(request);
-            if (response.getResponseCode() == 200)
-                return readNewAuthTokenFromC2dmResponse(response);
-            else if (response.getResponseCode() == 401)
-                throw new InvalidC2dmClientLoginToken();
+        final Future<ClientLoginToken> future =
+                newPipeline(c2dmAuthToken).wake(ownerId, deviceId);
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waking the device");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof EntityNotFoundException)
+                throw (EntityNotFoundException) cause;
+            else if (cause instanceof InvalidC2dmClientLoginToken)
+                throw (InvalidC2dmClientLoginToken) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
             else
-                throw new IOException("The C2DM server anwsered a "
-                    + response.getResponseCode() + " error.");
+                throw new IOException(cause.toString());
         }
-        else {
-            LOG.finest("Won't wake the device because it is not registered with C2DM");
-            return null;
+    }
+
+    /**
+     * Records in {@link #scheduledWakes} that a wake is about to be queued,
+     * unless one is already scheduled
+     * 
+     * @param key
+     *            As per {@link #buildWakeKey(UserId, DeviceId)}
+     * @param nowMillis
+     *            The current time
+     * @param fireTimeMillis
+     *            When the task about to be queued will fire
+     * @return False if a wake is already scheduled
+     */
+    private boolean reserveWake(final String key, final long nowMillis,
+            final Long fireTimeMillis) {
+        while (true) {
+            final Long previous =
+                    this.scheduledWakes.putIfAbsent(key, fireTimeMillis);
+            if (previous == null)
+                return true;
+            else if (previous > nowMillis)
+                return false;
+            else if (this.scheduledWakes.replace(key, previous, fireTimeMillis))
+                return true;
         }
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.gateway.DeviceWaker.DrainResult;
+import net.vleu.par.gateway.DeviceWaker.WakeMode;
+
+/**
+ * This class is a callback used by AppEngine's Tasks API, in the
+ * {@link WakeMode#PULL} mode, for the tasks that drain the pull queue where
+ * {@link DeviceWaker#queueWakes(net.vleu.par.models.UserId, java.util.Collection)}
+ * puts the wake tasks. Each call wakes up to {@link #maxLeasedTasks} devices.
+ */
+@ThreadSafe
+@SuppressWarnings("serial")
+public class DeviceWakerBatchServlet extends HttpServlet {
+    /** The pull queue where the wake tasks are */
+    public static final String APPENGINE_QUEUE_NAME = "deviceWakerPullQueue";
+
+    private static final Logger LOG = Logger
+            .getLogger(DeviceWakerBatchServlet.class.getName());
+
+    /**
+     * Default for the maximal number of tasks leased by a single call. It can
+     * be overridden by the {@value #MAX_LEASED_TASKS_INIT_PARAM}
+     * init-parameter.
+     */
+    public static final int MAX_LEASED_TASKS = 100;
+
+    /**
+     * Name of the servlet init-parameter overriding {@link #MAX_LEASED_TASKS}
+     */
+    public static final String MAX_LEASED_TASKS_INIT_PARAM = "maxLeasedTasks";
+
+    /**
+     * The largest value accepted for {@value #MAX_LEASED_TASKS_INIT_PARAM}, as
+     * per the task queue API
+     */
+    private static final int MAX_LEASED_TASKS_LIMIT = 1000;
+
+    /** The URL this servlet must be mapped to */
+    public static final String URL = "/_ah/queue/deviceWakerBatch";
+
+    /** The C2DM authentication token */
+    private final C2dmAuthTokenCache c2dmAuthToken;
+
+    private final DeviceWaker deviceWaker;
+
+    /**
+     * Maximal number of tasks leased by a single call, set from the
+     * {@value #MAX_LEASED_TASKS_INIT_PARAM} init-parameter by {@link #init()}
+     */
+    private volatile int maxLeasedTasks = MAX_LEASED_TASKS;
+
+    public DeviceWakerBatchServlet() {
+        this(new DeviceWaker(), new ServletHelper());
+    }
+
+    /** Allows for injecting the private fields, for testing purposes */
+    DeviceWakerBatchServlet(final DeviceWaker deviceWaker,
+            final ServletHelper servletHelper) {
+        this.deviceWaker = deviceWaker;
+        this.c2dmAuthToken = new C2dmAuthTokenCache(servletHelper);
+    }
+
+    /** @inherit */
+    @Override
+    public void doPost(final HttpServletRequest req,
+            final HttpServletResponse resp) throws IOException {
+        if (req.getHeader("X-AppEngine-QueueName") == null) {
+            resp.sendError(HttpCodes.HTTP_FORBIDDEN_STATUS,
+                    "Requests must be made through a Queue");
+            LOG.severe("No X-AppEngine-QueueName parameter");
+            return;
+        }
+
+        final int maxTasks = this.maxLeasedTasks;
+        final DrainResult result;
+        try {
+            result =
+                    this.deviceWaker.drainPullQueue(this.c2dmAuthToken.get(),
+                            maxTasks);
+        }
+        catch (final RuntimeException e) {
+            LOG.severe("Failed waking the devices: " + e.toString());
+            throw e;
+        }
+        this.c2dmAuthToken.update(result.updatedC2dmAuthToken);
+        if (result.c2dmAuthTokenRejected) {
+            // This handles the case where another server refreshes the token
+            LOG.warning("Cached value of the C2DM auth token is invalid. Forcing a refresh.");
+            this.c2dmAuthToken.reset();
+        }
+
+        /* Makes sure the remaining tasks will be drained */
+        if (result.leasedTasks >= maxTasks)
+            this.deviceWaker.queueDrain(0);
+        else if (result.failedTasks > 0)
+            this.deviceWaker.queueDrain(DeviceWaker.LEASE_MILLIS);
+
+        LOG.info("Leased " + result.leasedTasks + " wake tasks, "
+            + result.failedTasks + " failed, "
+            + this.deviceWaker.getDeviceCache());
+        resp.setContentType("text/plain");
+        resp.getWriter().println("Done.");
+    }
+
+    /**
+     * Reads the {@value #MAX_LEASED_TASKS_INIT_PARAM} init-parameter, if any
+     * 
+     * @throws ServletException
+     *             If the parameter is not a positive integer, or is too large
+     */
+    @Override
+    public void init() throws ServletException {
+        final String maxLeasedTasksStr =
+                getInitParameter(MAX_LEASED_TASKS_INIT_PARAM);
+        if (maxLeasedTasksStr == null)
+            return;
+        try {
+            this.maxLeasedTasks = Integer.parseInt(maxLeasedTasksStr);
+        }
+        catch (final NumberFormatException e) {
+            throw new ServletException("Invalid " + MAX_LEASED_TASKS_INIT_PARAM
+                + ": " + maxLeasedTasksStr, e);
+        }
+        if (this.maxLeasedTasks <= 0
+            || this.maxLeasedTasks > MAX_LEASED_TASKS_LIMIT)
+            throw new ServletException("Invalid " + MAX_LEASED_TASKS_INIT_PARAM
+                + ": " + maxLeasedTasksStr);
+    }
+}
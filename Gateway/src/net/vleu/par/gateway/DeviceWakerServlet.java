@@ -49,26 +49,11 @@ public class DeviceWakerServlet extends HttpServlet {
      */
     public static final String USER_ID_HTTP_PARAM = "userId";
 
-    /**
-     * A cached C2DM authentication token. <br>
-     * It will be refreshed from the {@link #servletHelper} (
-     * {@link ServletHelper#readServerConfiguration()}) when rejected by C2DM
-     * server, thus handling the case where another node gets the updated value. <br>
-     * May be null if there is no cached value. All accesses should be done
-     * through {@link #getC2dmAuthToken()},
-     * {@link #setC2dmAuthToken(ClientLoginToken)} and
-     * {@link #resetCachedC2dmAuthToken()}
-     * 
-     * @see DeviceWakerServlet#getC2dmAuthToken()
-     * @see DeviceWakerServlet#setC2dmAuthToken(ClientLoginToken)
-     * @see DeviceWakerServlet#resetCachedC2dmAuthToken()
-     */
-    private volatile ClientLoginToken cachedC2dmAuthToken;
+    /** The C2DM authentication token */
+    private final C2dmAuthTokenCache c2dmAuthToken;
 
     private final DeviceWaker deviceWaker;
 
-    private final ServletHelper servletHelper;
-
     public DeviceWakerServlet() {
         this(new DeviceWaker(), new ServletHelper());
     }
@@ -77,7 +62,7 @@ public class DeviceWakerServlet extends HttpServlet {
     DeviceWakerServlet(final DeviceWaker deviceWaker,
             final ServletHelper servletHelper) {
         this.deviceWaker = deviceWaker;
-        this.servletHelper = servletHelper;
+        this.c2dmAuthToken = new C2dmAuthTokenCache(servletHelper);
     }
 
     /** @inherit */
@@ -123,14 +108,9 @@ public class DeviceWakerServlet extends HttpServlet {
         userId = UserId.fromGoogleAuthId(stringUserId);
         try {
             final ClientLoginToken updatedC2dmAuthToken =
-                    this.deviceWaker.reallyWake(getC2dmAuthToken(), userId,
-                            deviceId);
-            if (updatedC2dmAuthToken != null
-                && !getC2dmAuthToken().equals(updatedC2dmAuthToken)) {
-                LOG.info("Got updated auth token from C2DM servers: "
-                    + updatedC2dmAuthToken);
-                setC2dmAuthToken(updatedC2dmAuthToken);
-            }
+                    this.deviceWaker.reallyWake(this.c2dmAuthToken.get(),
+                            userId, deviceId);
+            this.c2dmAuthToken.update(updatedC2dmAuthToken);
         }
         catch (final EntityNotFoundException e) {
             LOG.severe("Unknown device: " + deviceIdStr);
@@ -141,7 +121,7 @@ public class DeviceWakerServlet extends HttpServlet {
         catch (final InvalidC2dmClientLoginToken e) {
             // This handles the case where another server refreshes the token
             LOG.warning("Cached value of the C2DM auth token is invalid. Forcing a refresh.");
-            resetCachedC2dmAuthToken();
+            this.c2dmAuthToken.reset();
             // GAE task queue will retry later
             resp.sendError(HttpCodes.HTTP_INTERNAL_ERROR_STATUS);
             return;
@@ -159,43 +139,4 @@ public class DeviceWakerServlet extends HttpServlet {
         // checking that either the first is planned or that there are no
         // longer any items to deliver
     }
-
-    /**
-     * @return {@link #cachedC2dmAuthToken} if not null, else reads it from
-     *         {@link ServletHelper#readServerConfiguration() it} and refreshes
-     *         the cached copy
-     */
-    private ClientLoginToken getC2dmAuthToken() {
-        ClientLoginToken res = this.cachedC2dmAuthToken;
-        if (res == null) {
-            final ServerConfiguration config =
-                    this.servletHelper.readServerConfiguration();
-            res = config.getC2dmAuthToken();
-            this.cachedC2dmAuthToken = res;
-        }
-        return res;
-    }
-
-    /**
-     * Sets {@link #cachedC2dmAuthToken} to null, thus discarding the cached
-     * value
-     */
-    private void resetCachedC2dmAuthToken() {
-        this.cachedC2dmAuthToken = null;
-    }
-
-    /**
-     * Sets {@link #cachedC2dmAuthToken} and stores an updated configuration
-     * using
-     * {@link ServletHelper#persistServerConfiguration(ServerConfiguration)
-
-     */
-    private void setC2dmAuthToken(final ClientLoginToken newC2dmAuthToken) {
-        assert (newC2dmAuthToken != null);
-        this.cachedC2dmAuthToken = newC2dmAuthToken;
-        final ServerConfiguration config =
-                this.servletHelper.readServerConfiguration();
-        config.setC2dmCAuthToken(newC2dmAuthToken);
-        this.servletHelper.persistServerConfiguration(config);
-    }
 }
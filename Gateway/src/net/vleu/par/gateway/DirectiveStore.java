@@ -16,13 +16,17 @@
  */
 package net.vleu.par.gateway;
 
-import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 import net.vleu.par.gateway.datastore.DeviceEntity;
 import net.vleu.par.gateway.datastore.DirectiveEntity;
@@ -32,29 +36,146 @@ import net.vleu.par.gateway.datastore.TransactionHelper;
 import net.vleu.par.models.DeviceId;
 import net.vleu.par.models.Directive;
 import net.vleu.par.models.UserId;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.datastore.Transaction;
 
+/**
+ * Stores the directives until the device they are queued for acknowledges
+ * them, as described in "big_picture.txt" at the root of the project.
+ * 
+ * The directives of a device can be spread over many shards, as described in
+ * {@link DirectiveEntity}. The number of shards must not be lowered while
+ * directives are queued in the shards that would be dropped.
+ */
 @ThreadSafe
 public class DirectiveStore {
-    private static final FetchOptions FETCH_ALL_OPTIONS = withChunkSize(
-            Integer.MAX_VALUE).prefetchSize(Integer.MAX_VALUE);
+    /**
+     * This POJO holds the result of a call to
+     * {@link DirectiveStore#fetch(UserId, DeviceId, List, PageCursor, int)}
+     */
+    public static final class DirectivesPage {
+        /**
+         * The creators that were acknowledged and have no more directives
+         * queued, the device can forget about them
+         */
+        public final ArrayList<Long> creatorIdsToForget;
+        /**
+         * Where to start the next call to fetch the remaining directives, null
+         * if there are none left
+         */
+        public final PageCursor cursor;
+        /** The directives that are still queued for the device */
+        public final ArrayList<Directive> directives;
+
+        DirectivesPage(final ArrayList<Directive> directives,
+                final PageCursor cursor,
+                final ArrayList<Long> creatorIdsToForget) {
+            this.directives = directives;
+            this.cursor = cursor;
+            this.creatorIdsToForget = creatorIdsToForget;
+        }
+    }
+
+    /**
+     * Where a {@link DirectivesPage} stopped: a shard and a position in it.
+     * The cursors of shard 0 are written like a plain {@link Cursor}, so that
+     * they are the same as before the shards existed.
+     */
+    @Immutable
+    public static final class PageCursor {
+        /** Separates the shard from the cursor in its web-safe form */
+        private static final char SHARD_SEPARATOR = '.';
+
+        /**
+         * @param webSafeString
+         *            As returned by {@link #toWebSafeString()}
+         * @return The parsed cursor
+         * @throws IllegalArgumentException
+         *             If the string is not a valid cursor
+         */
+        public static PageCursor fromWebSafeString(final String webSafeString)
+                throws IllegalArgumentException {
+            final int separatorIndex = webSafeString.indexOf(SHARD_SEPARATOR);
+            if (separatorIndex < 0)
+                return new PageCursor(0, Cursor
+                        .fromWebSafeString(webSafeString));
+            final int shard =
+                    Integer.parseInt(webSafeString.substring(0, separatorIndex));
+            if (shard < 0)
+                throw new IllegalArgumentException("Invalid shard: " + shard);
+            return new PageCursor(shard, Cursor.fromWebSafeString(webSafeString
+                    .substring(separatorIndex + 1)));
+        }
+
+        /** Where to start in {@link #shard} */
+        final Cursor cursor;
+
+        /** The shard to start from */
+        final int shard;
+
+        PageCursor(final int shard, final Cursor cursor) {
+            this.shard = shard;
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return A string suitable for
+         *         {@link PageCursor#fromWebSafeString(String)}
+         */
+        public String toWebSafeString() {
+            if (this.shard == 0)
+                return this.cursor.toWebSafeString();
+            return Integer.toString(this.shard) + SHARD_SEPARATOR
+                + this.cursor.toWebSafeString();
+        }
+    }
+
+    /**
+     * The system property overriding the number of shards, 1 by default. More
+     * shards only help devices written to by many creators concurrently, see
+     * {@link DirectiveEntity#shardForCreator(long, int)}.
+     */
+    public static final String DIRECTIVE_SHARDS_PROPERTY =
+            "net.vleu.par.gateway.directiveShards";
 
     private static final Logger LOG = Logger.getLogger(DirectiveStore.class
             .getName());
 
+    /**
+     * How many directives of a single creator will be deleted at most by one
+     * acknowledgement. Should there be more, they will be deleted by the next
+     * acknowledgement.
+     */
+    private static final int MAX_ACKNOWLEDGED_PER_CREATOR = 256;
+
+    /**
+     * How many directives a call to
+     * {@link #fetch(UserId, DeviceId, List, PageCursor, int)} should return at
+     * most, unless told otherwise. It bounds the memory used to drain a large
+     * backlog.
+     */
+    public static final int MAX_DIRECTIVES_PER_PAGE = 64;
+
     /**
      * The GAE datastore where to get the {@link DeviceEntity}. They have to be
      * thread-local because the {@link DatastoreService} are not thread-safe.
      */
     private final ThreadLocal<DatastoreService> datastores;
 
+    /** How many shards the directives of a device are spread over */
+    private final int shardsCount;
+
     public DirectiveStore() {
-        this(ThreadLocalDatastoreService.getSingleton());
+        this(ThreadLocalDatastoreService.getSingleton(), Integer.getInteger(
+                DIRECTIVE_SHARDS_PROPERTY, 1));
     }
 
     /**
@@ -62,48 +183,220 @@ public class DirectiveStore {
      * 
      * @param datastores
      *            ThreadGlobal datastores.
+     * @param shardsCount
+     *            How many shards the directives of a device are spread over
      */
-    DirectiveStore(final ThreadLocal<DatastoreService> datastores) {
+    DirectiveStore(final ThreadLocal<DatastoreService> datastores,
+            final int shardsCount) {
+        if (shardsCount < 1)
+            throw new IllegalArgumentException("Invalid shards count: "
+                + shardsCount);
         this.datastores = datastores;
+        this.shardsCount = shardsCount;
+    }
+
+    /**
+     * Lists the keys of the directives covered by an acknowledgement.
+     * 
+     * @param datastore
+     *            The datastore to query
+     * @param ownerId
+     *            The user who owns the device
+     * @param deviceId
+     *            The device that sent the acknowledgement
+     * @param acknowledgement
+     *            The latest directive the device applied for this creator
+     * @param acknowledgedKeys
+     *            The keys of the acknowledged directives will be added to it
+     * @return True if no other directive of this creator remains queued
+     */
+    private boolean listAcknowledged(final DatastoreService datastore,
+            final UserId ownerId, final DeviceId deviceId,
+            final DirectiveIdData acknowledgement,
+            final ArrayList<Key> acknowledgedKeys) {
+        final String lastAcknowledgedName =
+                DirectiveEntity.keyNameForId(acknowledgement.getCreatorId(),
+                        acknowledgement.getTimestamp());
+        final int shard =
+                DirectiveEntity.shardForCreator(acknowledgement.getCreatorId(),
+                        this.shardsCount);
+        boolean allAcknowledged = true;
+        /* Shard 0 holds what was stored before the sharding was enabled */
+        for (final int queriedShard : shard == 0 ? new int[] { 0 }
+                : new int[] { shard, 0 }) {
+            final Query query =
+                    DirectiveEntity.buildKeysQueryForCreator(ownerId, deviceId,
+                            acknowledgement.getCreatorId(), queriedShard);
+            final List<Entity> queryResult =
+                    datastore.prepare(query).asList(
+                            withLimit(MAX_ACKNOWLEDGED_PER_CREATOR));
+            for (final Entity entity : queryResult) {
+                final String name = entity.getKey().getName();
+                if (name.compareTo(lastAcknowledgedName) <= 0)
+                    acknowledgedKeys.add(entity.getKey());
+                else
+                    allAcknowledged = false;
+            }
+            if (queryResult.size() >= MAX_ACKNOWLEDGED_PER_CREATOR)
+                allAcknowledged = false;
+        }
+        return allAcknowledged;
     }
 
-    public ArrayList<Directive> fetchAndDelete(final UserId ownerId,
-            final DeviceId deviceId) throws TooManyConcurrentAccesses {
-        final String methodName =
-                getClass().getCanonicalName() + ".fetchAndDelete()";
+    /**
+     * Deletes the directives acknowledged by the device, then returns at most
+     * maxDirectives of the directives that are still queued for it.
+     * 
+     * Fetching is idempotent: directives are only deleted once acknowledged,
+     * so they will be returned again until then. The exception are the
+     * directives that have no {@link DirectiveIdData}, as they cannot be
+     * acknowledged: those are deleted once returned.
+     * 
+     * @param ownerId
+     *            The user who owns the device
+     * @param deviceId
+     *            The device whose directives are wanted
+     * @param acknowledgements
+     *            For each creator, the latest directive the device applied
+     * @param startCursor
+     *            The {@link DirectivesPage#cursor} returned by a previous call,
+     *            or null to start from the first queued directive. Its shard
+     *            must be lower than the number of shards.
+     * @param maxDirectives
+     *            The maximal number of directives to fetch
+     * @return The fetched directives, with a cursor if more may be left
+     */
+    public DirectivesPage fetch(final UserId ownerId, final DeviceId deviceId,
+            final List<DirectiveIdData> acknowledgements,
+            final PageCursor startCursor, final int maxDirectives) {
+        final DatastoreService datastore = this.datastores.get();
         final ArrayList<Directive> result = new ArrayList<Directive>();
-        final Query query =
-                DirectiveEntity
-                        .buildQueryForQueuedDirectives(ownerId, deviceId);
-        new TransactionHelper(this.datastores.get(), LOG, methodName) {
-            @Override
-            protected void doInsideTransaction(
-                    final DatastoreService datastore, final Transaction txn)
-                    throws ConcurrentModificationException {
-                final List<Entity> queryResult;
-                result.clear();
-                /* Lists the directives */
-                queryResult =
-                        datastore.prepare(txn, query).asList(FETCH_ALL_OPTIONS);
-                for (final Entity entity : queryResult)
-                    try {
-                        result.add(DirectiveEntity.directiveFromEntity(entity));
-                    }
-                    catch (final Exception e) {
-                        LOG.severe("An invalid Directive has been found in the datastore ! "
-                            + e);
-                        /*
-                         * The only thing we can do with an invalid directive is
-                         * to ignore it. It will be deleted with the valid
-                         * directives
-                         */
+        final ArrayList<Long> creatorIdsToForget = new ArrayList<Long>();
+        final ArrayList<Key> keysToDelete = new ArrayList<Key>();
+
+        /* Deletes the acknowledged directives */
+        for (final DirectiveIdData acknowledgement : acknowledgements)
+            if (listAcknowledged(datastore, ownerId, deviceId,
+                    acknowledgement, keysToDelete))
+                creatorIdsToForget.add(acknowledgement.getCreatorId());
+        if (!keysToDelete.isEmpty()) {
+            datastore.delete(keysToDelete);
+            keysToDelete.clear();
+        }
+
+        /*
+         * Lists the remaining directives. The queries of all the shards left
+         * are started before any is read, so that their RPCs overlap.
+         */
+        final int startShard = startCursor == null ? 0 : startCursor.shard;
+        final ArrayList<QueryResultIterator<Entity>> shardIterators =
+                new ArrayList<QueryResultIterator<Entity>>();
+        for (int shard = startShard; shard < this.shardsCount; shard++) {
+            final Query query =
+                    DirectiveEntity.buildQueryForQueuedDirectives(ownerId,
+                            deviceId, shard);
+            final FetchOptions fetchOptions =
+                    withLimit(maxDirectives).chunkSize(maxDirectives);
+            if (shard == startShard && startCursor != null)
+                fetchOptions.startCursor(startCursor.cursor);
+            shardIterators.add(datastore.prepare(query).asQueryResultIterator(
+                    fetchOptions));
+        }
+        PageCursor nextCursor = null;
+        for (int index = 0; index < shardIterators.size(); index++) {
+            final QueryResultIterator<Entity> iterator =
+                    shardIterators.get(index);
+            while (result.size() < maxDirectives && iterator.hasNext()) {
+                final Entity entity = iterator.next();
+                if (!DirectiveEntity.hasDirectiveId(entity.getKey()))
+                    keysToDelete.add(entity.getKey());
+                try {
+                    result.add(DirectiveEntity.directiveFromEntity(entity));
+                }
+                catch (final Exception e) {
+                    LOG.severe("An invalid Directive has been found in the datastore ! "
+                        + e);
+                    /*
+                     * The only thing we can do with an invalid directive is
+                     * to delete it.
+                     */
+                    keysToDelete.add(entity.getKey());
+                }
+            }
+            /* A full page means that there might be more to fetch */
+            if (result.size() == maxDirectives) {
+                nextCursor =
+                        new PageCursor(startShard + index, iterator.getCursor());
+                break;
+            }
+        }
+
+        /* Deletes the directives that cannot be acknowledged */
+        if (!keysToDelete.isEmpty())
+            datastore.delete(keysToDelete);
+        return new DirectivesPage(result, nextCursor, creatorIdsToForget);
+    }
+
+    /**
+     * Stores many directives at once. Directives queued in the same shard of a
+     * device belong to the same entity group, therefore they are written in a
+     * single transaction per shard with a single batched put.
+     * 
+     * @param ownerId
+     *            The user who owns all the devices
+     * @param directivesByDevice
+     *            The directives to store, grouped by recipient device
+     * @param storedDeviceIds
+     *            The devices for which at least one shard has been committed
+     *            are added to it as soon as it is, so that it is filled even
+     *            when this throws
+     * @throws TooManyConcurrentAccesses
+     *             If the writes for one of the devices failed, in which case
+     *             the directives for the devices that come before it in the
+     *             map's iteration order have been stored, as well as some of
+     *             the shards of the failing one, see storedDeviceIds
+     */
+    public void storeAll(final UserId ownerId,
+            final Map<DeviceId, List<Directive>> directivesByDevice,
+            final Collection<DeviceId> storedDeviceIds)
+            throws TooManyConcurrentAccesses {
+        final String methodName = getClass().getCanonicalName() + ".storeAll()";
+        for (final Map.Entry<DeviceId, List<Directive>> entry : directivesByDevice
+                .entrySet()) {
+            final DeviceId deviceId = entry.getKey();
+            /* Each shard is an entity group of its own */
+            final LinkedHashMap<Key, ArrayList<Entity>> entitiesByShard =
+                    new LinkedHashMap<Key, ArrayList<Entity>>();
+            for (final Directive directive : entry.getValue()) {
+                final Entity entity =
+                        DirectiveEntity.entityFromDirective(ownerId, deviceId,
+                                directive, this.shardsCount);
+                ArrayList<Entity> shardEntities =
+                        entitiesByShard.get(entity.getParent());
+                if (shardEntities == null) {
+                    shardEntities = new ArrayList<Entity>();
+                    entitiesByShard.put(entity.getParent(), shardEntities);
+                }
+                shardEntities.add(entity);
+            }
+            boolean stored = false;
+            for (final ArrayList<Entity> asEntities : entitiesByShard
+                    .values()) {
+                new TransactionHelper(this.datastores.get(), LOG, methodName) {
+                    @Override
+                    protected void doInsideTransaction(
+                            final DatastoreService datastore,
+                            final Transaction txn)
+                            throws ConcurrentModificationException {
+                        datastore.put(txn, asEntities);
                     }
-                /* Deletes the fetched entities */
-                for (final Entity entity : queryResult)
-                    datastore.delete(entity.getKey());
+                }.call();
+                if (!stored) {
+                    storedDeviceIds.add(deviceId);
+                    stored = true;
+                }
             }
-        }.call();
-        return result;
+        }
     }
 
     public void store(final UserId ownerId, final DeviceId deviceId,
@@ -111,7 +404,7 @@ public class DirectiveStore {
         final String methodName = getClass().getCanonicalName() + ".store()";
         final Entity asEntity =
                 DirectiveEntity.entityFromDirective(ownerId, deviceId,
-                        directive);
+                        directive, this.shardsCount);
         new TransactionHelper(this.datastores.get(), LOG, methodName) {
             @Override
             protected void doInsideTransaction(
@@ -0,0 +1,188 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.models.DeviceId;
+import net.vleu.par.models.UserId;
+
+import com.google.appengine.api.memcache.InvalidValueException;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Tells the requests long-polling for the directives of a device that some
+ * have just been stored for it, see {@link ApiServlet}.
+ * 
+ * Each device has a counter in the memcache, incremented by
+ * {@link #signal(UserId, Collection)} after the directives are stored. The
+ * waiting requests take a {@link Snapshot} of the counters before fetching
+ * the directives, then poll them until they change. When the memcache loses
+ * a counter, the waiting requests see it as a change and fetch the
+ * directives for nothing, which is harmless.
+ */
+@ThreadSafe
+public class DirectivesSignal {
+    /** The values of some counters at some point in time */
+    @Immutable
+    public static final class Snapshot {
+        private final ArrayList<String> keys;
+        private final Map<String, Object> values;
+
+        private Snapshot(final ArrayList<String> keys,
+                final Map<String, Object> values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    /** Prefixes the memcache keys of the counters */
+    private static final String COUNTER_KEY_PREFIX = "Directives-v0/";
+
+    private static final Logger LOG = Logger.getLogger(DirectivesSignal.class
+            .getName());
+
+    /**
+     * {@link #memcache} must have this as namespace
+     */
+    public static final String MEMCACHE_NAMESPACE = DirectivesSignal.class
+            .getSimpleName();
+
+    /**
+     * How long {@link #awaitChange(Snapshot, long)} sleeps between two reads
+     * of the counters
+     */
+    static final long POLL_INTERVAL_MILLIS = 250;
+
+    private static String memcacheKey(final UserId ownerId,
+            final DeviceId deviceId) {
+        return COUNTER_KEY_PREFIX + ownerId.asString() + "/" + deviceId.value;
+    }
+
+    /**
+     * Its namespace must be {@link #MEMCACHE_NAMESPACE}. Thread safe.
+     */
+    private final MemcacheService memcache;
+
+    public DirectivesSignal() {
+        this(MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE));
+    }
+
+    /**
+     * Allows dependency injection, for testing purposes.
+     * 
+     * @param memcache
+     *            Its namespace must be {@link #MEMCACHE_NAMESPACE}
+     */
+    public DirectivesSignal(final MemcacheService memcache) {
+        this.memcache = memcache;
+    }
+
+    /**
+     * Sleeps until the counters differ from the snapshot, or until the
+     * deadline
+     * 
+     * @param snapshot
+     *            As returned by {@link #snapshot(UserId, Collection)}
+     * @param deadlineMillis
+     *            When to give up, as per {@link System#currentTimeMillis()}
+     * @return True if the counters changed, false if the deadline passed or
+     *         the thread was interrupted
+     */
+    public boolean awaitChange(final Snapshot snapshot,
+            final long deadlineMillis) {
+        long remainingMillis = deadlineMillis - System.currentTimeMillis();
+        while (remainingMillis > 0) {
+            try {
+                Thread.sleep(Math.min(remainingMillis, POLL_INTERVAL_MILLIS));
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!readCounters(snapshot.keys).equals(snapshot.values))
+                return true;
+            remainingMillis = deadlineMillis - System.currentTimeMillis();
+        }
+        return false;
+    }
+
+    /**
+     * @param keys
+     *            The memcache keys of some counters
+     * @return Their values, without the ones that are missing, or an empty
+     *         map if the memcache failed
+     */
+    private Map<String, Object> readCounters(final ArrayList<String> keys) {
+        try {
+            return this.memcache.getAll(keys);
+        }
+        catch (final InvalidValueException _) {
+            LOG.finest("Error while accessing memcache.");
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Wakes up the requests waiting for the directives of the devices. It must
+     * be called after the directives have been stored.
+     * 
+     * @param ownerId
+     *            The user who registered the devices
+     * @param deviceIds
+     *            The devices which just received directives
+     */
+    public void signal(final UserId ownerId,
+            final Collection<DeviceId> deviceIds) {
+        final ArrayList<String> keys = new ArrayList<String>(deviceIds.size());
+        for (final DeviceId deviceId : deviceIds)
+            keys.add(memcacheKey(ownerId, deviceId));
+        try {
+            this.memcache.incrementAll(keys, 1L, 0L);
+        }
+        catch (final InvalidValueException _) {
+            LOG.finest("Error while accessing memcache.");
+        }
+    }
+
+    /**
+     * Reads the counters of the devices, so that
+     * {@link #awaitChange(Snapshot, long)} can tell when they change. It must
+     * be called before fetching the directives, else those stored in between
+     * would be missed.
+     * 
+     * @param ownerId
+     *            The user who registered the devices
+     * @param deviceIds
+     *            The devices whose directives are awaited
+     * @return The current value of their counters
+     */
+    public Snapshot snapshot(final UserId ownerId,
+            final Collection<DeviceId> deviceIds) {
+        final ArrayList<String> keys = new ArrayList<String>(deviceIds.size());
+        for (final DeviceId deviceId : deviceIds)
+            keys.add(memcacheKey(ownerId, deviceId));
+        return new Snapshot(keys, readCounters(keys));
+    }
+}
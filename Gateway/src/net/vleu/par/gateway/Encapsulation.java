@@ -0,0 +1,103 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+import net.vleu.par.utils.BoundedInputStream.SizeLimitExceeded;
+
+/**
+ * A wire format for the requests and responses handled by the
+ * {@link ApiServlet}. The implementations are registered with
+ * {@link Encapsulations}, which picks one for each request according to the
+ * URL suffix or the Content-Type.
+ */
+@ThreadSafe
+public interface Encapsulation {
+    /**
+     * @return True if {@link #parseRequests(InputStream, int, ArrayList)} may
+     *         return several requests. Those are handled one after the other,
+     *         so when one fails those before it are already committed: it is
+     *         answered by a response with only
+     *         {@link GatewayResponseData#getError()} set instead of an HTTP
+     *         error.
+     */
+    public boolean carriesSeveralRequests();
+
+    /**
+     * @return The MIME type of the requests and responses, without
+     *         parameters, for example "application/json"
+     */
+    public String getContentType();
+
+    /**
+     * @param responses
+     *            The responses, as they would be passed to
+     *            {@link #writeResponses(List, OutputStream)}
+     * @return The number of bytes the responses will take once serialized, or
+     *         -1 if it cannot be known without serializing them
+     */
+    public int getSerializedSize(List<GatewayResponseData> responses);
+
+    /**
+     * @return The last component of the URLs using this encapsulation, for
+     *         example "json"
+     */
+    public String getUrlSuffix();
+
+    /**
+     * Parses the requests straight from the stream
+     * 
+     * @param stream
+     *            The stream to read from, it must be bounded as it will be
+     *            read until its end.
+     * @param maxCommandSize
+     *            The maximal size of the serialized requests
+     * @param errors
+     *            Strings describing the errors will be added to it
+     * @return null if parsing failed, the parsed requests in the order they
+     *         were sent else
+     * @throws SizeLimitExceeded
+     *             If the requests are larger than the stream allows
+     * @throws IOException
+     *             If some I/O error occurs while reading the stream
+     */
+    public List<GatewayRequestData> parseRequests(InputStream stream,
+            int maxCommandSize, ArrayList<String> errors) throws IOException;
+
+    /**
+     * Serializes the responses onto a stream, without building an
+     * intermediate copy of them
+     * 
+     * @param responses
+     *            One response per request, in the order returned by
+     *            {@link #parseRequests(InputStream, int, ArrayList)}
+     * @param stream
+     *            Where to write the responses, it is flushed but not closed
+     * @throws IOException
+     *             Failed in writing or serializing the responses
+     */
+    public void writeResponses(List<GatewayResponseData> responses,
+            OutputStream stream) throws IOException;
+}
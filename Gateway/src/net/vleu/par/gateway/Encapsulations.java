@@ -0,0 +1,286 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.http.HttpServletRequest;
+
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.Config;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+import net.vleu.par.utils.BoundedInputStream.SizeLimitExceeded;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * The registry of the {@link Encapsulation}s understood by the
+ * {@link ApiServlet}, and the standard ones
+ */
+@ThreadSafe
+public final class Encapsulations {
+    /**
+     * A single request or response, as JSON, see {@link JsonCodec}. The
+     * {@link PassThroughDirectives} have to be parsed.
+     */
+    private static final class JsonEncapsulation implements Encapsulation {
+        @Override
+        public boolean carriesSeveralRequests() {
+            return false;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/json";
+        }
+
+        @Override
+        public int getSerializedSize(final List<GatewayResponseData> responses) {
+            return -1;
+        }
+
+        @Override
+        public String getUrlSuffix() {
+            return Config.SERVER_RPC_JSON_SUFFIX;
+        }
+
+        @Override
+        public List<GatewayRequestData> parseRequests(
+                final InputStream stream, final int maxCommandSize,
+                final ArrayList<String> errors) throws IOException {
+            try {
+                return Collections.singletonList(JsonCodec
+                        .parseRequest(stream));
+            }
+            catch (final SizeLimitExceeded e) {
+                throw e;
+            }
+            catch (final IOException e) {
+                errors.add("Invalid JSON: " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public void writeResponses(final List<GatewayResponseData> responses,
+                final OutputStream stream) throws IOException {
+            JsonCodec.writeResponse(PassThroughDirectives
+                    .parsed(singleResponse(responses)), stream);
+        }
+    }
+
+    /** A single request or response, as a Protocol Buffer */
+    private static final class ProtobuffEncapsulation implements
+            Encapsulation {
+        @Override
+        public boolean carriesSeveralRequests() {
+            return false;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public int getSerializedSize(final List<GatewayResponseData> responses) {
+            return singleResponse(responses).getSerializedSize();
+        }
+
+        @Override
+        public String getUrlSuffix() {
+            return Config.SERVER_RPC_PROTOBUFF_SUFFIX;
+        }
+
+        @Override
+        public List<GatewayRequestData> parseRequests(
+                final InputStream stream, final int maxCommandSize,
+                final ArrayList<String> errors) throws IOException {
+            final CodedInputStream codedStream =
+                    CodedInputStream.newInstance(stream);
+            codedStream.setSizeLimit(maxCommandSize);
+            try {
+                return Collections.singletonList(GatewayRequestData
+                        .parseFrom(codedStream));
+            }
+            catch (final InvalidProtocolBufferException e) {
+                errors.add(e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public void writeResponses(final List<GatewayResponseData> responses,
+                final OutputStream stream) throws IOException {
+            final CodedOutputStream codedStream =
+                    CodedOutputStream.newInstance(stream);
+            singleResponse(responses).writeTo(codedStream);
+            codedStream.flush();
+        }
+    }
+
+    /**
+     * Several requests or responses, as Protocol Buffers each preceded by its
+     * length as a varint, like {@link GatewayRequestData#writeDelimitedTo}
+     * does. The n-th response answers the n-th request.
+     */
+    private static final class ProtobuffStreamEncapsulation implements
+            Encapsulation {
+        @Override
+        public boolean carriesSeveralRequests() {
+            return true;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/x-protobuf-stream";
+        }
+
+        @Override
+        public int getSerializedSize(final List<GatewayResponseData> responses) {
+            int res = 0;
+            for (final GatewayResponseData response : responses) {
+                final int size = response.getSerializedSize();
+                res += CodedOutputStream.computeRawVarint32Size(size) + size;
+            }
+            return res;
+        }
+
+        @Override
+        public String getUrlSuffix() {
+            return Config.SERVER_RPC_PROTOBUFF_STREAM_SUFFIX;
+        }
+
+        @Override
+        public List<GatewayRequestData> parseRequests(
+                final InputStream stream, final int maxCommandSize,
+                final ArrayList<String> errors) throws IOException {
+            final CodedInputStream codedStream =
+                    CodedInputStream.newInstance(stream);
+            codedStream.setSizeLimit(maxCommandSize);
+            final ArrayList<GatewayRequestData> res =
+                    new ArrayList<GatewayRequestData>();
+            try {
+                while (!codedStream.isAtEnd()) {
+                    final int length = codedStream.readRawVarint32();
+                    final int oldLimit = codedStream.pushLimit(length);
+                    res.add(GatewayRequestData.parseFrom(codedStream));
+                    codedStream.popLimit(oldLimit);
+                }
+            }
+            catch (final InvalidProtocolBufferException e) {
+                errors.add("Frame " + res.size() + ": " + e.getMessage());
+                return null;
+            }
+            return res;
+        }
+
+        @Override
+        public void writeResponses(final List<GatewayResponseData> responses,
+                final OutputStream stream) throws IOException {
+            final CodedOutputStream codedStream =
+                    CodedOutputStream.newInstance(stream);
+            for (final GatewayResponseData response : responses) {
+                codedStream.writeRawVarint32(response.getSerializedSize());
+                response.writeTo(codedStream);
+            }
+            codedStream.flush();
+        }
+    }
+
+    /** A single JSON object per request and per response */
+    public static final Encapsulation JSON = new JsonEncapsulation();
+
+    /** A single Protocol Buffer per request and per response */
+    public static final Encapsulation PROTOBUFF = new ProtobuffEncapsulation();
+
+    /** Length-delimited Protocol Buffers, several per request */
+    public static final Encapsulation PROTOBUFF_STREAM =
+            new ProtobuffStreamEncapsulation();
+
+    /** Looked up in order, the first match wins */
+    private static final CopyOnWriteArrayList<Encapsulation> REGISTRY =
+            new CopyOnWriteArrayList<Encapsulation>();
+
+    static {
+        register(JSON);
+        register(PROTOBUFF);
+        register(PROTOBUFF_STREAM);
+    }
+
+    /**
+     * Decides which encapsulation to use, according to the URL. If its suffix
+     * is unknown, the Content-Type of the request decides.
+     * 
+     * @param httpReq
+     *            The request
+     * @return null if no registered encapsulation matches
+     */
+    public static Encapsulation forRequest(final HttpServletRequest httpReq) {
+        final String servletPath = httpReq.getServletPath();
+        if (servletPath != null)
+            for (final Encapsulation encapsulation : REGISTRY)
+                if (servletPath.endsWith(encapsulation.getUrlSuffix()))
+                    return encapsulation;
+        final String contentType = httpReq.getContentType();
+        if (contentType == null)
+            return null;
+        final String mimeType = contentType.split(";", 2)[0].trim();
+        for (final Encapsulation encapsulation : REGISTRY)
+            if (mimeType.equalsIgnoreCase(encapsulation.getContentType()))
+                return encapsulation;
+        return null;
+    }
+
+    /**
+     * Adds an encapsulation to the registry, after the existing ones. It
+     * will only be used for the URLs the {@link ApiServlet} is mapped to.
+     * 
+     * @param encapsulation
+     *            Its URL suffix and its Content-Type should not be used by a
+     *            registered encapsulation, else it will be shadowed.
+     */
+    public static void register(final Encapsulation encapsulation) {
+        REGISTRY.add(encapsulation);
+    }
+
+    /**
+     * @param responses
+     *            Must hold a single response
+     * @return That response
+     */
+    private static GatewayResponseData singleResponse(
+            final List<GatewayResponseData> responses) {
+        if (responses.size() != 1)
+            throw new IllegalArgumentException("Expected one response, got "
+                + responses.size());
+        return responses.get(0);
+    }
+
+    /** This class only has static methods */
+    private Encapsulations() {
+    }
+}
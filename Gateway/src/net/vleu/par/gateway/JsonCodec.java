@@ -0,0 +1,121 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.Config;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+import net.vleu.par.protocolbuffer.SchemaGatewayCommands;
+
+import com.dyuproject.protostuff.JsonIOUtil;
+import com.dyuproject.protostuff.LinkedBuffer;
+
+/**
+ * Reads {@link GatewayRequestData} from and writes
+ * {@link GatewayResponseData} to JSON streams, without intermediate byte
+ * arrays. Each thread reuses its own {@link LinkedBuffer} for the Jackson
+ * parsers and generators, instead of allocating a new one for every request.
+ */
+@ThreadSafe
+final class JsonCodec {
+    /**
+     * Size in bytes of the buffers of the parsers and generators. Jackson
+     * reads and writes by chunks of this size.
+     */
+    static final int BUFFER_SIZE = 4 * 1024;
+
+    /** Confined to a thread, it is cleared after each use */
+    private static final ThreadLocal<LinkedBuffer> BUFFERS =
+            new ThreadLocal<LinkedBuffer>() {
+                @Override
+                protected LinkedBuffer initialValue() {
+                    return LinkedBuffer.allocate(BUFFER_SIZE);
+                }
+            };
+
+    /**
+     * Parses a request, reading the stream until its end
+     * 
+     * @param stream
+     *            The stream to read from, it must be bounded
+     * @return The parsed request
+     * @throws IOException
+     *             If the stream could not be read or is not valid JSON
+     */
+    static GatewayRequestData parseRequest(final InputStream stream)
+            throws IOException {
+        final GatewayRequestData.Builder res = GatewayRequestData.newBuilder();
+        final LinkedBuffer buffer = BUFFERS.get();
+        try {
+            JsonIOUtil.mergeFrom(stream, res,
+                    SchemaGatewayCommands.GatewayRequestData.MERGE,
+                    Config.SERVER_RPC_JSON_NUMERIC, buffer);
+        }
+        finally {
+            buffer.clear();
+        }
+        return res.build();
+    }
+
+    /**
+     * Resolves the schemas and the Jackson factory, and exercises them once,
+     * so that the first request does not have to pay for the class loading
+     * 
+     * @throws IOException
+     *             Never, as this only writes to and reads from memory
+     */
+    static void warmUp() throws IOException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        writeResponse(GatewayResponseData.getDefaultInstance(), sink);
+        parseRequest(new ByteArrayInputStream(sink.toByteArray()));
+    }
+
+    /**
+     * Serializes the response straight to the stream. The stream is flushed
+     * but not closed.
+     * 
+     * @param response
+     *            The response to write
+     * @param stream
+     *            Where to write it
+     * @throws IOException
+     *             If writing to the stream failed
+     */
+    static void writeResponse(final GatewayResponseData response,
+            final OutputStream stream) throws IOException {
+        final LinkedBuffer buffer = BUFFERS.get();
+        try {
+            JsonIOUtil.writeTo(stream, response,
+                    SchemaGatewayCommands.GatewayResponseData.WRITE,
+                    Config.SERVER_RPC_JSON_NUMERIC, buffer);
+        }
+        finally {
+            buffer.clear();
+        }
+    }
+
+    /** This class only has static methods */
+    private JsonCodec() {
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.models.Directive;
+import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnknownFieldSet;
+
+/**
+ * Puts serialized {@link Directive}s in {@link GatewayResponseData}s without
+ * parsing them. They are stored as unknown fields numbered like
+ * {@link GatewayResponseData#getDirectiveList()}, so that Protocol Buffer
+ * serialization writes them exactly as if they were in that list, after the
+ * directives that are.
+ */
+@ThreadSafe
+final class PassThroughDirectives {
+    /**
+     * Adds the directives to the response, as they are serialized
+     * 
+     * @param response
+     *            The response to add them to
+     * @param directives
+     *            The directives, they are never parsed
+     */
+    static void add(final GatewayResponseData.Builder response,
+            final List<Directive> directives) {
+        if (directives.isEmpty())
+            return;
+        final UnknownFieldSet.Field.Builder field =
+                UnknownFieldSet.Field.newBuilder();
+        for (final Directive directive : directives)
+            field.addLengthDelimited(ByteString.copyFrom(directive
+                    .asProtocolBufferBytes()));
+        response.mergeUnknownFields(UnknownFieldSet.newBuilder().addField(
+                GatewayResponseData.DIRECTIVE_FIELD_NUMBER, field.build())
+                .build());
+    }
+
+    /**
+     * Moves the directives added by
+     * {@link #add(GatewayResponseData.Builder, List)} to
+     * {@link GatewayResponseData#getDirectiveList()}, for the serializers that
+     * ignore unknown fields, like the JSON one
+     * 
+     * @param response
+     *            The response, possibly holding unparsed directives
+     * @return The same response, with all its directives parsed
+     * @throws InvalidProtocolBufferException
+     *             If a directive cannot be parsed
+     */
+    static GatewayResponseData parsed(final GatewayResponseData response)
+            throws InvalidProtocolBufferException {
+        final UnknownFieldSet unknownFields = response.getUnknownFields();
+        if (!unknownFields.hasField(GatewayResponseData.DIRECTIVE_FIELD_NUMBER))
+            return response;
+        final GatewayResponseData.Builder res = response.toBuilder();
+        final UnknownFieldSet.Builder otherFields =
+                UnknownFieldSet.newBuilder();
+        for (final Map.Entry<Integer, UnknownFieldSet.Field> entry : unknownFields
+                .asMap().entrySet()) {
+            if (entry.getKey() == GatewayResponseData.DIRECTIVE_FIELD_NUMBER) {
+                for (final ByteString directive : entry.getValue()
+                        .getLengthDelimitedList())
+                    res.addDirective(DirectiveData.parseFrom(directive));
+            }
+            else
+                otherFields.addField(entry.getKey(), entry.getValue());
+        }
+        res.setUnknownFields(otherFields.build());
+        return res.build();
+    }
+
+    /** This class only has static methods */
+    private PassThroughDirectives() {
+    }
+}
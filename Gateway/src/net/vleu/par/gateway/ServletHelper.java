@@ -17,16 +17,18 @@
 package net.vleu.par.gateway;
 
 import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
-import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 import net.vleu.par.ClientLoginToken;
 import net.vleu.par.gateway.datastore.ServerConfigurationEntity;
+import net.vleu.par.gateway.datastore.ThreadLocalDatastoreService;
 import net.vleu.par.models.UserId;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.memcache.InvalidValueException;
@@ -45,6 +47,27 @@ import com.google.appengine.api.users.UserServiceFactory;
  */
 @ThreadSafe
 class ServletHelper {
+    /**
+     * A {@link ServerConfiguration} cached in the JVM, see
+     * {@link ServletHelper#CACHED_CONFIGURATION}
+     */
+    @Immutable
+    private static final class CachedConfiguration {
+        /** Will be copied, as {@link ServerConfiguration} is mutable */
+        final ClientLoginToken c2dmAuthToken;
+        /** When this value should be refreshed */
+        final long expiresAtMillis;
+        /** Incremented each time the cached value is replaced */
+        final long version;
+
+        CachedConfiguration(final ClientLoginToken c2dmAuthToken,
+                final long expiresAtMillis, final long version) {
+            this.c2dmAuthToken = c2dmAuthToken;
+            this.expiresAtMillis = expiresAtMillis;
+            this.version = version;
+        }
+    }
+
     /** We only accept authentication through Google right now */
     private static final Object ALLOWED_AUTH_DOMAIN = "gmail.com";
     private static final Logger LOG = Logger.getLogger(ServletHelper.class
@@ -60,11 +83,67 @@ class ServletHelper {
             "ServerConfiguration-v0";
 
     /**
-     * The GAE datastore from which to get the {@link ServerConfigurationEntity}
-     * .
+     * Default for how long the {@link ServerConfiguration} is cached in the
+     * JVM before being read again from the memcache or datastore
+     */
+    private static final long CACHED_CONFIGURATION_TTL_MILLIS = 60 * 1000;
+
+    /**
+     * The {@link ServerConfiguration} cached in the JVM, shared by all the
+     * instances, or null. It is replaced as a whole, thus reading it costs a
+     * single volatile read. It is only replaced by compare-and-set against the
+     * value the writer started from, so that a slow refresh cannot overwrite
+     * a value persisted or invalidated meanwhile.
+     */
+    private static final AtomicReference<CachedConfiguration> CACHED_CONFIGURATION =
+            new AtomicReference<CachedConfiguration>();
+
+    /**
+     * True while a thread refreshes {@link #CACHED_CONFIGURATION}, the others
+     * keep using the expired value meanwhile
+     */
+    private static final AtomicBoolean REFRESHING_CONFIGURATION =
+            new AtomicBoolean(false);
+
+    /**
+     * @param expected
+     *            The value the caller started from, can be null
+     * @param c2dmAuthToken
+     *            As per {@link ServerConfiguration#getC2dmAuthToken()}
+     * @param expiresAtMillis
+     *            When the value should be refreshed
+     * @return True if the value was installed, false if another thread
+     *         replaced the expected one in the meantime
+     */
+    private static boolean cacheConfiguration(
+            final CachedConfiguration expected,
+            final ClientLoginToken c2dmAuthToken, final long expiresAtMillis) {
+        final long version = expected == null ? 0 : expected.version + 1;
+        return CACHED_CONFIGURATION.compareAndSet(expected,
+                new CachedConfiguration(c2dmAuthToken, expiresAtMillis,
+                        version));
+    }
+
+    /**
+     * Empties the cache of the JVM, so that tests do not see each other's
+     * {@link ServerConfiguration}
+     */
+    static void forgetCachedConfiguration() {
+        CACHED_CONFIGURATION.set(null);
+    }
+
+    /**
+     * How long the {@link ServerConfiguration} cached by this instance stays
+     * in the JVM
+     */
+    private final long cachedConfigurationTtlMillis;
+
+    /**
+     * The GAE datastores from which to get the
+     * {@link ServerConfigurationEntity}. They have to be thread-local because
+     * the {@link DatastoreService} are not thread-safe.
      */
-    @GuardedBy("itself")
-    private final DatastoreService datastore;
+    private final ThreadLocal<DatastoreService> datastores;
 
     /**
      * Its namespace must be {@link #MEMCACHE_NAMESPACE} Thread safe, according
@@ -86,7 +165,7 @@ class ServletHelper {
     private final ThreadLocal<UserService> userServices;
 
     public ServletHelper() {
-        this(DatastoreServiceFactory.getDatastoreService(),
+        this(ThreadLocalDatastoreService.getSingleton(),
                 MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE),
                 new ThreadLocal<UserService>() {
                     @Override
@@ -101,12 +180,26 @@ class ServletHelper {
                 });
     }
 
-    public ServletHelper(final DatastoreService datastore,
+    public ServletHelper(final ThreadLocal<DatastoreService> datastores,
             final MemcacheService memcache,
             final ThreadLocal<UserService> userServices,
             final ThreadLocal<OAuthService> oauthServices) {
+        this(datastores, memcache, userServices, oauthServices,
+                CACHED_CONFIGURATION_TTL_MILLIS);
+    }
+
+    /**
+     * Allows overriding {@link #CACHED_CONFIGURATION_TTL_MILLIS}, for testing
+     * purposes.
+     */
+    ServletHelper(final ThreadLocal<DatastoreService> datastores,
+            final MemcacheService memcache,
+            final ThreadLocal<UserService> userServices,
+            final ThreadLocal<OAuthService> oauthServices,
+            final long cachedConfigurationTtlMillis) {
         assert (MEMCACHE_NAMESPACE.equals(memcache.getNamespace()));
-        this.datastore = datastore;
+        this.cachedConfigurationTtlMillis = cachedConfigurationTtlMillis;
+        this.datastores = datastores;
         this.memcache = memcache;
         this.oauthServices = oauthServices;
         this.userServices = userServices;
@@ -143,9 +236,24 @@ class ServletHelper {
 
     }
 
+    /**
+     * Marks the {@link ServerConfiguration} cached in the JVM as expired, so
+     * that the next call to {@link #readServerConfiguration()} refreshes it
+     * from the memcache or datastore. Meant for when it is known to be
+     * outdated, for instance because C2DM rejected its token.
+     */
+    public void invalidateServerConfiguration() {
+        CachedConfiguration current;
+        do {
+            current = CACHED_CONFIGURATION.get();
+            if (current == null)
+                return;
+        } while (!cacheConfiguration(current, current.c2dmAuthToken, 0));
+    }
+
     /**
      * Writes the {@link ServerConfiguration} in the datastore and memcache
-     * services.
+     * services, and in the cache of the JVM.
      * 
      * @param config
      *            The value that will be returned by subsequent calls to
@@ -155,18 +263,68 @@ class ServletHelper {
         final Entity entity =
                 ServerConfigurationEntity.entityServerConfig(config);
         /* Saves in the datastore */
-        synchronized (this.datastore) {
-            this.datastore.put(null, entity);
-        }
+        this.datastores.get().put(null, entity);
         /* Saves in the memcache */
         this.memcache.put(MEMCACHE_SERVER_CONFIG_KEY, entity);
+        /* Saves in the JVM, whatever was cached */
+        final long expiresAtMillis =
+                System.currentTimeMillis() + this.cachedConfigurationTtlMillis;
+        CachedConfiguration current;
+        do
+            current = CACHED_CONFIGURATION.get();
+        while (!cacheConfiguration(current, config.getC2dmAuthToken(),
+                expiresAtMillis));
     }
 
     /**
+     * Returns the {@link ServerConfiguration} cached in the JVM, if any. Once
+     * it expired, a single thread refreshes it while the others keep using
+     * the expired value, so that they never wait for each other.
+     * 
      * @return The {@link ServerConfiguration} value given to
-     *         {@link #persistServerConfiguration(ServerConfiguration)}
+     *         {@link #persistServerConfiguration(ServerConfiguration)}. It is
+     *         a copy that the caller can modify.
      */
     public ServerConfiguration readServerConfiguration() {
+        final CachedConfiguration cached = CACHED_CONFIGURATION.get();
+        if (cached != null) {
+            if (cached.expiresAtMillis < System.currentTimeMillis()
+                && REFRESHING_CONFIGURATION.compareAndSet(false, true))
+                try {
+                    return refreshServerConfiguration(cached);
+                }
+                finally {
+                    REFRESHING_CONFIGURATION.set(false);
+                }
+            return new ServerConfiguration(cached.c2dmAuthToken);
+        }
+        /* Nothing to serve meanwhile, all the callers have to read it */
+        return refreshServerConfiguration(null);
+    }
+
+    /**
+     * Reads the {@link ServerConfiguration} from the memcache, the datastore
+     * or the config file, then caches it in the JVM unless another thread
+     * changed the cached value meanwhile
+     * 
+     * @param expected
+     *            The cached value that is being refreshed, can be null
+     * @return The {@link ServerConfiguration} that was read
+     */
+    private ServerConfiguration refreshServerConfiguration(
+            final CachedConfiguration expected) {
+        final ServerConfiguration res = readStoredServerConfiguration();
+        cacheConfiguration(expected, res.getC2dmAuthToken(),
+                System.currentTimeMillis() + this.cachedConfigurationTtlMillis);
+        return res;
+    }
+
+    /**
+     * @return The {@link ServerConfiguration} value given to
+     *         {@link #persistServerConfiguration(ServerConfiguration)}, read
+     *         from the memcache, the datastore or the config file
+     */
+    private ServerConfiguration readStoredServerConfiguration() {
 
         /* Searches in the memcache */
         try {
@@ -184,12 +342,9 @@ class ServletHelper {
 
         /* Searches in the datastore */
         try {
-
-            final Entity entity;
-            synchronized (this.datastore) {
-                entity =
-                        this.datastore.get(null, ServerConfigurationEntity.KEY);
-            }
+            final Entity entity =
+                    this.datastores.get().get(null,
+                            ServerConfigurationEntity.KEY);
             return ServerConfigurationEntity.serverConfigFromEntity(entity);
         }
         catch (final EntityNotFoundException _) {
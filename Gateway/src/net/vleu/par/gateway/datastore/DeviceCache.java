@@ -0,0 +1,391 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway.datastore;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.models.UserId;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.InvalidValueException;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Fronts the reads of {@link DeviceEntity} with the memcache and with a small
+ * per-instance LRU cache. Use {@link #getSingleton()} to get an instance.
+ * 
+ * The entities are written through this cache by {@link #put(UserId, Entity)},
+ * which keeps the memcache up to date. The per-instance copies of other
+ * instances can be stale for at most {@value #LOCAL_TTL_MILLIS} ms, and the
+ * lists of owned devices are only cached in the memcache for that reason.
+ * 
+ * The returned entities are shared and must not be modified.
+ */
+@ThreadSafe
+public final class DeviceCache {
+    /** An entity in {@link DeviceCache#localEntities} */
+    private static final class LocalEntry {
+        final Entity entity;
+        final long expiresAtMillis;
+
+        LocalEntry(final Entity entity, final long expiresAtMillis) {
+            this.entity = entity;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /** Prefixes the memcache keys of the entities */
+    private static final String ENTITY_KEY_PREFIX = "Device-v0/";
+
+    /**
+     * For how long, after a list of owned devices is invalidated, it cannot be
+     * added back to the memcache by a reader who might have read an outdated
+     * value
+     */
+    private static final long INVALIDATION_MILLIS = 2 * 1000;
+
+    /** How long an entity stays in {@link #localEntities} */
+    private static final long LOCAL_TTL_MILLIS = 60 * 1000;
+
+    private static final Logger LOG = Logger.getLogger(DeviceCache.class
+            .getName());
+
+    /** How many entities are kept in {@link #localEntities} at most */
+    private static final int MAX_LOCAL_ENTITIES = 512;
+
+    /**
+     * {@link #memcache} must have this as namespace
+     */
+    public static final String MEMCACHE_NAMESPACE = DeviceCache.class
+            .getSimpleName();
+
+    /** Prefixes the memcache keys of the lists of owned devices */
+    private static final String OWNED_KEY_PREFIX = "OwnedDevices-v0/";
+
+    private static final FetchOptions FETCH_ALL_OPTIONS = withChunkSize(
+            Integer.MAX_VALUE).prefetchSize(Integer.MAX_VALUE);
+
+    private static final DeviceCache SINGLETON = new DeviceCache(
+            ThreadLocalDatastoreService.getSingleton(),
+            MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE),
+            MAX_LOCAL_ENTITIES, LOCAL_TTL_MILLIS);
+
+    public static DeviceCache getSingleton() {
+        return SINGLETON;
+    }
+
+    private static String memcacheKeyForEntity(final Key key) {
+        return ENTITY_KEY_PREFIX + KeyFactory.keyToString(key);
+    }
+
+    private static String memcacheKeyForOwner(final UserId ownerId) {
+        return OWNED_KEY_PREFIX + ownerId.asString();
+    }
+
+    /**
+     * The GAE datastores where to read and write the {@link DeviceEntity}. They
+     * have to be thread-local because the {@link DatastoreService} are not
+     * thread-safe.
+     */
+    private final ThreadLocal<DatastoreService> datastores;
+
+    /** Counts the reads served by {@link #localEntities} */
+    private final AtomicLong localHits = new AtomicLong();
+
+    /** The per-instance LRU cache, in access order */
+    @GuardedBy("itself")
+    private final LinkedHashMap<Key, LocalEntry> localEntities;
+
+    /** How long an entity stays in {@link #localEntities} */
+    private final long localTtlMillis;
+
+    /**
+     * Its namespace must be {@link #MEMCACHE_NAMESPACE}. Thread safe.
+     */
+    private final MemcacheService memcache;
+
+    /** Counts the reads served by {@link #memcache} */
+    private final AtomicLong memcacheHits = new AtomicLong();
+
+    /** Counts the reads that had to go to the datastore */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Allows dependency injection, for testing purposes.
+     * 
+     * @param datastores
+     *            ThreadGlobal datastores.
+     * @param memcache
+     *            Its namespace must be {@link #MEMCACHE_NAMESPACE}
+     * @param maxLocalEntities
+     *            How many entities to keep in the per-instance cache at most
+     * @param localTtlMillis
+     *            How long an entity stays in the per-instance cache
+     */
+    public DeviceCache(final ThreadLocal<DatastoreService> datastores,
+            final MemcacheService memcache, final int maxLocalEntities,
+            final long localTtlMillis) {
+        this.datastores = datastores;
+        this.memcache = memcache;
+        this.localTtlMillis = localTtlMillis;
+        this.localEntities =
+                new LinkedHashMap<Key, LocalEntry>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<Key, LocalEntry> eldest) {
+                        return size() > maxLocalEntities;
+                    }
+                };
+    }
+
+    /**
+     * Reads a {@link DeviceEntity}, from the caches if possible.
+     * 
+     * @param key
+     *            As per {@link DeviceEntity#keyForIds}
+     * @return The entity, which must not be modified
+     * @throws EntityNotFoundException
+     *             If the device is unknown
+     */
+    public Entity get(final Key key) throws EntityNotFoundException {
+        Entity res = getIfCached(key);
+        if (res == null) {
+            res = this.datastores.get().get(null, key);
+            offer(res);
+        }
+        return res;
+    }
+
+    /**
+     * Reads many {@link DeviceEntity}s at once, from the caches if possible.
+     * The missing ones are read from the memcache, then from the datastore, in
+     * a single batch each.
+     * 
+     * @param keys
+     *            As per {@link DeviceEntity#keyForIds}
+     * @return The entities that were found, which must not be modified
+     */
+    public Map<Key, Entity> getAll(final Collection<Key> keys) {
+        final HashMap<Key, Entity> res = new HashMap<Key, Entity>();
+        final HashMap<String, Key> missing = new HashMap<String, Key>();
+        for (final Key key : keys) {
+            final Entity local = getLocal(key);
+            if (local != null) {
+                this.localHits.incrementAndGet();
+                res.put(key, local);
+            }
+            else
+                missing.put(memcacheKeyForEntity(key), key);
+        }
+        if (missing.isEmpty())
+            return res;
+        try {
+            final Map<String, Object> fromMemcache =
+                    this.memcache.getAll(missing.keySet());
+            for (final Map.Entry<String, Object> entry : fromMemcache
+                    .entrySet()) {
+                final Entity entity = (Entity) entry.getValue();
+                if (entity == null)
+                    continue;
+                this.memcacheHits.incrementAndGet();
+                putLocal(entity);
+                res.put(missing.remove(entry.getKey()), entity);
+            }
+        }
+        catch (final InvalidValueException _) {
+            LOG.finest("Error while accessing memcache. Trying the datastore.");
+        }
+        if (missing.isEmpty())
+            return res;
+        this.misses.addAndGet(missing.size());
+        final Map<Key, Entity> fromDatastore =
+                this.datastores.get().get(null, missing.values());
+        for (final Entity entity : fromDatastore.values())
+            offer(entity);
+        res.putAll(fromDatastore);
+        return res;
+    }
+
+    /**
+     * Reads a {@link DeviceEntity} from the caches only
+     * 
+     * @param key
+     *            As per {@link DeviceEntity#keyForIds}
+     * @return The entity, which must not be modified, or null if it is not
+     *         cached, in which case it should be read from the datastore and
+     *         given to {@link #offer(Entity)}
+     */
+    public Entity getIfCached(final Key key) {
+        final Entity local = getLocal(key);
+        if (local != null) {
+            this.localHits.incrementAndGet();
+            return local;
+        }
+        try {
+            final Entity res =
+                    (Entity) this.memcache.get(memcacheKeyForEntity(key));
+            if (res != null) {
+                this.memcacheHits.incrementAndGet();
+                putLocal(res);
+                return res;
+            }
+        }
+        catch (final InvalidValueException _) {
+            LOG.finest("Error while accessing memcache. Trying the datastore.");
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return How many reads were served by the per-instance cache
+     */
+    public long getLocalHits() {
+        return this.localHits.get();
+    }
+
+    /**
+     * @param key
+     *            As per {@link DeviceEntity#keyForIds}
+     * @return The entity if it is in {@link #localEntities} and not expired,
+     *         else null
+     */
+    private Entity getLocal(final Key key) {
+        synchronized (this.localEntities) {
+            final LocalEntry entry = this.localEntities.get(key);
+            if (entry == null)
+                return null;
+            if (entry.expiresAtMillis < System.currentTimeMillis()) {
+                this.localEntities.remove(key);
+                return null;
+            }
+            return entry.entity;
+        }
+    }
+
+    /**
+     * @return How many reads were served by the memcache
+     */
+    public long getMemcacheHits() {
+        return this.memcacheHits.get();
+    }
+
+    /**
+     * @return How many reads had to go to the datastore
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Lists the devices of a user. The list is cached in the memcache until
+     * {@link #put(UserId, Entity)} is called for one of them.
+     * 
+     * @param ownerId
+     *            The user who registered the devices
+     * @return The {@link DeviceEntity}s, which must not be modified
+     */
+    @SuppressWarnings("unchecked")
+    public List<Entity> getOwned(final UserId ownerId) {
+        final String memcacheKey = memcacheKeyForOwner(ownerId);
+        try {
+            final List<Entity> res =
+                    (List<Entity>) this.memcache.get(memcacheKey);
+            if (res != null) {
+                this.memcacheHits.incrementAndGet();
+                return res;
+            }
+        }
+        catch (final InvalidValueException _) {
+            LOG.finest("Error while accessing memcache. Trying the datastore.");
+        }
+        this.misses.incrementAndGet();
+        final ArrayList<Entity> res =
+                new ArrayList<Entity>(this.datastores.get().prepare(null,
+                        DeviceEntity.buildQueryForOwnedDevices(ownerId))
+                        .asList(FETCH_ALL_OPTIONS));
+        /* Does not overwrite a list put by a fresher reader */
+        this.memcache.put(memcacheKey, res, null,
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        return res;
+    }
+
+    /**
+     * Caches an entity that has just been read from the datastore. It will not
+     * overwrite the memcache's copy, which might be fresher.
+     * 
+     * @param entity
+     *            A {@link DeviceEntity}, which must not be modified anymore
+     */
+    public void offer(final Entity entity) {
+        this.memcache.put(memcacheKeyForEntity(entity.getKey()), entity, null,
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        putLocal(entity);
+    }
+
+    /**
+     * Writes a {@link DeviceEntity} to the datastore, then to the caches, and
+     * invalidates the list of devices of its owner
+     * 
+     * @param ownerId
+     *            The user who registered the device
+     * @param entity
+     *            The {@link DeviceEntity}, which must not be modified anymore
+     */
+    public void put(final UserId ownerId, final Entity entity) {
+        this.datastores.get().put(null, entity);
+        this.memcache.put(memcacheKeyForEntity(entity.getKey()), entity);
+        this.memcache.delete(memcacheKeyForOwner(ownerId),
+                INVALIDATION_MILLIS);
+        putLocal(entity);
+    }
+
+    private void putLocal(final Entity entity) {
+        final LocalEntry entry =
+                new LocalEntry(entity, System.currentTimeMillis()
+                    + this.localTtlMillis);
+        synchronized (this.localEntities) {
+            this.localEntities.put(entity.getKey(), entry);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceCache[localHits=" + getLocalHits() + ", memcacheHits="
+            + getMemcacheHits() + ", misses=" + getMisses() + "]";
+    }
+}
@@ -16,42 +16,235 @@
  */
 package net.vleu.par.gateway.datastore;
 
+import java.util.Random;
+
 import net.vleu.par.models.DeviceId;
 import net.vleu.par.models.Directive;
 import net.vleu.par.models.UserId;
 import net.vleu.par.models.Directive.InvalidDirectiveSerialisation;
+import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
 
+/**
+ * Directives that have a {@link DirectiveIdData} are stored with a key named
+ * after it by {@link #keyNameForId(long, int)}, so that storing the same
+ * directive twice is idempotent and that the directives of a given creator
+ * form a contiguous range of keys, sorted by timestamp. The others are
+ * stored with an automatically allocated id.
+ * 
+ * The directives of a device can be spread over many shards, each being its
+ * own entity group, so that a device can take more writes per second. Shard 0
+ * is the device itself, the others are root keys of kind {@link #SHARD_KIND}
+ * that need not exist. The directives of a given creator always go to the
+ * same shard, see {@link #shardForCreator(long, int)}. Therefore sharding only
+ * helps when many creators write to a device concurrently, or when the
+ * directives have no {@link DirectiveIdData}: a single creator flooding a
+ * device is still bound to the write rate of one entity group.
+ */
 public final class DirectiveEntity {
     public static final String KIND = "Directive";
     public static final String PROTOCOL_BUFFER_PROPERTY = "protobuff";
+    /** The kind of the parents of the directives stored in shards above 0 */
+    public static final String SHARD_KIND = "DirectiveShard";
+
+    /** Picks the shards of the directives that have no id, thread-safe */
+    private static final Random SHARD_PICKER = new Random();
+
+    /**
+     * Builds a keys-only query for all the directives created by a given
+     * creator, sorted by timestamp
+     * 
+     * @param ownerId
+     *            The user who owns the device
+     * @param deviceId
+     *            The device the directives are queued for
+     * @param creatorId
+     *            As per {@link DirectiveIdData#getCreatorId()}
+     * @return A keys-only query
+     */
+    public static Query buildKeysQueryForCreator(final UserId ownerId,
+            final DeviceId deviceId, final long creatorId) {
+        return buildKeysQueryForCreator(ownerId, deviceId, creatorId, 0);
+    }
+
+    /**
+     * Builds a keys-only query for all the directives created by a given
+     * creator in a given shard, sorted by timestamp
+     * 
+     * @param ownerId
+     *            The user who owns the device
+     * @param deviceId
+     *            The device the directives are queued for
+     * @param creatorId
+     *            As per {@link DirectiveIdData#getCreatorId()}
+     * @param shard
+     *            As per {@link #shardForCreator(long, int)}
+     * @return A keys-only query
+     */
+    public static Query buildKeysQueryForCreator(final UserId ownerId,
+            final DeviceId deviceId, final long creatorId, final int shard) {
+        final Key parentKey = keyForShard(ownerId, deviceId, shard);
+        final Key lowestKey =
+                parentKey.getChild(KIND, keyNameForId(creatorId, 0));
+        final Key highestKey =
+                parentKey.getChild(KIND, keyNameForId(creatorId, -1));
+        final Query res = new Query(KIND, parentKey);
+        res.addFilter(Entity.KEY_RESERVED_PROPERTY,
+                FilterOperator.GREATER_THAN_OR_EQUAL, lowestKey);
+        res.addFilter(Entity.KEY_RESERVED_PROPERTY,
+                FilterOperator.LESS_THAN_OR_EQUAL, highestKey);
+        res.setKeysOnly();
+        return res;
+    }
 
     public static Query buildQueryForQueuedDirectives(final UserId ownerId,
             final DeviceId deviceId) {
-        final Key parentKey = DeviceEntity.keyForIds(ownerId, deviceId);
-        return new Query(KIND, parentKey);
+        return buildQueryForQueuedDirectives(ownerId, deviceId, 0);
+    }
+
+    /**
+     * @param ownerId
+     *            The user who owns the device
+     * @param deviceId
+     *            The device the directives are queued for
+     * @param shard
+     *            Which shard to query
+     * @return A query for the directives queued in a single shard
+     */
+    public static Query buildQueryForQueuedDirectives(final UserId ownerId,
+            final DeviceId deviceId, final int shard) {
+        return new Query(KIND, keyForShard(ownerId, deviceId, shard));
     }
 
+    /**
+     * The directives are checked before being stored, so their blob is not
+     * parsed: see {@link Directive#fromValidatedProtocolBuffer(byte[])}
+     * 
+     * @param entity
+     *            An entity built by
+     *            {@link #entityFromDirective(UserId, DeviceId, Directive, int)}
+     * @return The directive stored in the entity
+     * @throws InvalidDirectiveSerialisation
+     *             If the blob is not a well-formed protocol buffer
+     */
     public static Directive directiveFromEntity(final Entity entity)
             throws InvalidDirectiveSerialisation {
         assert (entity.getKind() == KIND);
         final Blob asBlob = (Blob) entity.getProperty(PROTOCOL_BUFFER_PROPERTY);
-        return Directive.fromProtocolBuffer(asBlob.getBytes());
+        return Directive.fromValidatedProtocolBuffer(asBlob.getBytes());
     }
 
     public static Entity entityFromDirective(final UserId ownerId,
             final DeviceId deviceId, final Directive directive) {
+        return entityFromDirective(ownerId, deviceId, directive, 1);
+    }
+
+    /**
+     * @param ownerId
+     *            The user who owns the device
+     * @param deviceId
+     *            The device the directive is queued for
+     * @param directive
+     *            The directive to store
+     * @param shardsCount
+     *            How many shards the directives of the device are spread over
+     * @return An entity stored in the shard chosen by
+     *         {@link #shardForCreator(long, int)}, or in a random shard if
+     *         the directive has no {@link DirectiveIdData}
+     */
+    public static Entity entityFromDirective(final UserId ownerId,
+            final DeviceId deviceId, final Directive directive,
+            final int shardsCount) {
         final Blob asBlob = new Blob(directive.asProtocolBufferBytes());
-        final Key parentKey = DeviceEntity.keyForIds(ownerId, deviceId);
-        final Entity res = new Entity(KIND, parentKey);
+        final DirectiveData proto = directive.asProtocolBuffer();
+        final int shard;
+        if (proto.hasId())
+            shard = shardForCreator(proto.getId().getCreatorId(), shardsCount);
+        else if (shardsCount > 1)
+            shard = SHARD_PICKER.nextInt(shardsCount);
+        else
+            shard = 0;
+        final Key parentKey = keyForShard(ownerId, deviceId, shard);
+        final Entity res;
+        if (proto.hasId())
+            res =
+                    new Entity(KIND, keyNameForId(proto.getId().getCreatorId(),
+                            proto.getId().getTimestamp()), parentKey);
+        else
+            res = new Entity(KIND, parentKey);
         res.setUnindexedProperty(PROTOCOL_BUFFER_PROPERTY, asBlob);
         return res;
     }
 
+    /**
+     * @param key
+     *            The key of a directive entity
+     * @return True if the directive was stored with a {@link DirectiveIdData}
+     */
+    public static boolean hasDirectiveId(final Key key) {
+        return key.getName() != null;
+    }
+
+    /**
+     * Builds a key name that sorts like the (creatorId, timestamp) pair,
+     * both being compared as unsigned numbers.
+     * 
+     * @param creatorId
+     *            As per {@link DirectiveIdData#getCreatorId()}
+     * @param timestamp
+     *            As per {@link DirectiveIdData#getTimestamp()}
+     * @return The key name for such a directive
+     */
+    public static String keyNameForId(final long creatorId, final int timestamp) {
+        return String.format("%016x-%08x", creatorId, timestamp);
+    }
+
+    /**
+     * @param ownerId
+     *            The user who owns the device
+     * @param deviceId
+     *            The device the directives are queued for
+     * @param shard
+     *            Between 0 and the number of shards, excluded
+     * @return The key of the parent of the directives in this shard
+     */
+    public static Key keyForShard(final UserId ownerId,
+            final DeviceId deviceId, final int shard) {
+        if (shard == 0)
+            return DeviceEntity.keyForIds(ownerId, deviceId);
+        return KeyFactory.createKey(SHARD_KIND, ownerId.asString() + '/'
+            + deviceId.value + '/' + shard);
+    }
+
+    /**
+     * All the directives of a creator go to the same shard. An acknowledgement
+     * covers every directive of its creator up to a timestamp, which is only
+     * safe if the device was given them in timestamp order. Spreading them
+     * over shards, which are fetched one after the other, would let a device
+     * acknowledge directives it has not seen yet.
+     * 
+     * @param creatorId
+     *            As per {@link DirectiveIdData#getCreatorId()}
+     * @param shardsCount
+     *            How many shards the directives of the device are spread over
+     * @return The shard where the directives of this creator are stored
+     */
+    public static int shardForCreator(final long creatorId,
+            final int shardsCount) {
+        if (shardsCount <= 1)
+            return 0;
+        /* Mixes the bits, the creator ids might not be random */
+        final long mixed = creatorId * 0x9E3779B97F4A7C15L;
+        return (int) ((mixed >>> 33) % shardsCount);
+    }
+
     private DirectiveEntity() {
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway.datastore;
+
+import java.util.Random;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Factory for the {@link RetryPolicy} used by the {@link TransactionHelper}
+ */
+public final class RetryPolicies {
+    /**
+     * Waits exponentially longer after each conflict, with a random jitter so
+     * that the competing requests do not retry in lockstep
+     */
+    @Immutable
+    private static final class ExponentialBackoff implements RetryPolicy {
+        private final int maxConflicts;
+        private final long maxDelayMillis;
+        private final long minDelayMillis;
+
+        ExponentialBackoff(final long minDelayMillis,
+                final long maxDelayMillis, final int maxConflicts) {
+            this.minDelayMillis = minDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            this.maxConflicts = maxConflicts;
+        }
+
+        @Override
+        public long getRetryDelayMillis(final int conflicts,
+                final long nowMillis) {
+            if (conflicts > this.maxConflicts)
+                return GIVE_UP;
+            /* Caps the shift so that it cannot overflow */
+            final long ceiling =
+                    Math.min(this.maxDelayMillis, this.minDelayMillis << Math
+                            .min(conflicts - 1, 30));
+            /* Full jitter between the minimum and the ceiling */
+            return this.minDelayMillis
+                + (long) (JITTER.nextDouble() * (ceiling - this.minDelayMillis));
+        }
+    }
+
+    /**
+     * Gives up when the next attempt would start after a deadline
+     */
+    @Immutable
+    private static final class WithDeadline implements RetryPolicy {
+        private final long deadlineMillis;
+        private final RetryPolicy policy;
+
+        WithDeadline(final RetryPolicy policy, final long deadlineMillis) {
+            this.policy = policy;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        @Override
+        public long getRetryDelayMillis(final int conflicts,
+                final long nowMillis) {
+            final long res =
+                    this.policy.getRetryDelayMillis(conflicts, nowMillis);
+            if (res == GIVE_UP || nowMillis + res >= this.deadlineMillis)
+                return GIVE_UP;
+            return res;
+        }
+    }
+
+    /** Used by {@link ExponentialBackoff}, thread-safe */
+    private static final Random JITTER = new Random();
+
+    /**
+     * @param minDelayMillis
+     *            The shortest delay before a retry, must be positive
+     * @param maxDelayMillis
+     *            The longest delay before a retry, must be at least
+     *            minDelayMillis
+     * @param maxConflicts
+     *            After failing this number of times, the policy gives up
+     * @return A {@link RetryPolicy} waiting between minDelayMillis and a
+     *         ceiling that doubles after each conflict, up to maxDelayMillis
+     */
+    public static RetryPolicy exponentialBackoff(final long minDelayMillis,
+            final long maxDelayMillis, final int maxConflicts) {
+        if (minDelayMillis <= 0 || maxDelayMillis < minDelayMillis)
+            throw new IllegalArgumentException("Invalid delays: "
+                + minDelayMillis + ", " + maxDelayMillis);
+        return new ExponentialBackoff(minDelayMillis, maxDelayMillis,
+                maxConflicts);
+    }
+
+    /**
+     * @param maxConflicts
+     *            After failing this number of times, the policy gives up
+     * @return A {@link RetryPolicy} retrying right away. It is only suitable
+     *         for tests, as it makes contention worse.
+     */
+    public static RetryPolicy immediate(final int maxConflicts) {
+        return new RetryPolicy() {
+            @Override
+            public long getRetryDelayMillis(final int conflicts,
+                    final long nowMillis) {
+                return conflicts > maxConflicts ? GIVE_UP : 0;
+            }
+        };
+    }
+
+    /**
+     * @param policy
+     *            The policy that computes the delays
+     * @param deadlineMillis
+     *            As per {@link System#currentTimeMillis()}
+     * @return A {@link RetryPolicy} that behaves like policy, but gives up
+     *         when the next attempt would start after deadlineMillis
+     */
+    public static RetryPolicy withDeadline(final RetryPolicy policy,
+            final long deadlineMillis) {
+        return new WithDeadline(policy, deadlineMillis);
+    }
+
+    private RetryPolicies() {
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway.datastore;
+
+/**
+ * Tells a {@link TransactionHelper} how long to wait before retrying a
+ * transaction that failed because of a concurrent modification, or whether
+ * to give up. See {@link RetryPolicies} for the implementations.
+ */
+public interface RetryPolicy {
+    /** Returned by {@link #getRetryDelayMillis(int, long)} to give up */
+    long GIVE_UP = -1;
+
+    /**
+     * @param conflicts
+     *            How many times the transaction failed so far, at least 1
+     * @param nowMillis
+     *            The current time, as per {@link System#currentTimeMillis()}
+     * @return How long to wait before the next attempt, or {@link #GIVE_UP}
+     */
+    long getRetryDelayMillis(int conflicts, long nowMillis);
+}
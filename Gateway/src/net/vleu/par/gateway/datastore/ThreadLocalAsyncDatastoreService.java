@@ -0,0 +1,48 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway.datastore;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+
+/**
+ * An {@link ThreadLocal} that always contains an
+ * {@link AsyncDatastoreService}. We have to have a
+ * {@link AsyncDatastoreService} per thread because they are not thread-safe.
+ * Use {@link #getSingleton()} to get an instance.
+ */
+@ThreadSafe
+public final class ThreadLocalAsyncDatastoreService extends
+        ThreadLocal<AsyncDatastoreService> {
+
+    private static final ThreadLocalAsyncDatastoreService SINGLETON =
+            new ThreadLocalAsyncDatastoreService();
+
+    public static ThreadLocalAsyncDatastoreService getSingleton() {
+        return SINGLETON;
+    }
+
+    private ThreadLocalAsyncDatastoreService() {
+    }
+
+    @Override
+    protected synchronized AsyncDatastoreService initialValue() {
+        return DatastoreServiceFactory.getAsyncDatastoreService();
+    }
+}
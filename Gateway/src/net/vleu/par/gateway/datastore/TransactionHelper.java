@@ -28,20 +28,58 @@ import com.google.appengine.api.datastore.Transaction;
  * concurrent modifications" pattern described in <a href=
  * "http://code.google.com/appengine/docs/java/datastore/transactions.html#Uses_for_Transactions"
  * > Google AppEngine's documentation </a>.
+ * 
+ * The delay between the retries is given by a {@link RetryPolicy}, which
+ * also tells when to give up. The attempts are counted in the
+ * {@link TransactionStats} of the description, which are logged whenever a
+ * transaction had to be retried or was given up.
  */
 public abstract class TransactionHelper implements Callable<Void> {
     /**
-     * After failing to commit a single transaction this number of time, we'll
-     * abort. The current value is quite random.
+     * The policy used unless told otherwise: after a conflict, it waits 10ms,
+     * then up to 20ms, 40ms... up to 1s, and gives up after the 32nd conflict.
+     * The current values are quite random.
      */
-    private static final int MAX_COMMIT_RETRIES = 128;
+    public static final RetryPolicy DEFAULT_RETRY_POLICY = RetryPolicies
+            .exponentialBackoff(10, 1000, 32);
+
+    /**
+     * The deadline of the request being handled by the current thread, see
+     * {@link #setRequestDeadline(long)}
+     */
+    private static final ThreadLocal<Long> REQUEST_DEADLINE =
+            new ThreadLocal<Long>();
+
+    /**
+     * Forgets the deadline set by {@link #setRequestDeadline(long)}, should be
+     * called once the request is handled
+     */
+    public static void clearRequestDeadline() {
+        REQUEST_DEADLINE.remove();
+    }
+
+    /**
+     * Sets the deadline of the request being handled by the current thread.
+     * Until {@link #clearRequestDeadline()} is called, the
+     * {@link TransactionHelper}s running in this thread will give up rather
+     * than retry past it.
+     * 
+     * @param deadlineMillis
+     *            As per {@link System#currentTimeMillis()}
+     */
+    public static void setRequestDeadline(final long deadlineMillis) {
+        REQUEST_DEADLINE.set(deadlineMillis);
+    }
+
     private final DatastoreService datastore;
     /** A string used as a prefix when logging */
     private final String description;
     private final Logger logger;
+    private final RetryPolicy retryPolicy;
+    private final TransactionStats stats;
 
     /**
-     * Builds a new TransactionHelper.
+     * Builds a new TransactionHelper using the {@link #DEFAULT_RETRY_POLICY}.
      * 
      * @param datastore
      *            The datastore on which the changes will be performed
@@ -52,9 +90,30 @@ public abstract class TransactionHelper implements Callable<Void> {
      */
     public TransactionHelper(final DatastoreService datastore,
             final Logger logger, final String description) {
+        this(datastore, logger, description, DEFAULT_RETRY_POLICY);
+    }
+
+    /**
+     * Builds a new TransactionHelper.
+     * 
+     * @param datastore
+     *            The datastore on which the changes will be performed
+     * @param logger
+     *            Used to report failures
+     * @param description
+     *            A string used as a prefix when logging, also identifies the
+     *            {@link TransactionStats}
+     * @param retryPolicy
+     *            Tells how long to wait before retrying
+     */
+    public TransactionHelper(final DatastoreService datastore,
+            final Logger logger, final String description,
+            final RetryPolicy retryPolicy) {
         this.datastore = datastore;
         this.description = description;
         this.logger = logger;
+        this.retryPolicy = retryPolicy;
+        this.stats = TransactionStats.forDescription(description);
     }
 
     /**
@@ -63,32 +122,46 @@ public abstract class TransactionHelper implements Callable<Void> {
      * modifications" pattern described in <a href=
      * "http://code.google.com/appengine/docs/java/datastore/transactions.html#Uses_for_Transactions"
      * > Google AppEngine's documentation </a>
+     * 
+     * @throws TooManyConcurrentAccesses
+     *             If the {@link RetryPolicy} gave up, or if the thread was
+     *             interrupted while waiting to retry
      */
     @Override
     public final Void call() throws TooManyConcurrentAccesses {
+        final long startMillis = System.currentTimeMillis();
+        final Long requestDeadline = REQUEST_DEADLINE.get();
+        final RetryPolicy policy =
+                requestDeadline == null ? this.retryPolicy : RetryPolicies
+                        .withDeadline(this.retryPolicy, requestDeadline);
         boolean commited = false;
-        int commitRetries = 0;
+        int conflicts = 0;
         do {
             final Transaction txn = this.datastore.beginTransaction();
+            ConcurrentModificationException conflict = null;
+            this.stats.recordAttempt();
             try {
                 doInsideTransaction(this.datastore, txn);
                 txn.commit();
                 commited = true;
             }
             catch (final ConcurrentModificationException e) {
-                final String message =
-                        this.description + ": Commit failed. Retried "
-                            + commitRetries + " times.";
-                this.logger.fine(message + ":" + e.toString());
-                commitRetries++;
-                if (commitRetries > MAX_COMMIT_RETRIES)
-                    throw new TooManyConcurrentAccesses(message, e);
+                conflict = e;
             }
             finally {
                 if (txn.isActive())
                     txn.rollback();
             }
+            /* Waits once the transaction is rolled back */
+            if (conflict != null) {
+                conflicts++;
+                waitBeforeRetry(policy, conflicts, startMillis, conflict);
+            }
         } while (!commited);
+        this.stats.recordCommit(System.currentTimeMillis() - startMillis);
+        if (conflicts > 0)
+            this.logger.info(this.description + ": Committed after "
+                + conflicts + " conflicts. " + this.stats);
         return null;
     }
 
@@ -109,4 +182,49 @@ public abstract class TransactionHelper implements Callable<Void> {
      */
     protected abstract void doInsideTransaction(DatastoreService datastore,
             Transaction transaction) throws ConcurrentModificationException;
+
+    /**
+     * Records a conflict and waits as long as the {@link RetryPolicy} tells
+     * 
+     * @param policy
+     *            The policy for this call
+     * @param conflicts
+     *            How many times the transaction failed so far
+     * @param startMillis
+     *            When {@link #call()} started
+     * @param conflict
+     *            The latest failure
+     * @throws TooManyConcurrentAccesses
+     *             If the policy gave up or if the thread was interrupted
+     */
+    private void waitBeforeRetry(final RetryPolicy policy,
+            final int conflicts, final long startMillis,
+            final ConcurrentModificationException conflict)
+            throws TooManyConcurrentAccesses {
+        this.stats.recordConflict();
+        final String message =
+                this.description + ": Commit failed. Retried "
+                    + (conflicts - 1) + " times.";
+        this.logger.fine(message + ":" + conflict.toString());
+        final long nowMillis = System.currentTimeMillis();
+        final long delayMillis =
+                policy.getRetryDelayMillis(conflicts, nowMillis);
+        if (delayMillis == RetryPolicy.GIVE_UP) {
+            this.stats.recordAbandon(nowMillis - startMillis);
+            this.logger.warning(message + " Giving up. " + this.stats);
+            throw new TooManyConcurrentAccesses(message, conflict);
+        }
+        if (delayMillis > 0)
+            try {
+                Thread.sleep(delayMillis);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.stats.recordAbandon(System.currentTimeMillis()
+                    - startMillis);
+                this.logger.warning(message + " Interrupted. " + this.stats);
+                throw new TooManyConcurrentAccesses(message
+                    + " Interrupted while waiting.", conflict);
+            }
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway.datastore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Counts what happened to the transactions run by the
+ * {@link TransactionHelper}s sharing a description, so that the contended
+ * entity groups can be spotted. The {@link TransactionHelper}s log them
+ * whenever a transaction had to be retried or was given up. Use
+ * {@link #forDescription(String)} to get an instance.
+ */
+@ThreadSafe
+public final class TransactionStats {
+    /** Maps the descriptions to their statistics */
+    private static final ConcurrentMap<String, TransactionStats> ALL_STATS =
+            new ConcurrentHashMap<String, TransactionStats>();
+
+    /**
+     * @param description
+     *            As given to the {@link TransactionHelper}
+     * @return The statistics for this description, created if needed
+     */
+    public static TransactionStats forDescription(final String description) {
+        final TransactionStats existing = ALL_STATS.get(description);
+        if (existing != null)
+            return existing;
+        final TransactionStats created = new TransactionStats(description);
+        final TransactionStats raced =
+                ALL_STATS.putIfAbsent(description, created);
+        return raced == null ? created : raced;
+    }
+
+    /** How many transactions were given up */
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /** How many transactions were attempted, retries included */
+    private final AtomicLong attempts = new AtomicLong();
+
+    /** How many transactions were committed */
+    private final AtomicLong commits = new AtomicLong();
+
+    /** How many attempts failed because of a concurrent modification */
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final String description;
+
+    /** The time spent in {@link TransactionHelper#call()}, retries included */
+    private final AtomicLong totalLatencyMillis = new AtomicLong();
+
+    private TransactionStats(final String description) {
+        this.description = description;
+    }
+
+    public long getAbandoned() {
+        return this.abandoned.get();
+    }
+
+    public long getAttempts() {
+        return this.attempts.get();
+    }
+
+    public long getCommits() {
+        return this.commits.get();
+    }
+
+    public long getConflicts() {
+        return this.conflicts.get();
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public long getTotalLatencyMillis() {
+        return this.totalLatencyMillis.get();
+    }
+
+    void recordAbandon(final long latencyMillis) {
+        this.abandoned.incrementAndGet();
+        this.totalLatencyMillis.addAndGet(latencyMillis);
+    }
+
+    void recordAttempt() {
+        this.attempts.incrementAndGet();
+    }
+
+    void recordCommit(final long latencyMillis) {
+        this.commits.incrementAndGet();
+        this.totalLatencyMillis.addAndGet(latencyMillis);
+    }
+
+    void recordConflict() {
+        this.conflicts.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return this.description + "[attempts=" + getAttempts()
+            + ", conflicts=" + getConflicts() + ", commits=" + getCommits()
+            + ", abandoned=" + getAbandoned() + ", totalLatencyMillis="
+            + getTotalLatencyMillis() + "]";
+    }
+}
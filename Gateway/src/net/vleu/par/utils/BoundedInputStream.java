@@ -0,0 +1,121 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * An {@link InputStream} that lets its consumer read at most a given number of
+ * bytes from the underlying stream, and then throws a
+ * {@link SizeLimitExceeded} instead of reading any further.
+ *
+ * It never reads more than the limit from the underlying stream, therefore a
+ * stream that is exactly as long as the limit is rejected too: we cannot tell
+ * it from a longer one without reading past the limit.
+ */
+@NotThreadSafe
+public final class BoundedInputStream extends FilterInputStream {
+    /**
+     * Thrown when the consumer tries to read more than the limit given to
+     * {@link BoundedInputStream#BoundedInputStream(InputStream, int)}
+     */
+    @SuppressWarnings("serial")
+    public static final class SizeLimitExceeded extends IOException {
+        /**
+         * @see IOException#IOException(String)
+         */
+        public SizeLimitExceeded(final String message) {
+            super(message);
+        }
+    }
+
+    /** The number of bytes returned so far */
+    private int bytesRead = 0;
+
+    /** The maximal number of bytes we'll read from the underlying stream */
+    private final int limit;
+
+    /**
+     * @param in
+     *            The underlying stream
+     * @param limit
+     *            The maximal number of bytes that will be read from it
+     */
+    public BoundedInputStream(final InputStream in, final int limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    /**
+     * @throws SizeLimitExceeded
+     *             If the limit is reached
+     */
+    private void checkRemaining() throws SizeLimitExceeded {
+        if (this.bytesRead >= this.limit)
+            throw new SizeLimitExceeded("More than " + this.limit
+                + " bytes in the stream");
+    }
+
+    /**
+     * @return The number of bytes returned so far
+     */
+    public int getBytesRead() {
+        return this.bytesRead;
+    }
+
+    /** Marks are not supported, as they would allow reading past the limit */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkRemaining();
+        final int res = this.in.read();
+        if (res >= 0)
+            this.bytesRead++;
+        return res;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length)
+            throws IOException {
+        if (length == 0)
+            return 0;
+        checkRemaining();
+        final int allowed = Math.min(length, this.limit - this.bytesRead);
+        final int res = this.in.read(buffer, offset, allowed);
+        if (res > 0)
+            this.bytesRead += res;
+        return res;
+    }
+
+    @Override
+    public long skip(final long count) throws IOException {
+        checkRemaining();
+        final long allowed = Math.min(count, this.limit - this.bytesRead);
+        final long res = this.in.skip(allowed);
+        if (res > 0)
+            this.bytesRead += res;
+        return res;
+    }
+}
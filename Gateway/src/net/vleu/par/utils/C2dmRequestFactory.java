@@ -43,15 +43,15 @@ public class C2dmRequestFactory {
     private static final String POST_PAYLOAD = "data.v=0";
     /** "registration_id", used for building POST requests */
     private static final String POST_REGISTRATION_ID_NAME = "registration_id";
-    /** A URL representing "https://android.clients.google.com/c2dm/send" */
-    private static final URL URL;
+    /** A URL representing "https://android.apis.google.com/c2dm/send" */
+    private static final URL DEFAULT_URL;
     /** "UTF-8" */
     private static final String UTF8 = "UTF-8";
 
     /* Initializes URL */
     static {
         try {
-            URL = new URL("https://android.apis.google.com/c2dm/send");
+            DEFAULT_URL = new URL("https://android.apis.google.com/c2dm/send");
         }
         catch (final MalformedURLException e) {
             /* This cannot happen because the URL text is hardcoded */
@@ -69,14 +69,28 @@ public class C2dmRequestFactory {
         return postDataBuilder.toString().getBytes(UTF8);
     }
 
+    /** Where to send the requests */
+    private final URL url;
+
     public C2dmRequestFactory() {
+        this(DEFAULT_URL);
+    }
+
+    /**
+     * Allows sending the requests to another server, for testing purposes.
+     * 
+     * @param url
+     *            Where to send the requests
+     */
+    public C2dmRequestFactory(final URL url) {
+        this.url = url;
     }
 
     public HTTPRequest buildRequest(final ClientLoginToken clientLoginToken, final C2dmToken registrationId)
             throws IOException {
         // TODO: add ", validateCertificate()", right now it triggers an
         // exception
-        final HTTPRequest request = new HTTPRequest(URL, HTTPMethod.POST);
+        final HTTPRequest request = new HTTPRequest(this.url, HTTPMethod.POST);
         final HTTPHeader authTokenHTTPHeader =
                 new HTTPHeader("Authorization", "GoogleLogin auth=" + clientLoginToken.value);
         final byte[] postData = buildPostData(registrationId);
@@ -17,6 +17,7 @@
 package net.vleu.par.gateway;
 
 import net.vleu.par.gateway.datastore.AllDatastoreTests;
+import net.vleu.par.models.AllModelsTests;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -24,7 +25,9 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ ApiServletTest.class, DeviceWakerTest.class,
-        DirectiveStoreTest.class, AllDatastoreTests.class })
+        DirectiveStoreTest.class, JsonCodecTest.class,
+        PassThroughDirectivesTest.class, ServletHelperTest.class,
+        AllDatastoreTests.class, AllModelsTests.class })
 public class AllGatewayTests {
 
 }
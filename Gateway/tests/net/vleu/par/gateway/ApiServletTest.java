@@ -17,18 +17,35 @@
 package net.vleu.par.gateway;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.stub;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
@@ -37,15 +54,30 @@ import javax.servlet.http.HttpServletResponse;
 
 import net.vleu.par.C2dmToken;
 import net.vleu.par.Config;
+import net.vleu.par.DeviceName;
+import net.vleu.par.gateway.DirectiveStore.DirectivesPage;
+import net.vleu.par.gateway.DirectiveStore.PageCursor;
 import net.vleu.par.gateway.datastore.DeviceEntityTest;
+import net.vleu.par.gateway.datastore.DirectiveEntityTest;
+import net.vleu.par.gateway.datastore.TooManyConcurrentAccesses;
+import net.vleu.par.models.Device;
+import net.vleu.par.models.DeviceId;
+import net.vleu.par.models.Directive;
+import net.vleu.par.models.UserId;
 import net.vleu.par.models.UserIdTest;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.EnumerateDevicesData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.GetDeviceDirectivesData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.QueueDirectiveData;
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.RegisterDeviceData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ApiServletTest {
@@ -70,6 +102,19 @@ public class ApiServletTest {
 
     }
 
+    private static class DebugServletOutputStream extends ServletOutputStream {
+        final ByteArrayOutputStream backing = new ByteArrayOutputStream();
+
+        public byte[] getWrittenBytes() {
+            return this.backing.toByteArray();
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.backing.write(b);
+        }
+    }
+
     private static final C2dmToken DUMMY_C2DM_REGISTRATION_ID = new C2dmToken(
             "Dummy Google Auth Id");
 
@@ -79,6 +124,8 @@ public class ApiServletTest {
     private DeviceWaker deviceWaker;
     @Mock
     private DirectiveStore directiveStore;
+    @Mock
+    private DirectivesSignal directivesSignal;
 
     @Mock
     private HttpServletResponse response;
@@ -102,9 +149,24 @@ public class ApiServletTest {
         return requestData;
     }
 
+    private GatewayRequestData buildDummyQueueRequest(final int directivesCount) {
+        final QueueDirectiveData queueDirectiveData =
+                QueueDirectiveData
+                        .newBuilder()
+                        .setDeviceId(DeviceEntityTest.DUMMY_DEVICE_ID.value)
+                        .setDirective(
+                                DirectiveEntityTest.DUMMY_DIRECTIVE
+                                        .asProtocolBuffer()).build();
+        final GatewayRequestData.Builder requestData =
+                GatewayRequestData.newBuilder();
+        for (int n = 0; n < directivesCount; n++)
+            requestData.addQueueDirective(queueDirectiveData);
+        return requestData.build();
+    }
+
     private ApiServlet makeInjectedApiServlet() {
         return new ApiServlet(this.directiveStore, this.deviceRegistrar,
-                this.deviceWaker, this.servletHelper);
+                this.deviceWaker, this.directivesSignal, this.servletHelper);
     }
 
     private HttpServletRequest makeStubedRequest(final byte[] body)
@@ -118,6 +180,28 @@ public class ApiServletTest {
         return request;
     }
 
+    @Test
+    public void testAcceptsGzip() {
+        final String[] accepting =
+                { "gzip", "deflate, gzip", "GZIP;q=0.5", "*", "*;q=0, gzip",
+                        "gzip, *;q=0", "deflate;q=0, *" };
+        final String[] refusing =
+                { "", "deflate", "gzip;q=0", "gzip;q=0.0, deflate",
+                        "x-gzip-not", "*;q=0", "gzip;q=0, *", "*, gzip;q=0",
+                        "gzip;q=zero" };
+        for (final String acceptEncoding : accepting) {
+            final HttpServletRequest request = mock(HttpServletRequest.class);
+            stub(request.getHeader("Accept-Encoding")).toReturn(acceptEncoding);
+            assertTrue(acceptEncoding, ApiServlet.acceptsGzip(request));
+        }
+        for (final String acceptEncoding : refusing) {
+            final HttpServletRequest request = mock(HttpServletRequest.class);
+            stub(request.getHeader("Accept-Encoding")).toReturn(acceptEncoding);
+            assertFalse(acceptEncoding, ApiServlet.acceptsGzip(request));
+        }
+        assertFalse(ApiServlet.acceptsGzip(mock(HttpServletRequest.class)));
+    }
+
     @Test
     public void testAuth() throws IOException {
         final ApiServlet tested = makeInjectedApiServlet();
@@ -138,6 +222,65 @@ public class ApiServletTest {
         tested.doPost(request, this.response);
     }
 
+    @Test
+    public void testEncapsulationFromContentType() {
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        stub(request.getServletPath()).toReturn("/api/0");
+        stub(request.getContentType()).toReturn(
+                "application/x-protobuf-stream; charset=binary");
+        assertSame(Encapsulations.PROTOBUFF_STREAM,
+                Encapsulations.forRequest(request));
+        stub(request.getContentType()).toReturn("text/plain");
+        assertNull(Encapsulations.forRequest(request));
+        /* The URL suffix takes precedence */
+        stub(request.getServletPath()).toReturn(
+                "/api/0/" + Config.SERVER_RPC_JSON_SUFFIX);
+        assertSame(Encapsulations.JSON, Encapsulations.forRequest(request));
+    }
+
+    /**
+     * Checks that a large response is compressed for the clients accepting
+     * it, and that it can be read back
+     * 
+     * @throws Exception
+     *             Test failed.
+     */
+    @Test
+    public void testGzippedResponse() throws Exception {
+        final ApiServlet tested = makeInjectedApiServlet();
+        final GatewayRequestData requestData =
+                GatewayRequestData
+                        .newBuilder()
+                        .setEnumerateDevices(
+                                EnumerateDevicesData.getDefaultInstance())
+                        .build();
+        final HttpServletRequest request =
+                makeStubedRequest(requestData.toByteArray());
+        stub(request.getHeader("Accept-Encoding")).toReturn("gzip");
+        final ArrayList<Device> devices = new ArrayList<Device>();
+        for (int n = 0; n < ApiServlet.GZIP_MIN_RESPONSE_SIZE; n++)
+            devices.add(new Device(DeviceEntityTest.DUMMY_DEVICE_ID,
+                    new DeviceName("device" + n)));
+        stub(
+                this.deviceRegistrar
+                        .enumerateOwnedDevices(UserIdTest.DUMMY_USER_ID))
+                .toReturn(devices);
+        final DebugServletOutputStream outputStream =
+                new DebugServletOutputStream();
+        stub(this.servletHelper.getCurrentUser()).toReturn(
+                UserIdTest.DUMMY_USER_ID);
+        stub(this.response.getOutputStream()).toReturn(outputStream);
+        tested.doPost(request, this.response);
+        verify(this.response, never()).sendError(anyInt(), any(String.class));
+        verify(this.response).setHeader("Content-Encoding", "gzip");
+        verify(this.response, never()).setContentLength(anyInt());
+        final GatewayResponseData responseData =
+                GatewayResponseData.parseFrom(new GZIPInputStream(
+                        new ByteArrayInputStream(outputStream
+                                .getWrittenBytes())));
+        assertEquals(devices.size(), responseData.getDeviceDescriptionsCount());
+    }
+
     @Test
     public void testHugeInput() throws IOException {
         final ApiServlet tested = makeInjectedApiServlet();
@@ -172,6 +315,265 @@ public class ApiServletTest {
                 any(String.class));
     }
 
+    /**
+     * Checks that when storing the directives fails for a device, those that
+     * were stored before it are still woken up and signaled
+     * 
+     * @throws TooManyConcurrentAccesses
+     *             Test failed.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPartiallyStoredDirectivesAreWoken()
+            throws TooManyConcurrentAccesses {
+        final ApiServlet tested = makeInjectedApiServlet();
+        final DeviceId otherDeviceId = new DeviceId("AAAA");
+        final GatewayRequestData.Builder requestData =
+                buildDummyQueueRequest(1).toBuilder();
+        requestData.addQueueDirective(QueueDirectiveData
+                .newBuilder(requestData.getQueueDirective(0))
+                .setDeviceId(otherDeviceId.value));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+                    throws TooManyConcurrentAccesses {
+                ((Collection<DeviceId>) invocation.getArguments()[2])
+                        .add(DeviceEntityTest.DUMMY_DEVICE_ID);
+                throw new TooManyConcurrentAccesses("Dummy failure");
+            }
+        }).when(this.directiveStore).storeAll(eq(UserIdTest.DUMMY_USER_ID),
+                anyMap(), anyCollection());
+        assertNotNull(tested.doPostExceptIOs(UserIdTest.DUMMY_USER_ID,
+                requestData.build(), new ArrayList<String>(),
+                GatewayResponseData.newBuilder()));
+        verify(this.directivesSignal, times(1)).signal(
+                UserIdTest.DUMMY_USER_ID,
+                Arrays.asList(DeviceEntityTest.DUMMY_DEVICE_ID));
+        verify(this.deviceWaker, times(1)).queueWakes(
+                UserIdTest.DUMMY_USER_ID,
+                Arrays.asList(DeviceEntityTest.DUMMY_DEVICE_ID));
+    }
+
+    /**
+     * Checks that a long-polled request is handled again once directives are
+     * signaled, and gets them
+     * 
+     * @throws TooManyConcurrentAccesses
+     *             Test failed.
+     */
+    @Test
+    public void testLongPoll() throws TooManyConcurrentAccesses {
+        final ApiServlet tested = makeInjectedApiServlet();
+        final String deviceIdStr = DeviceEntityTest.DUMMY_DEVICE_ID.value;
+        final GatewayRequestData requestData =
+                GatewayRequestData
+                        .newBuilder()
+                        .addGetDeviceDirectives(
+                                GetDeviceDirectivesData.newBuilder()
+                                        .setDeviceId(deviceIdStr)).build();
+        final DirectivesPage emptyPage =
+                new DirectivesPage(new ArrayList<Directive>(), null,
+                        new ArrayList<Long>());
+        final DirectivesPage fullPage =
+                new DirectivesPage(new ArrayList<Directive>(
+                        Arrays.asList(DirectiveEntityTest.DUMMY_DIRECTIVE)),
+                        null, new ArrayList<Long>());
+        when(
+                this.directiveStore.fetch(eq(UserIdTest.DUMMY_USER_ID),
+                        eq(DeviceEntityTest.DUMMY_DEVICE_ID), anyList(),
+                        any(PageCursor.class), anyInt())).thenReturn(
+                emptyPage, fullPage);
+        when(
+                this.directivesSignal.awaitChange(
+                        any(DirectivesSignal.Snapshot.class), anyLong()))
+                .thenReturn(true);
+        final GatewayResponseData.Builder responseBuilder =
+                GatewayResponseData.newBuilder();
+        assertNull(tested.doPostExceptIOs(UserIdTest.DUMMY_USER_ID,
+                requestData, new ArrayList<String>(), responseBuilder,
+                System.currentTimeMillis() + 1000));
+        verify(this.directiveStore, times(2)).fetch(
+                eq(UserIdTest.DUMMY_USER_ID),
+                eq(DeviceEntityTest.DUMMY_DEVICE_ID), anyList(),
+                any(PageCursor.class), anyInt());
+        verify(this.directivesSignal, times(1)).awaitChange(
+                any(DirectivesSignal.Snapshot.class), anyLong());
+        assertTrue(responseBuilder.getUnknownFields().hasField(
+                GatewayResponseData.DIRECTIVE_FIELD_NUMBER));
+    }
+
+    /**
+     * Checks that requests with side effects cannot be long-polled, as they
+     * might be handled several times
+     */
+    @Test
+    public void testLongPollRejectsSideEffects() {
+        final ApiServlet tested = makeInjectedApiServlet();
+        assertNotNull(tested.doPostExceptIOs(UserIdTest.DUMMY_USER_ID,
+                buildDummyRequest(), new ArrayList<String>(),
+                GatewayResponseData.newBuilder(),
+                System.currentTimeMillis() + 1000));
+        verifyZeroInteractions(this.deviceRegistrar);
+        verifyZeroInteractions(this.directivesSignal);
+    }
+
+    /**
+     * Checks that requests way larger than a kilobyte are parsed and handled.
+     * 
+     * @throws IOException
+     *             Test failed.
+     * @throws TooManyConcurrentAccesses
+     *             Test failed.
+     */
+    @Test
+    public void testManyQueuedDirectives() throws IOException,
+            TooManyConcurrentAccesses {
+        final int directivesCount = 500;
+        final ApiServlet tested = makeInjectedApiServlet();
+        final HttpServletRequest request =
+                makeStubedRequest(buildDummyQueueRequest(directivesCount)
+                        .toByteArray());
+        final ServletOutputStream outputStream =
+                mock(ServletOutputStream.class);
+        stub(this.servletHelper.getCurrentUser()).toReturn(
+                UserIdTest.DUMMY_USER_ID);
+        stub(this.response.getOutputStream()).toReturn(outputStream);
+        tested.doPost(request, this.response);
+        verify(this.response, never()).sendError(anyInt(), any(String.class));
+        verify(this.directiveStore).storeAll(eq(UserIdTest.DUMMY_USER_ID),
+                anyMap(), anyCollection());
+        verify(this.directiveStore, never()).store(any(UserId.class),
+                any(DeviceId.class), any(Directive.class));
+        verify(this.directivesSignal, times(1)).signal(
+                UserIdTest.DUMMY_USER_ID,
+                Arrays.asList(DeviceEntityTest.DUMMY_DEVICE_ID));
+        verify(this.deviceWaker, times(1)).queueWakes(
+                UserIdTest.DUMMY_USER_ID,
+                Arrays.asList(DeviceEntityTest.DUMMY_DEVICE_ID));
+    }
+
+    /**
+     * Checks that several length-delimited requests sent in a single body are
+     * all handled, and get one response each
+     * 
+     * @throws IOException
+     *             Test failed.
+     */
+    @Test
+    public void testProtobuffStream() throws IOException {
+        final int requestsCount = 3;
+        final ApiServlet tested = makeInjectedApiServlet();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int n = 0; n < requestsCount; n++)
+            buildDummyRequest().writeDelimitedTo(body);
+        final HttpServletRequest request =
+                makeStubedRequest(body.toByteArray());
+        stub(request.getServletPath()).toReturn(
+                "http://localhost/" + Config.SERVER_RPC_PROTOBUFF_STREAM_SUFFIX);
+        final DebugServletOutputStream outputStream =
+                new DebugServletOutputStream();
+        stub(this.servletHelper.getCurrentUser()).toReturn(
+                UserIdTest.DUMMY_USER_ID);
+        stub(this.response.getOutputStream()).toReturn(outputStream);
+        tested.doPost(request, this.response);
+        verify(this.response, never()).sendError(anyInt(), any(String.class));
+        verify(this.deviceRegistrar, times(requestsCount)).registerDevice(
+                UserIdTest.DUMMY_USER_ID, DeviceEntityTest.DUMMY_DEVICE_ID,
+                DeviceEntityTest.DUMMY_DEVICE_NAME, DUMMY_C2DM_REGISTRATION_ID);
+        final InputStream responses =
+                new ByteArrayInputStream(outputStream.getWrittenBytes());
+        for (int n = 0; n < requestsCount; n++)
+            assertTrue(GatewayResponseData.newBuilder().mergeDelimitedFrom(
+                    responses));
+        assertEquals(-1, responses.read());
+    }
+
+    /**
+     * Checks that when a request in the middle of a stream fails, those
+     * around it are still handled and it gets an error instead of a response
+     * 
+     * @throws IOException
+     *             Test failed.
+     * @throws TooManyConcurrentAccesses
+     *             Test failed.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testProtobuffStreamFailingMiddleRequest() throws IOException,
+            TooManyConcurrentAccesses {
+        final ApiServlet tested = makeInjectedApiServlet();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        buildDummyRequest().writeDelimitedTo(body);
+        buildDummyQueueRequest(1).writeDelimitedTo(body);
+        buildDummyRequest().writeDelimitedTo(body);
+        final HttpServletRequest request =
+                makeStubedRequest(body.toByteArray());
+        stub(request.getServletPath()).toReturn(
+                "http://localhost/" + Config.SERVER_RPC_PROTOBUFF_STREAM_SUFFIX);
+        final DebugServletOutputStream outputStream =
+                new DebugServletOutputStream();
+        stub(this.servletHelper.getCurrentUser()).toReturn(
+                UserIdTest.DUMMY_USER_ID);
+        stub(this.response.getOutputStream()).toReturn(outputStream);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+                    throws TooManyConcurrentAccesses {
+                throw new TooManyConcurrentAccesses("Dummy failure");
+            }
+        }).when(this.directiveStore).storeAll(eq(UserIdTest.DUMMY_USER_ID),
+                anyMap(), anyCollection());
+        tested.doPost(request, this.response);
+        verify(this.response, never()).sendError(anyInt(), any(String.class));
+        verify(this.deviceRegistrar, times(2)).registerDevice(
+                UserIdTest.DUMMY_USER_ID, DeviceEntityTest.DUMMY_DEVICE_ID,
+                DeviceEntityTest.DUMMY_DEVICE_NAME, DUMMY_C2DM_REGISTRATION_ID);
+        final InputStream responses =
+                new ByteArrayInputStream(outputStream.getWrittenBytes());
+        final GatewayResponseData[] responseData = new GatewayResponseData[3];
+        for (int n = 0; n < responseData.length; n++) {
+            final GatewayResponseData.Builder builder =
+                    GatewayResponseData.newBuilder();
+            assertTrue(builder.mergeDelimitedFrom(responses));
+            responseData[n] = builder.build();
+        }
+        assertEquals(-1, responses.read());
+        assertFalse(responseData[0].hasError());
+        assertEquals(HttpCodes.HTTP_SERVICE_UNAVAILABLE_STATUS,
+                responseData[1].getError().getCode());
+        assertFalse(responseData[2].hasError());
+    }
+
+    /**
+     * Checks that when a request in the middle of a stream is invalid, the
+     * whole stream is rejected before any request is handled
+     * 
+     * @throws IOException
+     *             Test failed.
+     */
+    @Test
+    public void testProtobuffStreamInvalidMiddleRequest() throws IOException {
+        final ApiServlet tested = makeInjectedApiServlet();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        buildDummyRequest().writeDelimitedTo(body);
+        final GatewayRequestData.Builder invalid =
+                buildDummyRequest().toBuilder();
+        invalid.setRegisterDevice(0, invalid.getRegisterDevice(0).toBuilder()
+                .setDeviceId("Not a DeviceId !"));
+        invalid.build().writeDelimitedTo(body);
+        buildDummyRequest().writeDelimitedTo(body);
+        final HttpServletRequest request =
+                makeStubedRequest(body.toByteArray());
+        stub(request.getServletPath()).toReturn(
+                "http://localhost/" + Config.SERVER_RPC_PROTOBUFF_STREAM_SUFFIX);
+        stub(this.servletHelper.getCurrentUser()).toReturn(
+                UserIdTest.DUMMY_USER_ID);
+        tested.doPost(request, this.response);
+        verify(this.response).sendError(eq(HttpCodes.HTTP_BAD_REQUEST_STATUS),
+                any(String.class));
+        verifyZeroInteractions(this.deviceRegistrar);
+    }
+
     @Test
     public void testRegisterDevice() throws IOException {
         final ApiServlet tested = makeInjectedApiServlet();
@@ -16,19 +16,43 @@
  */
 package net.vleu.par.gateway;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.stub;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.vleu.par.C2dmToken;
 import net.vleu.par.ClientLoginToken;
-import net.vleu.par.gateway.DeviceWaker.InvalidC2dmClientLoginToken;
+import net.vleu.par.gateway.DeviceWaker.DrainResult;
+import net.vleu.par.gateway.DeviceWaker.WakeMode;
+import net.vleu.par.gateway.DeviceWaker.WakePipeline;
+import net.vleu.par.gateway.datastore.DeviceCache;
 import net.vleu.par.gateway.datastore.DeviceEntity;
 import net.vleu.par.gateway.datastore.DeviceEntityTest;
 import net.vleu.par.gateway.tests.ThreadGlobal;
+import net.vleu.par.models.Device;
 import net.vleu.par.models.DeviceId;
 import net.vleu.par.models.UserId;
 import net.vleu.par.utils.C2dmRequestFactory;
@@ -40,29 +64,66 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskHandle;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalURLFetchServiceTestConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 @RunWith(MockitoJUnitRunner.class)
 public class DeviceWakerTest {
 
     private static ClientLoginToken DUMMY_C2DM_AUTH_TOKEN =
             new ClientLoginToken("DUMMY_C2DM_AUTH_TOKEN");
+    private static final int LOCAL_CACHE_SIZE = 16;
     private static final UserId USER_ID = UserId.fromGoogleAuthId("dummyUser");
+    private static final long WAKE_DELAY_MILLIS = 60 * 1000;
+
+    @SuppressWarnings("unchecked")
+    private static Iterable<Key> anyKeys() {
+        return any(Iterable.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Iterable<TaskOptions> anyTasks() {
+        return any(Iterable.class);
+    }
+
+    @Mock
+    private AsyncDatastoreService asyncDatastoreService;
+
     @Mock
     private DatastoreService datastoreService;
 
     private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
-            new LocalDatastoreServiceTestConfig().setStoreDelayMs(0));
+            new LocalDatastoreServiceTestConfig().setStoreDelayMs(0),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalURLFetchServiceTestConfig());
+    @Mock
+    private MemcacheService memcache;
+
+    @Mock
+    private Queue pullQueue;
+
     @Mock
     private Queue taskQueue;
 
@@ -70,10 +131,18 @@ public class DeviceWakerTest {
     private URLFetchService urlFetchService;
 
     private DeviceWaker newDeviceWakerUsingMocks() {
-        return new DeviceWaker(new ThreadGlobal<DatastoreService>(
-                this.datastoreService), new C2dmRequestFactory(),
-                this.taskQueue, new ThreadGlobal<URLFetchService>(
-                        this.urlFetchService));
+        return newDeviceWakerUsingMocks(WakeMode.PUSH);
+    }
+
+    private DeviceWaker newDeviceWakerUsingMocks(final WakeMode wakeMode) {
+        return new DeviceWaker(new DeviceCache(
+                new ThreadGlobal<DatastoreService>(this.datastoreService),
+                this.memcache, LOCAL_CACHE_SIZE, WAKE_DELAY_MILLIS),
+                new ThreadGlobal<AsyncDatastoreService>(
+                this.asyncDatastoreService), new C2dmRequestFactory(),
+                this.taskQueue, this.pullQueue,
+                new ThreadGlobal<URLFetchService>(this.urlFetchService),
+                WAKE_DELAY_MILLIS, wakeMode);
     }
 
     @Before
@@ -86,40 +155,120 @@ public class DeviceWakerTest {
         this.helper.tearDown();
     }
 
+    /**
+     * Tests that {@link DeviceWaker#drainPullQueue(ClientLoginToken, int)}
+     * wakes the device up and deletes the task.
+     */
+    @Test
+    public void testDrainPullQueue() throws Exception {
+        final Key dummyDeviceKey =
+                DeviceEntity.keyForIds(USER_ID,
+                        DeviceEntityTest.DUMMY_DEVICE_ID);
+        final TaskHandle task = mock(TaskHandle.class);
+        final HTTPResponse mockedHttpResponse = mock(HTTPResponse.class);
+        @SuppressWarnings("unchecked")
+        final Future<HTTPResponse> mockedFuture = mock(Future.class);
+        final HashMap<Key, Entity> deviceEntities = new HashMap<Key, Entity>();
+        deviceEntities.put(dummyDeviceKey,
+                DeviceEntityTest.buildDummyDeviceEntity());
+        stub(task.getPayload()).toReturn(
+                (DeviceEntityTest.DUMMY_DEVICE_ID.value + "\n" + USER_ID
+                        .asString()).getBytes("UTF-8"));
+        stub(this.pullQueue.leaseTasks(anyLong(), any(TimeUnit.class),
+                anyLong())).toReturn(Arrays.asList(task));
+        stub(this.datastoreService.get(any(Transaction.class), anyKeys()))
+                .toReturn(deviceEntities);
+        stub(this.urlFetchService.fetchAsync(any(HTTPRequest.class)))
+                .toReturn(mockedFuture);
+        stub(mockedFuture.get()).toReturn(mockedHttpResponse);
+        stub(mockedHttpResponse.getResponseCode()).toReturn(200);
+        final DeviceWaker tested = newDeviceWakerUsingMocks(WakeMode.PULL);
+        final DrainResult result =
+                tested.drainPullQueue(DUMMY_C2DM_AUTH_TOKEN, 10);
+        assertEquals(1, result.leasedTasks);
+        assertEquals(0, result.failedTasks);
+        assertFalse(result.c2dmAuthTokenRejected);
+        verify(this.pullQueue).deleteTask(Arrays.asList(task));
+    }
+
+    /**
+     * Tests that {@link DeviceWaker#queueWake(UserId, DeviceId)} queues a task
+     * in the pull queue and a task draining it in the push queue.
+     */
+    @Test
+    public void testQueueWakePullMode() {
+        final DeviceWaker deviceWaker = newDeviceWakerUsingMocks(WakeMode.PULL);
+        assertTrue(deviceWaker.queueWake(USER_ID,
+                DeviceEntityTest.DUMMY_DEVICE_ID));
+        verify(this.pullQueue).add(anyTasks());
+        verify(this.taskQueue).add(anyTasks());
+    }
+
     /**
      * Tests that {@link DeviceWaker#queueWake(UserId, DeviceId)} queues a task.
      */
     @Test
     public void testQueueWake() throws IOException, EntityNotFoundException {
         final DeviceWaker deviceWaker = newDeviceWakerUsingMocks();
-        deviceWaker.queueWake(USER_ID, DeviceEntityTest.DUMMY_DEVICE_ID);
-        verify(this.taskQueue).add(any(TaskOptions.class));
+        assertTrue(deviceWaker.queueWake(USER_ID,
+                DeviceEntityTest.DUMMY_DEVICE_ID));
+        verify(this.taskQueue).add(anyTasks());
+    }
+
+    /**
+     * Tests that {@link DeviceWaker#queueWake(UserId, DeviceId)} does not
+     * queue a second task while the first has not fired.
+     */
+    @Test
+    public void testQueueWakeCoalesces() {
+        final DeviceWaker deviceWaker = newDeviceWakerUsingMocks();
+        assertTrue(deviceWaker.queueWake(USER_ID,
+                DeviceEntityTest.DUMMY_DEVICE_ID));
+        assertTrue(deviceWaker.queueWakes(USER_ID,
+                Arrays.asList(DeviceEntityTest.DUMMY_DEVICE_ID)));
+        verify(this.taskQueue, times(1)).add(anyTasks());
+    }
+
+    /**
+     * Tests that {@link DeviceWaker#queueWake(UserId, DeviceId)} retries after
+     * a transient failure, and that failed wakes are not coalesced.
+     */
+    @Test
+    public void testQueueWakeRetries() {
+        final DeviceWaker deviceWaker = newDeviceWakerUsingMocks();
+        stub(this.taskQueue.add(anyTasks())).toThrow(
+                new TransientFailureException("Dummy failure"));
+        assertFalse(deviceWaker.queueWake(USER_ID,
+                DeviceEntityTest.DUMMY_DEVICE_ID));
+        verify(this.taskQueue, atLeast(2)).add(anyTasks());
+        reset(this.taskQueue);
+        assertTrue(deviceWaker.queueWake(USER_ID,
+                DeviceEntityTest.DUMMY_DEVICE_ID));
+        verify(this.taskQueue).add(anyTasks());
     }
 
     /**
      * Test that {@link DeviceWaker#reallyWake(UserId, DeviceId)} fails when the
      * URLFetchService fails.
-     * 
-     * @throws IOException
-     *             Test failed
-     * @throws EntityNotFoundException
-     *             Test failed
-     * @throws InvalidC2dmClientLoginToken
-     *             Test failed
      */
     @Test(expected = IOException.class)
-    public void testReallyWakeFailure() throws EntityNotFoundException,
-            IOException, InvalidC2dmClientLoginToken {
+    public void testReallyWakeFailure() throws Exception {
         final Key dummyDeviceKey =
                 DeviceEntity.keyForIds(USER_ID,
                         DeviceEntityTest.DUMMY_DEVICE_ID);
         final HTTPResponse mockedHttpResponse = mock(HTTPResponse.class);
+        @SuppressWarnings("unchecked")
+        final Future<Entity> mockedEntityFuture = mock(Future.class);
+        @SuppressWarnings("unchecked")
+        final Future<HTTPResponse> mockedResponseFuture = mock(Future.class);
         stub(
-                this.datastoreService.get(any(Transaction.class),
-                        eq(dummyDeviceKey))).toReturn(
+                this.asyncDatastoreService.get(any(Transaction.class),
+                        eq(dummyDeviceKey))).toReturn(mockedEntityFuture);
+        stub(mockedEntityFuture.get()).toReturn(
                 DeviceEntityTest.buildDummyDeviceEntity());
-        stub(this.urlFetchService.fetch(any(HTTPRequest.class))).toReturn(
-                mockedHttpResponse);
+        stub(this.urlFetchService.fetchAsync(any(HTTPRequest.class)))
+                .toReturn(mockedResponseFuture);
+        stub(mockedResponseFuture.get()).toReturn(mockedHttpResponse);
         stub(mockedHttpResponse.getResponseCode()).toReturn(404);
         final DeviceWaker tested = newDeviceWakerUsingMocks();
         tested.reallyWake(DUMMY_C2DM_AUTH_TOKEN, USER_ID,
@@ -128,31 +277,151 @@ public class DeviceWakerTest {
 
     /**
      * Tests that {@link DeviceWaker#reallyWake(UserId, DeviceId)} can succeed.
-     * 
-     * @throws IOException
-     *             Test failed
-     * @throws EntityNotFoundException
-     *             Test failed
-     * @throws InvalidC2dmClientLoginToken
-     *             Test failed
      */
     @Test
-    public void testReallyWakeSuccess() throws EntityNotFoundException,
-            IOException, InvalidC2dmClientLoginToken {
+    public void testReallyWakeSuccess() throws Exception {
         final Key dummyDeviceKey =
                 DeviceEntity.keyForIds(USER_ID,
                         DeviceEntityTest.DUMMY_DEVICE_ID);
         final HTTPResponse mockedHttpResponse = mock(HTTPResponse.class);
+        @SuppressWarnings("unchecked")
+        final Future<Entity> mockedEntityFuture = mock(Future.class);
+        @SuppressWarnings("unchecked")
+        final Future<HTTPResponse> mockedResponseFuture = mock(Future.class);
         stub(
-                this.datastoreService.get(any(Transaction.class),
-                        eq(dummyDeviceKey))).toReturn(
+                this.asyncDatastoreService.get(any(Transaction.class),
+                        eq(dummyDeviceKey))).toReturn(mockedEntityFuture);
+        stub(mockedEntityFuture.get()).toReturn(
                 DeviceEntityTest.buildDummyDeviceEntity());
-        stub(this.urlFetchService.fetch(any(HTTPRequest.class))).toReturn(
-                mockedHttpResponse);
+        stub(this.urlFetchService.fetchAsync(any(HTTPRequest.class)))
+                .toReturn(mockedResponseFuture);
+        stub(mockedResponseFuture.get()).toReturn(mockedHttpResponse);
         stub(mockedHttpResponse.getResponseCode()).toReturn(200);
         final DeviceWaker tested = newDeviceWakerUsingMocks();
         tested.reallyWake(DUMMY_C2DM_AUTH_TOKEN, USER_ID,
                 DeviceEntityTest.DUMMY_DEVICE_ID);
     }
 
+    /**
+     * Tests that {@link Future#get(long, TimeUnit)} on a wake gives up once
+     * the timeout elapsed, and leaves the wake in its {@link WakePipeline}.
+     */
+    @Test
+    public void testWakeTimesOut() throws Exception {
+        final Key dummyDeviceKey =
+                DeviceEntity.keyForIds(USER_ID,
+                        DeviceEntityTest.DUMMY_DEVICE_ID);
+        final HTTPResponse mockedHttpResponse = mock(HTTPResponse.class);
+        @SuppressWarnings("unchecked")
+        final Future<Entity> mockedEntityFuture = mock(Future.class);
+        @SuppressWarnings("unchecked")
+        final Future<HTTPResponse> mockedResponseFuture = mock(Future.class);
+        stub(
+                this.asyncDatastoreService.get(any(Transaction.class),
+                        eq(dummyDeviceKey))).toReturn(mockedEntityFuture);
+        stub(mockedEntityFuture.isDone()).toReturn(true);
+        stub(mockedEntityFuture.get()).toReturn(
+                DeviceEntityTest.buildDummyDeviceEntity());
+        stub(this.urlFetchService.fetchAsync(any(HTTPRequest.class)))
+                .toReturn(mockedResponseFuture);
+        stub(mockedResponseFuture.get(anyLong(), any(TimeUnit.class)))
+                .toThrow(new TimeoutException());
+        final DeviceWaker tested = newDeviceWakerUsingMocks();
+        final Future<ClientLoginToken> wake =
+                tested.newPipeline(DUMMY_C2DM_AUTH_TOKEN).wake(USER_ID,
+                        DeviceEntityTest.DUMMY_DEVICE_ID);
+        try {
+            wake.get(10, TimeUnit.MILLISECONDS);
+            fail();
+        }
+        catch (final TimeoutException e) {
+            assertFalse(wake.isDone());
+        }
+        stub(mockedResponseFuture.isDone()).toReturn(true);
+        stub(mockedResponseFuture.get()).toReturn(mockedHttpResponse);
+        stub(mockedHttpResponse.getResponseCode()).toReturn(200);
+        assertNull(wake.get());
+        verify(this.urlFetchService, times(1)).fetchAsync(
+                any(HTTPRequest.class));
+    }
+
+    /**
+     * Tests that a {@link WakePipeline} wakes more devices than it can have
+     * requests in flight, against a local server standing for C2DM's.
+     */
+    @Test
+    public void testWakePipelineAgainstStubServer() throws Exception {
+        final int devicesCount = 12;
+        final AtomicInteger requestsCount = new AtomicInteger();
+        final HttpServer server =
+                HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/c2dm/send", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                requestsCount.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            final DatastoreService datastore =
+                    DatastoreServiceFactory.getDatastoreService();
+            final ArrayList<DeviceId> deviceIds = new ArrayList<DeviceId>();
+            for (int n = 0; n < devicesCount; n++) {
+                final DeviceId deviceId =
+                        new DeviceId(String.format("CTJ5BgAAAA%02d", n));
+                datastore.put(DeviceEntity.entityFromDevice(USER_ID,
+                        new Device(deviceId,
+                                DeviceEntityTest.DUMMY_DEVICE_NAME,
+                                new C2dmToken("dummyC2DM" + n))));
+                deviceIds.add(deviceId);
+            }
+            final DeviceCache deviceCache =
+                    new DeviceCache(
+                            new ThreadGlobal<DatastoreService>(datastore),
+                            MemcacheServiceFactory
+                                    .getMemcacheService(DeviceCache.MEMCACHE_NAMESPACE),
+                            LOCAL_CACHE_SIZE, WAKE_DELAY_MILLIS);
+            final URL stubUrl =
+                    new URL("http", "localhost", server.getAddress()
+                            .getPort(), "/c2dm/send");
+            final DeviceWaker tested =
+                    new DeviceWaker(deviceCache,
+                            new ThreadGlobal<AsyncDatastoreService>(
+                            DatastoreServiceFactory.getAsyncDatastoreService()),
+                            new C2dmRequestFactory(stubUrl), this.taskQueue,
+                            this.pullQueue, new ThreadGlobal<URLFetchService>(
+                                    URLFetchServiceFactory
+                                            .getURLFetchService()),
+                            WAKE_DELAY_MILLIS, WakeMode.PUSH);
+            final WakePipeline pipeline =
+                    tested.newPipeline(DUMMY_C2DM_AUTH_TOKEN);
+            final ArrayList<Future<ClientLoginToken>> futures =
+                    new ArrayList<Future<ClientLoginToken>>();
+            for (final DeviceId deviceId : deviceIds)
+                futures.add(pipeline.wake(USER_ID, deviceId));
+            final Future<ClientLoginToken> unknownDevice =
+                    pipeline.wake(USER_ID, new DeviceId("unknownDevice"));
+            for (final Future<ClientLoginToken> future : futures)
+                assertNull(future.get());
+            assertEquals(devicesCount, requestsCount.get());
+            try {
+                unknownDevice.get();
+                fail();
+            }
+            catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof EntityNotFoundException);
+            }
+            /* The devices are now cached */
+            for (final DeviceId deviceId : deviceIds)
+                assertNull(tested.reallyWake(DUMMY_C2DM_AUTH_TOKEN, USER_ID,
+                        deviceId));
+            assertEquals(2 * devicesCount, requestsCount.get());
+            assertEquals(devicesCount, deviceCache.getLocalHits());
+        }
+        finally {
+            server.stop(0);
+        }
+    }
 }
@@ -17,15 +17,27 @@
 package net.vleu.par.gateway;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
+import net.vleu.par.gateway.DirectiveStore.DirectivesPage;
+import net.vleu.par.gateway.DirectiveStore.PageCursor;
 import net.vleu.par.gateway.datastore.DeviceEntityTest;
 import net.vleu.par.gateway.datastore.DirectiveEntityTest;
+import net.vleu.par.gateway.datastore.ThreadLocalDatastoreService;
 import net.vleu.par.gateway.datastore.TooManyConcurrentAccesses;
+import net.vleu.par.models.DeviceId;
 import net.vleu.par.models.Directive;
 import net.vleu.par.models.UserIdTest;
+import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
 
 import org.junit.After;
 import org.junit.Before;
@@ -38,6 +50,35 @@ import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
  * This is more an integration test than a unit test but who cares ?
  */
 public class DirectiveStoreTest {
+    private static final long DUMMY_CREATOR_ID = 42;
+    private static final List<DirectiveIdData> NO_ACKNOWLEDGEMENTS =
+            Collections.emptyList();
+
+    private static DirectiveIdData buildDirectiveId(final int timestamp) {
+        return buildDirectiveId(DUMMY_CREATOR_ID, timestamp);
+    }
+
+    private static DirectiveIdData buildDirectiveId(final long creatorId,
+            final int timestamp) {
+        final DirectiveIdData.Builder res = DirectiveIdData.newBuilder();
+        res.setCreatorId(creatorId);
+        res.setTimestamp(timestamp);
+        return res.build();
+    }
+
+    private static Directive buildDirectiveWithId(final int timestamp) {
+        return buildDirectiveWithId(DUMMY_CREATOR_ID, timestamp);
+    }
+
+    private static Directive buildDirectiveWithId(final long creatorId,
+            final int timestamp) {
+        final DirectiveData.Builder res =
+                DirectiveData.newBuilder(DirectiveEntityTest.DUMMY_DIRECTIVE
+                        .asProtocolBuffer());
+        res.setId(buildDirectiveId(creatorId, timestamp));
+        return new Directive(res.build());
+    }
+
     private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
             new LocalDatastoreServiceTestConfig().setStoreDelayMs(0));
 
@@ -51,15 +92,146 @@ public class DirectiveStoreTest {
         this.helper.tearDown();
     }
 
+    private DirectivesPage fetch(final DirectiveStore test,
+            final DirectiveIdData... acknowledgements) {
+        return test.fetch(UserIdTest.DUMMY_USER_ID,
+                DeviceEntityTest.DUMMY_DEVICE_ID, Arrays
+                        .asList(acknowledgements), null,
+                DirectiveStore.MAX_DIRECTIVES_PER_PAGE);
+    }
+
+    @Test
+    public void testAcknowledgements() throws TooManyConcurrentAccesses {
+        final DirectiveStore test = new DirectiveStore();
+        for (int timestamp = 1; timestamp <= 3; timestamp++)
+            test.store(UserIdTest.DUMMY_USER_ID,
+                    DeviceEntityTest.DUMMY_DEVICE_ID,
+                    buildDirectiveWithId(timestamp));
+        /* Storing the same directive twice has no effect */
+        test.store(UserIdTest.DUMMY_USER_ID, DeviceEntityTest.DUMMY_DEVICE_ID,
+                buildDirectiveWithId(3));
+        /* Without acknowledgements, directives stay queued */
+        assertEquals(3, fetch(test).directives.size());
+        final DirectivesPage page1 = fetch(test);
+        assertEquals(3, page1.directives.size());
+        assertEquals(buildDirectiveWithId(1), page1.directives.get(0));
+        assertTrue(page1.creatorIdsToForget.isEmpty());
+        /* Acknowledging the second one deletes the first two */
+        final DirectivesPage page2 = fetch(test, buildDirectiveId(2));
+        assertEquals(1, page2.directives.size());
+        assertEquals(buildDirectiveWithId(3), page2.directives.get(0));
+        assertTrue(page2.creatorIdsToForget.isEmpty());
+        /* Acknowledging the last one lets the device forget the creator */
+        final DirectivesPage page3 = fetch(test, buildDirectiveId(3));
+        assertTrue(page3.directives.isEmpty());
+        assertEquals(Arrays.asList(DUMMY_CREATOR_ID), page3.creatorIdsToForget);
+    }
+
     @Test
     public void testEmptyDatastore() throws TooManyConcurrentAccesses {
         final DirectiveStore test = new DirectiveStore();
-        final ArrayList<Directive> result =
-                test.fetchAndDelete(UserIdTest.DUMMY_USER_ID,
-                        DeviceEntityTest.DUMMY_DEVICE_ID);
+        final ArrayList<Directive> result = fetch(test).directives;
         assertTrue(result.isEmpty());
     }
 
+    @Test
+    public void testPaginatedFetch() throws TooManyConcurrentAccesses {
+        final DirectiveStore test = new DirectiveStore();
+        for (int n = 0; n < 5; n++)
+            test.store(UserIdTest.DUMMY_USER_ID,
+                    DeviceEntityTest.DUMMY_DEVICE_ID,
+                    DirectiveEntityTest.DUMMY_DIRECTIVE);
+        final DirectivesPage page1 =
+                test.fetch(UserIdTest.DUMMY_USER_ID,
+                        DeviceEntityTest.DUMMY_DEVICE_ID, NO_ACKNOWLEDGEMENTS,
+                        null, 2);
+        assertEquals(2, page1.directives.size());
+        assertNotNull(page1.cursor);
+        final DirectivesPage page2 =
+                test.fetch(UserIdTest.DUMMY_USER_ID,
+                        DeviceEntityTest.DUMMY_DEVICE_ID, NO_ACKNOWLEDGEMENTS,
+                        page1.cursor, 2);
+        assertEquals(2, page2.directives.size());
+        assertNotNull(page2.cursor);
+        final DirectivesPage page3 =
+                test.fetch(UserIdTest.DUMMY_USER_ID,
+                        DeviceEntityTest.DUMMY_DEVICE_ID, NO_ACKNOWLEDGEMENTS,
+                        page2.cursor, 2);
+        assertEquals(1, page3.directives.size());
+        assertNull(page3.cursor);
+        assertTrue(fetch(test).directives.isEmpty());
+    }
+
+    /**
+     * Tests that the sharded layout pages through all the shards, and still
+     * sees what was stored before the sharding was enabled
+     */
+    @Test
+    public void testShardedFetch() throws TooManyConcurrentAccesses {
+        final int creatorsCount = 8;
+        final DirectiveStore unsharded = new DirectiveStore();
+        final DirectiveStore test =
+                new DirectiveStore(ThreadLocalDatastoreService.getSingleton(),
+                        4);
+        unsharded.store(UserIdTest.DUMMY_USER_ID,
+                DeviceEntityTest.DUMMY_DEVICE_ID, buildDirectiveWithId(1));
+        final ArrayList<Directive> directives = new ArrayList<Directive>();
+        for (long creatorId = 1; creatorId < creatorsCount; creatorId++)
+            directives.add(buildDirectiveWithId(creatorId, 1));
+        final HashMap<DeviceId, List<Directive>> directivesByDevice =
+                new HashMap<DeviceId, List<Directive>>();
+        directivesByDevice.put(DeviceEntityTest.DUMMY_DEVICE_ID, directives);
+        final ArrayList<DeviceId> storedDeviceIds = new ArrayList<DeviceId>();
+        test.storeAll(UserIdTest.DUMMY_USER_ID, directivesByDevice,
+                storedDeviceIds);
+        assertEquals(Arrays.asList(DeviceEntityTest.DUMMY_DEVICE_ID),
+                storedDeviceIds);
+        /* Pages through the shards */
+        final ArrayList<Directive> fetched = new ArrayList<Directive>();
+        PageCursor cursor = null;
+        do {
+            final DirectivesPage page =
+                    test.fetch(UserIdTest.DUMMY_USER_ID,
+                            DeviceEntityTest.DUMMY_DEVICE_ID,
+                            NO_ACKNOWLEDGEMENTS, cursor, 3);
+            assertTrue(page.directives.size() <= 3);
+            fetched.addAll(page.directives);
+            if (page.cursor != null)
+                cursor =
+                        PageCursor.fromWebSafeString(page.cursor
+                                .toWebSafeString());
+            else
+                cursor = null;
+        } while (cursor != null);
+        assertEquals(creatorsCount, fetched.size());
+        /* Acknowledging everything empties all the shards */
+        final DirectiveIdData[] acknowledgements =
+                new DirectiveIdData[creatorsCount];
+        for (int creatorId = 0; creatorId < creatorsCount; creatorId++)
+            acknowledgements[creatorId] =
+                    buildDirectiveId(creatorId == 0 ? DUMMY_CREATOR_ID
+                            : creatorId, 1);
+        final DirectivesPage page = fetch(test, acknowledgements);
+        assertTrue(page.directives.isEmpty());
+        assertEquals(creatorsCount, page.creatorIdsToForget.size());
+    }
+
+    @Test
+    public void testStoreAllThenFetch() throws TooManyConcurrentAccesses {
+        final DirectiveStore test = new DirectiveStore();
+        final HashMap<DeviceId, List<Directive>> directives =
+                new HashMap<DeviceId, List<Directive>>();
+        directives.put(DeviceEntityTest.DUMMY_DEVICE_ID, Arrays.asList(
+                DirectiveEntityTest.DUMMY_DIRECTIVE,
+                DirectiveEntityTest.DUMMY_DIRECTIVE,
+                DirectiveEntityTest.DUMMY_DIRECTIVE));
+        test.storeAll(UserIdTest.DUMMY_USER_ID, directives,
+                new ArrayList<DeviceId>());
+        final ArrayList<Directive> result = fetch(test).directives;
+        assertEquals(3, result.size());
+        assertEquals(DirectiveEntityTest.DUMMY_DIRECTIVE, result.get(0));
+    }
+
     @Test
     public void testStoreTwiceThenFetchTwice() throws TooManyConcurrentAccesses {
         final DirectiveStore test = new DirectiveStore();
@@ -67,12 +239,8 @@ public class DirectiveStoreTest {
                 DirectiveEntityTest.DUMMY_DIRECTIVE);
         test.store(UserIdTest.DUMMY_USER_ID, DeviceEntityTest.DUMMY_DEVICE_ID,
                 DirectiveEntityTest.DUMMY_DIRECTIVE);
-        final ArrayList<Directive> result1 =
-                test.fetchAndDelete(UserIdTest.DUMMY_USER_ID,
-                        DeviceEntityTest.DUMMY_DEVICE_ID);
-        final ArrayList<Directive> result2 =
-                test.fetchAndDelete(UserIdTest.DUMMY_USER_ID,
-                        DeviceEntityTest.DUMMY_DEVICE_ID);
+        final ArrayList<Directive> result1 = fetch(test).directives;
+        final ArrayList<Directive> result2 = fetch(test).directives;
         assertEquals(2, result1.size());
         assertEquals(result1.get(0), DirectiveEntityTest.DUMMY_DIRECTIVE);
         assertEquals(result1.get(1), DirectiveEntityTest.DUMMY_DIRECTIVE);
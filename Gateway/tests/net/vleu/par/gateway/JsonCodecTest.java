@@ -0,0 +1,147 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.vleu.par.Config;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.RegisterDeviceData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData.DeviceDescriptionData;
+import net.vleu.par.protocolbuffer.SchemaGatewayCommands;
+
+import org.junit.Test;
+
+import com.dyuproject.protostuff.JsonIOUtil;
+
+public class JsonCodecTest {
+    /** Enough devices for the JSON to span several buffers */
+    private static final int DEVICES_COUNT = 200;
+
+    private static GatewayRequestData buildLargeRequest() {
+        final GatewayRequestData.Builder res = GatewayRequestData.newBuilder();
+        for (int n = 0; n < DEVICES_COUNT; n++)
+            res.addRegisterDevice(RegisterDeviceData.newBuilder()
+                    .setDeviceId(String.format("CTJ5BgAA%04d", n))
+                    .setFriendlyName("Dummy device number " + n));
+        return res.build();
+    }
+
+    private static GatewayResponseData buildLargeResponse() {
+        final GatewayResponseData.Builder res =
+                GatewayResponseData.newBuilder();
+        for (int n = 0; n < DEVICES_COUNT; n++)
+            res.addDeviceDescriptions(DeviceDescriptionData.newBuilder()
+                    .setDeviceId(String.format("CTJ5BgAA%04d", n))
+                    .setFriendlyName("Dummy device number " + n));
+        return res.build();
+    }
+
+    /** Parses a response the way the clients do */
+    private static GatewayResponseData parseResponse(final byte[] json)
+            throws IOException {
+        final GatewayResponseData.Builder res =
+                GatewayResponseData.newBuilder();
+        JsonIOUtil.mergeFrom(json, res,
+                SchemaGatewayCommands.GatewayResponseData.MERGE,
+                Config.SERVER_RPC_JSON_NUMERIC);
+        return res.build();
+    }
+
+    /** Serializes a request the way the clients do */
+    private static byte[] serializeRequest(final GatewayRequestData request)
+            throws IOException {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        JsonIOUtil.writeTo(res, request,
+                SchemaGatewayCommands.GatewayRequestData.WRITE,
+                Config.SERVER_RPC_JSON_NUMERIC);
+        return res.toByteArray();
+    }
+
+    /** Serializes a response with the tested codec */
+    private static byte[] writeResponse(final GatewayResponseData response)
+            throws IOException {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        JsonCodec.writeResponse(response, res);
+        return res.toByteArray();
+    }
+
+    /**
+     * Tests that requests and responses larger than
+     * {@link JsonCodec#BUFFER_SIZE} go through the per-thread buffer intact
+     */
+    @Test
+    public void testLargeRoundTrips() throws IOException {
+        final GatewayRequestData request = buildLargeRequest();
+        final byte[] requestJson = serializeRequest(request);
+        assertTrue(requestJson.length > 2 * JsonCodec.BUFFER_SIZE);
+        assertEquals(request,
+                JsonCodec.parseRequest(new ByteArrayInputStream(requestJson)));
+
+        final GatewayResponseData response = buildLargeResponse();
+        final byte[] responseJson = writeResponse(response);
+        assertTrue(responseJson.length > 2 * JsonCodec.BUFFER_SIZE);
+        assertEquals(response, parseResponse(responseJson));
+    }
+
+    /**
+     * Tests that the per-thread buffer can be used again after a parse and a
+     * write failed halfway through
+     */
+    @Test
+    public void testReuseAfterFailures() throws IOException {
+        final byte[] requestJson = serializeRequest(buildLargeRequest());
+        final byte[] truncated = new byte[requestJson.length / 2];
+        System.arraycopy(requestJson, 0, truncated, 0, truncated.length);
+        try {
+            JsonCodec.parseRequest(new ByteArrayInputStream(truncated));
+            fail("IOException expected");
+        }
+        catch (final IOException e) {
+            /* Expected, the JSON is cut in the middle */
+        }
+        assertEquals(buildLargeRequest(),
+                JsonCodec.parseRequest(new ByteArrayInputStream(requestJson)));
+
+        final OutputStream failingStream = new OutputStream() {
+            private int written = 0;
+
+            @Override
+            public void write(final int b) throws IOException {
+                if (++this.written > JsonCodec.BUFFER_SIZE)
+                    throw new IOException("Dummy failure");
+            }
+        };
+        try {
+            JsonCodec.writeResponse(buildLargeResponse(), failingStream);
+            fail("IOException expected");
+        }
+        catch (final IOException e) {
+            /* Expected, the stream broke */
+        }
+        assertEquals(buildLargeResponse(),
+                parseResponse(writeResponse(buildLargeResponse())));
+    }
+}
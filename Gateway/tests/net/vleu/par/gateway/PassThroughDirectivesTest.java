@@ -0,0 +1,76 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import net.vleu.par.gateway.datastore.DirectiveEntityTest;
+import net.vleu.par.models.Directive;
+import net.vleu.par.models.Directive.InvalidDirectiveSerialisation;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+
+import org.junit.Test;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Tests for {@link PassThroughDirectives}
+ */
+public class PassThroughDirectivesTest {
+    private static final Directive DIRECTIVE =
+            DirectiveEntityTest.DUMMY_DIRECTIVE;
+
+    private static GatewayResponseData buildResponse()
+            throws InvalidDirectiveSerialisation {
+        final Directive passedThrough =
+                Directive.fromValidatedProtocolBuffer(DIRECTIVE
+                        .asProtocolBufferBytes());
+        final GatewayResponseData.Builder res =
+                GatewayResponseData.newBuilder();
+        res.addDirective(DIRECTIVE.asProtocolBuffer());
+        PassThroughDirectives.add(res, Arrays.asList(passedThrough,
+                passedThrough));
+        res.addCreatorIdsToForget(42);
+        return res.build();
+    }
+
+    @Test
+    public void testParsed() throws InvalidDirectiveSerialisation,
+            InvalidProtocolBufferException {
+        final GatewayResponseData parsed =
+                PassThroughDirectives.parsed(buildResponse());
+        assertEquals(3, parsed.getDirectiveCount());
+        assertEquals(DIRECTIVE.asProtocolBuffer(), parsed.getDirective(2));
+        assertEquals(0, parsed.getUnknownFields().asMap().size());
+        assertSame(parsed, PassThroughDirectives.parsed(parsed));
+    }
+
+    @Test
+    public void testSerialized() throws InvalidDirectiveSerialisation,
+            InvalidProtocolBufferException {
+        final GatewayResponseData response = buildResponse();
+        assertEquals(1, response.getDirectiveCount());
+        final GatewayResponseData reparsed =
+                GatewayResponseData.parseFrom(response.toByteArray());
+        assertEquals(3, reparsed.getDirectiveCount());
+        assertEquals(DIRECTIVE.asProtocolBuffer(), reparsed.getDirective(1));
+        assertEquals(Arrays.asList(42L), reparsed.getCreatorIdsToForgetList());
+    }
+}
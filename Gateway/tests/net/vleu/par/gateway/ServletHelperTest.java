@@ -0,0 +1,179 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.stub;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.vleu.par.ClientLoginToken;
+import net.vleu.par.gateway.datastore.ServerConfigurationEntity;
+import net.vleu.par.gateway.tests.ThreadGlobal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.oauth.OAuthService;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ServletHelperTest {
+    private static final long LONG_TTL_MILLIS = 60 * 1000;
+    private static final long SHORT_TTL_MILLIS = 1;
+
+    private static Entity buildConfigurationEntity(final String c2dmAuthToken) {
+        return ServerConfigurationEntity
+                .entityServerConfig(new ServerConfiguration(
+                        new ClientLoginToken(c2dmAuthToken)));
+    }
+
+    /** Waits until a value cached for {@link #SHORT_TTL_MILLIS} expired */
+    private static void waitForExpiry() throws InterruptedException {
+        Thread.sleep(10 * SHORT_TTL_MILLIS + 10);
+    }
+
+    @Mock
+    private DatastoreService datastore;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig());
+
+    @Mock
+    private MemcacheService memcache;
+
+    private String readC2dmAuthToken(final ServletHelper tested) {
+        return tested.readServerConfiguration().getC2dmAuthToken().value;
+    }
+
+    private ServletHelper newServletHelper(final long ttlMillis) {
+        stub(this.memcache.getNamespace()).toReturn(
+                ServletHelper.MEMCACHE_NAMESPACE);
+        return new ServletHelper(new ThreadGlobal<DatastoreService>(
+                this.datastore), this.memcache,
+                new ThreadGlobal<UserService>(null),
+                new ThreadGlobal<OAuthService>(null), ttlMillis);
+    }
+
+    @Before
+    public void setUp() {
+        this.helper.setUp();
+        ServletHelper.forgetCachedConfiguration();
+    }
+
+    @After
+    public void tearDown() {
+        ServletHelper.forgetCachedConfiguration();
+        this.helper.tearDown();
+    }
+
+    /**
+     * Tests that the configuration is served from the JVM until
+     * {@link ServletHelper#invalidateServerConfiguration()} is called
+     */
+    @Test
+    public void testInvalidate() {
+        final ServletHelper tested = newServletHelper(LONG_TTL_MILLIS);
+        stub(this.memcache.get(any())).toReturn(
+                buildConfigurationEntity("first"));
+        assertEquals("first", readC2dmAuthToken(tested));
+        stub(this.memcache.get(any())).toReturn(
+                buildConfigurationEntity("second"));
+        assertEquals("first", readC2dmAuthToken(tested));
+        verify(this.memcache, times(1)).get(any());
+        tested.invalidateServerConfiguration();
+        assertEquals("second", readC2dmAuthToken(tested));
+        assertEquals("second", readC2dmAuthToken(tested));
+        verify(this.memcache, times(2)).get(any());
+    }
+
+    /**
+     * Tests that while a thread refreshes the expired configuration, the
+     * others get the expired one without waiting
+     */
+    @Test
+    public void testExpiredValueServedDuringRefresh() throws Exception {
+        final ServletHelper tested = newServletHelper(SHORT_TTL_MILLIS);
+        final CountDownLatch refreshStarted = new CountDownLatch(1);
+        final CountDownLatch refreshAllowed = new CountDownLatch(1);
+        final AtomicReference<String> refreshed = new AtomicReference<String>();
+        stub(this.memcache.get(any())).toReturn(
+                buildConfigurationEntity("first"));
+        assertEquals("first", readC2dmAuthToken(tested));
+        waitForExpiry();
+        final Entity second = buildConfigurationEntity("second");
+        stub(this.memcache.get(any())).toAnswer(new Answer<Entity>() {
+            @Override
+            public Entity answer(final InvocationOnMock invocation)
+                    throws InterruptedException {
+                refreshStarted.countDown();
+                refreshAllowed.await();
+                return second;
+            }
+        });
+        final Thread refresher = new Thread() {
+            @Override
+            public void run() {
+                refreshed.set(readC2dmAuthToken(tested));
+            }
+        };
+        refresher.start();
+        try {
+            assertTrue(refreshStarted.await(10, TimeUnit.SECONDS));
+            assertEquals("first", readC2dmAuthToken(tested));
+            verify(this.memcache, times(2)).get(any());
+        }
+        finally {
+            refreshAllowed.countDown();
+            refresher.join();
+        }
+        assertEquals("second", refreshed.get());
+    }
+
+    /**
+     * Tests that the configuration is read again once it expired
+     */
+    @Test
+    public void testTtlExpiry() throws InterruptedException {
+        final ServletHelper tested = newServletHelper(SHORT_TTL_MILLIS);
+        stub(this.memcache.get(any())).toReturn(
+                buildConfigurationEntity("first"));
+        assertEquals("first", readC2dmAuthToken(tested));
+        stub(this.memcache.get(any())).toReturn(
+                buildConfigurationEntity("second"));
+        waitForExpiry();
+        assertEquals("second", readC2dmAuthToken(tested));
+        verify(this.memcache, times(2)).get(any());
+    }
+}
@@ -21,8 +21,8 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ DeviceEntityTest.class, DirectiveEntityTest.class,
-        TransactionHelperTest.class })
+@SuiteClasses({ DeviceCacheTest.class, DeviceEntityTest.class,
+        DirectiveEntityTest.class, TransactionHelperTest.class })
 public class AllDatastoreTests {
 
 }
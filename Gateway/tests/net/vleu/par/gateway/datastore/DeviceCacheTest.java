@@ -0,0 +1,142 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.gateway.datastore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import net.vleu.par.gateway.tests.ThreadGlobal;
+import net.vleu.par.models.UserIdTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Tests for {@link DeviceCache}
+ */
+public class DeviceCacheTest {
+    private static final long LOCAL_TTL_MILLIS = 60 * 1000;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setStoreDelayMs(0),
+            new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService datastore;
+
+    private DeviceCache newDeviceCache(final int maxLocalEntities) {
+        return new DeviceCache(
+                new ThreadGlobal<DatastoreService>(this.datastore),
+                MemcacheServiceFactory
+                        .getMemcacheService(DeviceCache.MEMCACHE_NAMESPACE),
+                maxLocalEntities, LOCAL_TTL_MILLIS);
+    }
+
+    @Before
+    public void setUpLocalServiceTest() {
+        this.helper.setUp();
+        this.datastore = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDownLocalServiceTest() {
+        this.helper.tearDown();
+    }
+
+    /**
+     * Tests that the second read is served by the per-instance cache, and
+     * that another instance gets it from the memcache.
+     */
+    @Test
+    public void testGetThroughCaches() throws EntityNotFoundException {
+        final Entity entity = DeviceEntityTest.buildDummyDeviceEntity();
+        this.datastore.put(entity);
+        final DeviceCache first = newDeviceCache(16);
+        assertEquals(entity, first.get(entity.getKey()));
+        assertEquals(entity, first.get(entity.getKey()));
+        assertEquals(1, first.getMisses());
+        assertEquals(1, first.getLocalHits());
+        final DeviceCache second = newDeviceCache(16);
+        assertEquals(entity, second.get(entity.getKey()));
+        assertEquals(0, second.getMisses());
+        assertEquals(1, second.getMemcacheHits());
+    }
+
+    /**
+     * Tests that {@link DeviceCache#getAll(java.util.Collection)} only reads
+     * the missing entities from the datastore.
+     */
+    @Test
+    public void testGetAll() throws EntityNotFoundException {
+        final Entity entity = DeviceEntityTest.buildDummyDeviceEntity();
+        final Key unknownKey =
+                entity.getKey().getParent().getChild(DeviceEntity.KIND,
+                        "unknown");
+        this.datastore.put(entity);
+        final DeviceCache test = newDeviceCache(16);
+        test.get(entity.getKey());
+        final Map<Key, Entity> result =
+                test.getAll(Arrays.asList(entity.getKey(), unknownKey));
+        assertEquals(1, result.size());
+        assertEquals(entity, result.get(entity.getKey()));
+        assertEquals(1, test.getLocalHits());
+        assertEquals(2, test.getMisses());
+    }
+
+    /**
+     * Tests that {@link DeviceCache#put(net.vleu.par.models.UserId, Entity)}
+     * writes through and invalidates the list of owned devices.
+     */
+    @Test
+    public void testPutInvalidatesOwned() throws EntityNotFoundException {
+        final Entity entity = DeviceEntityTest.buildDummyDeviceEntity();
+        final DeviceCache test = newDeviceCache(16);
+        assertEquals(0, test.getOwned(UserIdTest.DUMMY_USER_ID).size());
+        test.put(UserIdTest.DUMMY_USER_ID, entity);
+        assertEquals(entity, this.datastore.get(entity.getKey()));
+        assertEquals(Arrays.asList(entity), test
+                .getOwned(UserIdTest.DUMMY_USER_ID));
+        assertEquals(entity, test.getIfCached(entity.getKey()));
+        assertEquals(0, test.getMemcacheHits());
+    }
+
+    /**
+     * Tests that an entity evicted from the per-instance cache is read from
+     * the memcache.
+     */
+    @Test
+    public void testLocalEviction() throws EntityNotFoundException {
+        final Entity entity = DeviceEntityTest.buildDummyDeviceEntity();
+        final DeviceCache test = newDeviceCache(0);
+        test.put(UserIdTest.DUMMY_USER_ID, entity);
+        assertEquals(entity, test.get(entity.getKey()));
+        assertEquals(0, test.getLocalHits());
+        assertEquals(1, test.getMemcacheHits());
+    }
+}
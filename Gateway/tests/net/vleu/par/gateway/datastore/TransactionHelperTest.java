@@ -17,6 +17,8 @@
 package net.vleu.par.gateway.datastore;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -55,8 +57,14 @@ public class TransactionHelperTest {
         }
 
         public CountingTransactionHelper(final int timesCalledBeforeSuccess) {
+            this(timesCalledBeforeSuccess, "test");
+        }
+
+        public CountingTransactionHelper(final int timesCalledBeforeSuccess,
+                final String description) {
             super(TransactionHelperTest.this.datastore,
-                    TransactionHelperTest.this.logger, "test");
+                    TransactionHelperTest.this.logger, description,
+                    RetryPolicies.immediate(MAX_CONFLICTS));
             this.timesCalledBeforeSuccess = timesCalledBeforeSuccess;
         }
 
@@ -80,6 +88,9 @@ public class TransactionHelperTest {
 
     }
 
+    /** Retrying without waiting keeps the tests fast */
+    private static final int MAX_CONFLICTS = 128;
+
     @Mock
     DatastoreService datastore;
     @Mock
@@ -102,6 +113,17 @@ public class TransactionHelperTest {
         verify(this.defaultTransaction).commit();
     }
 
+    @Test
+    public void testExponentialBackoff() {
+        final RetryPolicy tested = RetryPolicies.exponentialBackoff(10, 40, 3);
+        for (int conflicts = 1; conflicts <= 3; conflicts++) {
+            final long delay = tested.getRetryDelayMillis(conflicts, 0);
+            assertTrue(delay >= 10);
+            assertTrue(delay <= Math.min(40, 10 << (conflicts - 1)));
+        }
+        assertEquals(RetryPolicy.GIVE_UP, tested.getRetryDelayMillis(4, 0));
+    }
+
     @Test
     public void testOrdinaryCallsAreNotRetried()
             throws TooManyConcurrentAccesses {
@@ -122,4 +144,36 @@ public class TransactionHelperTest {
                 new CountingTransactionHelper(Integer.MAX_VALUE);
         tested.call();
     }
+
+    @Test(expected = TooManyConcurrentAccesses.class)
+    public void testRequestDeadlineStopsRetries()
+            throws TooManyConcurrentAccesses {
+        when(this.datastore.beginTransaction()).thenReturn(
+                this.defaultTransaction);
+        final CountingTransactionHelper tested =
+                new CountingTransactionHelper(2);
+        TransactionHelper.setRequestDeadline(System.currentTimeMillis());
+        try {
+            tested.call();
+        }
+        finally {
+            TransactionHelper.clearRequestDeadline();
+            assertEquals(1, tested.timesCalled);
+        }
+    }
+
+    @Test
+    public void testStatsAreCounted() throws TooManyConcurrentAccesses {
+        final String description = "testStatsAreCounted";
+        when(this.datastore.beginTransaction()).thenReturn(
+                this.defaultTransaction);
+        new CountingTransactionHelper(3, description).call();
+        final TransactionStats stats =
+                TransactionStats.forDescription(description);
+        assertEquals(3, stats.getAttempts());
+        assertEquals(2, stats.getConflicts());
+        assertEquals(1, stats.getCommits());
+        assertEquals(0, stats.getAbandoned());
+        verify(this.logger).info(contains(stats.toString()));
+    }
 }
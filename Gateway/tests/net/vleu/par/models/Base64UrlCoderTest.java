@@ -0,0 +1,204 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import biz.source_code.base64Coder.Base64UrlCoder;
+
+public class Base64UrlCoderTest {
+    /** Enough for every length modulo 3 to be tried several times */
+    private static final int MAX_LENGTH = 16;
+
+    /** Where the data starts in the arrays and buffers, must not be 0 */
+    private static final int OFFSET = 5;
+
+    private static ByteBuffer allocate(final boolean direct,
+            final int capacity) {
+        if (direct)
+            return ByteBuffer.allocateDirect(capacity);
+        else
+            return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return A buffer whose remaining bytes are a copy of the array, preceded
+     *         by {@link #OFFSET} bytes before its position
+     */
+    private static ByteBuffer bufferOf(final boolean direct,
+            final byte[] bytes) {
+        final ByteBuffer res = allocate(direct, OFFSET + bytes.length);
+        res.position(OFFSET);
+        res.put(bytes);
+        res.position(OFFSET);
+        return res;
+    }
+
+    /** @return Some bytes covering the whole range of values */
+    private static byte[] dummyBytes(final int length) {
+        final byte[] res = new byte[length];
+        for (int n = 0; n < length; n++)
+            res[n] = (byte) (n * 97 + 128);
+        return res;
+    }
+
+    /** @return The remaining bytes of the buffer, leaving it unchanged */
+    private static byte[] remaining(final ByteBuffer buffer) {
+        final byte[] res = new byte[buffer.remaining()];
+        buffer.duplicate().get(res);
+        return res;
+    }
+
+    private static void testByteBuffersRoundTrip(final boolean directIn,
+            final boolean directOut) {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            final byte[] data = dummyBytes(length);
+            final int encodedLength = Base64UrlCoder.encodedLength(length);
+            final ByteBuffer plain = bufferOf(directIn, data);
+            final ByteBuffer encoded =
+                    allocate(directOut, OFFSET + encodedLength);
+            encoded.position(OFFSET);
+            Base64UrlCoder.encode(plain, encoded);
+            assertEquals(plain.limit(), plain.position());
+            assertEquals(OFFSET + encodedLength, encoded.position());
+            encoded.position(OFFSET);
+            assertArrayEquals(new String(Base64UrlCoder.encode(data))
+                    .getBytes(), remaining(encoded));
+
+            final ByteBuffer decoded = allocate(directIn, OFFSET + length);
+            decoded.position(OFFSET);
+            Base64UrlCoder.decode(encoded, decoded);
+            assertEquals(encoded.limit(), encoded.position());
+            assertEquals(OFFSET + length, decoded.position());
+            decoded.position(OFFSET);
+            assertArrayEquals(data, remaining(decoded));
+        }
+    }
+
+    private static void testDecodeOverflow(final boolean direct) {
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            final byte[] encoded =
+                    new String(Base64UrlCoder.encode(dummyBytes(length)))
+                            .getBytes();
+            final ByteBuffer in = bufferOf(direct, encoded);
+            final ByteBuffer out = bufferOf(direct, new byte[length - 1]);
+            try {
+                Base64UrlCoder.decode(in, out);
+                fail("BufferOverflowException expected");
+            }
+            catch (final BufferOverflowException e) {
+                assertEquals(OFFSET, in.position());
+                assertEquals(OFFSET, out.position());
+                assertArrayEquals(encoded, remaining(in));
+                assertArrayEquals(new byte[length - 1], remaining(out));
+            }
+        }
+    }
+
+    private static void testEncodeOverflow(final boolean direct) {
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            final byte[] data = dummyBytes(length);
+            final int tooShort = Base64UrlCoder.encodedLength(length) - 1;
+            final ByteBuffer in = bufferOf(direct, data);
+            final ByteBuffer out = bufferOf(direct, new byte[tooShort]);
+            try {
+                Base64UrlCoder.encode(in, out);
+                fail("BufferOverflowException expected");
+            }
+            catch (final BufferOverflowException e) {
+                assertEquals(OFFSET, in.position());
+                assertEquals(OFFSET, out.position());
+                assertArrayEquals(data, remaining(in));
+                assertArrayEquals(new byte[tooShort], remaining(out));
+            }
+        }
+    }
+
+    @Test
+    public void testArraysRoundTrip() {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            final byte[] data = dummyBytes(length);
+            final char[] encoded = Base64UrlCoder.encode(data);
+            assertEquals(Base64UrlCoder.encodedLength(length), encoded.length);
+            assertArrayEquals(data, Base64UrlCoder.decode(encoded));
+            assertArrayEquals(data,
+                    Base64UrlCoder.decode(new String(encoded)));
+        }
+    }
+
+    @Test
+    public void testArraysRoundTripWithOffsets() {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            final byte[] data = dummyBytes(length);
+            final int encodedLength = Base64UrlCoder.encodedLength(length);
+            final byte[] in = new byte[OFFSET + length + OFFSET];
+            System.arraycopy(data, 0, in, OFFSET, length);
+
+            final char[] chars = new char[OFFSET + encodedLength + OFFSET];
+            assertEquals(encodedLength,
+                    Base64UrlCoder.encode(in, OFFSET, length, chars, OFFSET));
+            final String expected = new String(Base64UrlCoder.encode(data));
+            assertEquals(expected, new String(chars, OFFSET, encodedLength));
+            assertArrayEquals(data,
+                    Base64UrlCoder.decode(chars, OFFSET, encodedLength));
+
+            final byte[] ascii = new byte[OFFSET + encodedLength + OFFSET];
+            assertEquals(encodedLength,
+                    Base64UrlCoder.encode(in, OFFSET, length, ascii, OFFSET));
+            assertEquals(expected, new String(ascii, OFFSET, encodedLength));
+
+            final String padded = "====" + expected + "AAAA";
+            assertEquals(length,
+                    Base64UrlCoder.decodedLength(padded, 4, encodedLength));
+            final byte[] out = new byte[OFFSET + length + OFFSET];
+            assertEquals(length, Base64UrlCoder.decode(padded, 4,
+                    encodedLength, out, OFFSET));
+            assertArrayEquals(in, out);
+        }
+    }
+
+    @Test
+    public void testArrayBackedBuffersRoundTrip() {
+        testByteBuffersRoundTrip(false, false);
+    }
+
+    @Test
+    public void testDirectBuffersRoundTrip() {
+        testByteBuffersRoundTrip(true, true);
+        testByteBuffersRoundTrip(true, false);
+        testByteBuffersRoundTrip(false, true);
+    }
+
+    @Test
+    public void testDecodeOverflowLeavesBuffersUnchanged() {
+        testDecodeOverflow(false);
+        testDecodeOverflow(true);
+    }
+
+    @Test
+    public void testEncodeOverflowLeavesBuffersUnchanged() {
+        testEncodeOverflow(false);
+        testEncodeOverflow(true);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.models;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import biz.source_code.base64Coder.Base64UrlCoder;
+
+public class DeviceIdTest {
+
+    @Test
+    public void testIsValidDeviceIdString() {
+        assertTrue(DeviceId.isValidDeviceIdString("CTJ5BgAAAAAA"));
+        assertTrue(DeviceId.isValidDeviceIdString("ab-_"));
+        /* Empty, too long */
+        assertFalse(DeviceId.isValidDeviceIdString(""));
+        assertFalse(DeviceId.isValidDeviceIdString("CTJ5BgAAAAAA"
+            + "CTJ5BgAAAAAACTJ5BgAAAAAACTJ5BgAAAAAA" + "CTJ5"));
+        /* Not a whole number of quadruplets, padding, foreign characters */
+        assertFalse(DeviceId.isValidDeviceIdString("CTJ5BgAAAAA"));
+        assertFalse(DeviceId.isValidDeviceIdString("CTJ5BgAAAA=="));
+        assertFalse(DeviceId.isValidDeviceIdString("CTJ5BgAA+/AA"));
+        assertFalse(DeviceId.isValidDeviceIdString("CTJ5BgAAéAAA"));
+        assertFalse(DeviceId.isValidDeviceIdString("CTJ5BgAAİAAA"));
+    }
+
+    /**
+     * The strings accepted by {@link DeviceId#isValidDeviceIdString(String)}
+     * must be those that {@link Base64UrlCoder#decode(String)} accepts
+     */
+    @Test
+    public void testIsValidDeviceIdStringMatchesDecoder() {
+        final String alphabet = "Ab9-_=+";
+        final char[] chars = new char[4];
+        for (int n = 0; n < 7 * 7 * 7 * 7; n++) {
+            int remaining = n;
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet.charAt(remaining % alphabet.length());
+                remaining /= alphabet.length();
+            }
+            final String deviceId = new String(chars);
+            boolean decodable;
+            try {
+                Base64UrlCoder.decode(deviceId);
+                decodable = deviceId.indexOf('=') == -1;
+            }
+            catch (final IllegalArgumentException e) {
+                decodable = false;
+            }
+            if (decodable)
+                assertTrue(deviceId, DeviceId.isValidDeviceIdString(deviceId));
+            else
+                assertFalse(deviceId, DeviceId.isValidDeviceIdString(deviceId));
+        }
+    }
+}
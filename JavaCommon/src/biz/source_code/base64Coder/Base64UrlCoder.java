@@ -16,6 +16,9 @@
 
 package biz.source_code.base64Coder;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
 * A Base64 encoder/decoder.
 *
@@ -117,12 +120,75 @@ public static char[] encode (byte[] in, int iLen) {
 * @return      A character array containing the Base64 encoded data.
 */
 public static char[] encode (byte[] in, int iOff, int iLen) {
-   int oDataLen = (iLen*4+2)/3;       // output length without padding
-   int oLen = ((iLen+2)/3)*4;         // output length including padding
-   char[] out = new char[oLen];
+   char[] out = new char[encodedLength(iLen)];
+   encode(in, iOff, iLen, out, 0);
+   return out; }
+
+/**
+* Returns the length of the Base64 encoding of some data, including padding.
+* @param iLen  Number of bytes to be encoded.
+* @return      The number of characters <code>encode</code> will produce.
+*/
+public static int encodedLength (int iLen) {
+   return ((iLen+2)/3)*4; }
+
+/**
+* Encodes a byte array into Base64 format, into a caller-supplied character array.
+* No blanks or line breaks are inserted in the output.
+* @param in    An array containing the data bytes to be encoded.
+* @param iOff  Offset of the first byte in <code>in</code> to be processed.
+* @param iLen  Number of bytes to process in <code>in</code>, starting at <code>iOff</code>.
+* @param out   The array receiving the encoded data, it must have room for <code>encodedLength(iLen)</code> characters.
+* @param oOff  Offset of the first character to be written in <code>out</code>.
+* @return      The number of characters written.
+*/
+public static int encode (byte[] in, int iOff, int iLen, char[] out, int oOff) {
+   return encode(in, iOff, iLen, out, null, oOff); }
+
+/**
+* Encodes a byte array into Base64 format, as ASCII bytes into a caller-supplied byte array.
+* No blanks or line breaks are inserted in the output.
+* @param in    An array containing the data bytes to be encoded.
+* @param iOff  Offset of the first byte in <code>in</code> to be processed.
+* @param iLen  Number of bytes to process in <code>in</code>, starting at <code>iOff</code>.
+* @param out   The array receiving the encoded data, it must have room for <code>encodedLength(iLen)</code> bytes.
+* @param oOff  Offset of the first byte to be written in <code>out</code>.
+* @return      The number of bytes written.
+*/
+public static int encode (byte[] in, int iOff, int iLen, byte[] out, int oOff) {
+   return encode(in, iOff, iLen, null, out, oOff); }
+
+/**
+* Encodes the remaining bytes of a buffer into Base64 format, as ASCII bytes.
+* No blanks or line breaks are inserted in the output.
+* The position of <code>in</code> is moved to its limit, the one of <code>out</code> after the encoded data.
+* Buffers backed by arrays are encoded without any copy.
+* @param in    The buffer containing the data bytes to be encoded.
+* @param out   The buffer receiving the encoded data.
+* @throws      BufferOverflowException If <code>out</code> cannot hold the encoded data, in which case neither buffer is modified.
+*/
+public static void encode (ByteBuffer in, ByteBuffer out) {
+   int iLen = in.remaining();
+   int oLen = encodedLength(iLen);
+   if (out.remaining() < oLen) throw new BufferOverflowException();
+   byte[] iArr = arrayOf(in);
+   int iOff = in.hasArray() ? in.arrayOffset()+in.position() : 0;
+   if (out.hasArray()) {
+      encode(iArr, iOff, iLen, null, out.array(), out.arrayOffset()+out.position());
+      out.position(out.position()+oLen); }
+   else {
+      byte[] oArr = new byte[oLen];
+      encode(iArr, iOff, iLen, null, oArr, 0);
+      out.put(oArr); }
+   in.position(in.limit()); }
+
+// Encodes into whichever of cOut and bOut is not null, the core loop of all the encode methods.
+private static int encode (byte[] in, int iOff, int iLen, char[] cOut, byte[] bOut, int oOff) {
+   int oLen = encodedLength(iLen);
+   int oDataEnd = oOff + (iLen*4+2)/3;    // end of the output without padding
    int ip = iOff;
    int iEnd = iOff + iLen;
-   int op = 0;
+   int op = oOff;
    while (ip < iEnd) {
       int i0 = in[ip++] & 0xff;
       int i1 = ip < iEnd ? in[ip++] & 0xff : 0;
@@ -131,11 +197,16 @@ public static char[] encode (byte[] in, int iOff, int iLen) {
       int o1 = ((i0 &   3) << 4) | (i1 >>> 4);
       int o2 = ((i1 & 0xf) << 2) | (i2 >>> 6);
       int o3 = i2 & 0x3F;
-      out[op++] = map1[o0];
-      out[op++] = map1[o1];
-      out[op] = op < oDataLen ? map1[o2] : '='; op++;
-      out[op] = op < oDataLen ? map1[o3] : '='; op++; }
-   return out; }
+      put(cOut, bOut, op++, map1[o0]);
+      put(cOut, bOut, op++, map1[o1]);
+      put(cOut, bOut, op, op < oDataEnd ? map1[o2] : '='); op++;
+      put(cOut, bOut, op, op < oDataEnd ? map1[o3] : '='); op++; }
+   return oLen; }
+
+// Writes a character into whichever of cOut and bOut is not null.
+private static void put (char[] cOut, byte[] bOut, int i, char c) {
+   if (cOut != null) cOut[i] = c;
+   else bOut[i] = (byte)c; }
 
 /**
 * Decodes a string from Base64 format.
@@ -172,7 +243,9 @@ public static byte[] decodeLines (String s) {
 * @throws   IllegalArgumentException If the input is not valid Base64 encoded data.
 */
 public static byte[] decode (String s) {
-   return decode(s.toCharArray()); }
+   byte[] out = new byte[decodedLength(s, 0, s.length())];
+   decode(s, 0, s.length(), out, 0);
+   return out; }
 
 /**
 * Decodes a byte array from Base64 format.
@@ -194,18 +267,75 @@ public static byte[] decode (char[] in) {
 * @throws      IllegalArgumentException If the input is not valid Base64 encoded data.
 */
 public static byte[] decode (char[] in, int iOff, int iLen) {
-   if (iLen%4 != 0) throw new IllegalArgumentException ("Length of Base64 encoded input string is not a multiple of 4.");
-   while (iLen > 0 && in[iOff+iLen-1] == '=') iLen--;
+   iLen = unpaddedLength(null, in, null, iOff, iLen);
+   byte[] out = new byte[(iLen*3) / 4];
+   decode(null, in, null, iOff, iLen, out, 0);
+   return out; }
+
+/**
+* Returns the length of the data encoded in Base64 format.
+* @param in    A character sequence containing the Base64 encoded data.
+* @param iOff  Offset of the first character in <code>in</code> to be processed.
+* @param iLen  Number of characters to process in <code>in</code>, starting at <code>iOff</code>.
+* @return      The number of bytes <code>decode</code> will produce.
+* @throws      IllegalArgumentException If the length of the input is not a multiple of 4.
+*/
+public static int decodedLength (CharSequence in, int iOff, int iLen) {
+   return (unpaddedLength(in, null, null, iOff, iLen)*3) / 4; }
+
+/**
+* Decodes data from Base64 format into a caller-supplied byte array.
+* Reading straight from the sequence, this does not copy a <code>String</code> into a temporary character array.
+* No blanks or line breaks are allowed within the Base64 encoded input data.
+* @param in    A character sequence containing the Base64 encoded data.
+* @param iOff  Offset of the first character in <code>in</code> to be processed.
+* @param iLen  Number of characters to process in <code>in</code>, starting at <code>iOff</code>.
+* @param out   The array receiving the decoded data, it must have room for <code>decodedLength(in, iOff, iLen)</code> bytes.
+* @param oOff  Offset of the first byte to be written in <code>out</code>.
+* @return      The number of bytes written.
+* @throws      IllegalArgumentException If the input is not valid Base64 encoded data.
+*/
+public static int decode (CharSequence in, int iOff, int iLen, byte[] out, int oOff) {
+   iLen = unpaddedLength(in, null, null, iOff, iLen);
+   decode(in, null, null, iOff, iLen, out, oOff);
+   return (iLen*3) / 4; }
+
+/**
+* Decodes the remaining bytes of a buffer, holding ASCII Base64 data.
+* No blanks or line breaks are allowed within the Base64 encoded input data.
+* The position of <code>in</code> is moved to its limit, the one of <code>out</code> after the decoded data.
+* Buffers backed by arrays are decoded without any copy.
+* @param in    The buffer containing the Base64 encoded data.
+* @param out   The buffer receiving the decoded data.
+* @throws      IllegalArgumentException If the input is not valid Base64 encoded data.
+* @throws      BufferOverflowException If <code>out</code> cannot hold the decoded data, in which case neither buffer is modified.
+*/
+public static void decode (ByteBuffer in, ByteBuffer out) {
+   byte[] iArr = arrayOf(in);
+   int iOff = in.hasArray() ? in.arrayOffset()+in.position() : 0;
+   int iLen = unpaddedLength(null, null, iArr, iOff, in.remaining());
    int oLen = (iLen*3) / 4;
-   byte[] out = new byte[oLen];
+   if (out.remaining() < oLen) throw new BufferOverflowException();
+   if (out.hasArray()) {
+      decode(null, null, iArr, iOff, iLen, out.array(), out.arrayOffset()+out.position());
+      out.position(out.position()+oLen); }
+   else {
+      byte[] oArr = new byte[oLen];
+      decode(null, null, iArr, iOff, iLen, oArr, 0);
+      out.put(oArr); }
+   in.position(in.limit()); }
+
+// Decodes unpadded data read from whichever of cs, ca and ba is not null, the core loop of all the decode methods.
+private static void decode (CharSequence cs, char[] ca, byte[] ba, int iOff, int iLen, byte[] out, int oOff) {
+   int oEnd = oOff + (iLen*3) / 4;
    int ip = iOff;
    int iEnd = iOff + iLen;
-   int op = 0;
+   int op = oOff;
    while (ip < iEnd) {
-      int i0 = in[ip++];
-      int i1 = in[ip++];
-      int i2 = ip < iEnd ? in[ip++] : 'A';
-      int i3 = ip < iEnd ? in[ip++] : 'A';
+      int i0 = charAt(cs, ca, ba, ip++);
+      int i1 = charAt(cs, ca, ba, ip++);
+      int i2 = ip < iEnd ? charAt(cs, ca, ba, ip++) : 'A';
+      int i3 = ip < iEnd ? charAt(cs, ca, ba, ip++) : 'A';
       if (i0 > 127 || i1 > 127 || i2 > 127 || i3 > 127)
          throw new IllegalArgumentException ("Illegal character in Base64 encoded data.");
       int b0 = map2[i0];
@@ -218,9 +348,27 @@ public static byte[] decode (char[] in, int iOff, int iLen) {
       int o1 = ((b1 & 0xf)<<4) | (b2>>>2);
       int o2 = ((b2 &   3)<<6) |  b3;
       out[op++] = (byte)o0;
-      if (op<oLen) out[op++] = (byte)o1;
-      if (op<oLen) out[op++] = (byte)o2; }
-   return out; }
+      if (op<oEnd) out[op++] = (byte)o1;
+      if (op<oEnd) out[op++] = (byte)o2; } }
+
+// Reads a character from whichever of cs, ca and ba is not null, the bytes being ASCII.
+private static int charAt (CharSequence cs, char[] ca, byte[] ba, int i) {
+   if (ca != null) return ca[i];
+   if (ba != null) return ba[i] & 0xff;
+   return cs.charAt(i); }
+
+// Returns the array backing a buffer, or a copy of its remaining bytes if it has none.
+private static byte[] arrayOf (ByteBuffer buffer) {
+   if (buffer.hasArray()) return buffer.array();
+   byte[] copy = new byte[buffer.remaining()];
+   buffer.duplicate().get(copy);
+   return copy; }
+
+// Checks the length of Base64 encoded data read as per charAt, and returns it without the padding.
+private static int unpaddedLength (CharSequence cs, char[] ca, byte[] ba, int iOff, int iLen) {
+   if (iLen%4 != 0) throw new IllegalArgumentException ("Length of Base64 encoded input string is not a multiple of 4.");
+   while (iLen > 0 && charAt(cs, ca, ba, iOff+iLen-1) == '=') iLen--;
+   return iLen; }
 
 // Dummy constructor.
 private Base64UrlCoder() {}
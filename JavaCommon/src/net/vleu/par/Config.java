@@ -25,10 +25,19 @@ public class Config {
     public static final String SERVER_BASE_RPC_URL = SERVER_BASE_URL + "/api/0";
     public static final String SERVER_RPC_JSON_SUFFIX = "json";
     public static final String SERVER_RPC_PROTOBUFF_SUFFIX = "pb";
+    public static final String SERVER_RPC_PROTOBUFF_STREAM_SUFFIX = "pbs";
     public static final String SERVER_RPC_URL_JSON = SERVER_BASE_RPC_URL + "/"
         + SERVER_RPC_JSON_SUFFIX;
     public static final String SERVER_RPC_URL_PROTOBUFF = SERVER_BASE_RPC_URL
         + "/" + SERVER_RPC_PROTOBUFF_SUFFIX;
+    public static final String SERVER_RPC_URL_PROTOBUFF_STREAM =
+        SERVER_BASE_RPC_URL + "/" + SERVER_RPC_PROTOBUFF_STREAM_SUFFIX;
+    /**
+     * Requests made only of GetDeviceDirectives sent there are held by the
+     * server until directives are queued, or for at most about 15 seconds
+     */
+    public static final String SERVER_RPC_URL_LONG_POLL_PROTOBUFF =
+        SERVER_BASE_RPC_URL + "/poll/" + SERVER_RPC_PROTOBUFF_SUFFIX;
     /** If true, the JSON will be indexed by fields numbers instead of fields names */
     public static final boolean SERVER_RPC_JSON_NUMERIC = true;
 
@@ -16,9 +16,6 @@
  */
 package net.vleu.par.models;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import net.vleu.par.WrappedString;
 import net.vleu.par.protocolbuffer.Devices.DeviceIdBuilderData;
 import biz.source_code.base64Coder.Base64UrlCoder;
@@ -26,41 +23,51 @@ import biz.source_code.base64Coder.Base64UrlCoder;
 public final class DeviceId extends WrappedString implements
         Comparable<DeviceId> {
     /*
-     * Currently, the fact that the deviceId are Base64URL-encoded strings matching
-     * this regexp is important for the Gateway, because TaskNames created by the
-     * DeviceWaker must have this property and they include the DeviceId.
+     * Currently, the fact that the deviceId are Base64URL-encoded strings made
+     * of [a-zA-Z0-9\-_] only is important for the Gateway, because TaskNames
+     * created by the DeviceWaker must have this property and they include the
+     * DeviceId.
      */
-    private final static Pattern BASE64URL_WHITELIST = Pattern
-            .compile("[a-zA-Z0-9\\-_]*");
-    private static final int MAX_DEVICE_ID_LEN = 48;
+    /** True for the characters of the Base64 URL alphabet, indexed by char */
+    private static final boolean[] BASE64URL_WHITELIST = new boolean[128];
+    static final int MAX_DEVICE_ID_LEN = 48;
+
+    static {
+        for (char c = 'A'; c <= 'Z'; c++)
+            BASE64URL_WHITELIST[c] = true;
+        for (char c = 'a'; c <= 'z'; c++)
+            BASE64URL_WHITELIST[c] = true;
+        for (char c = '0'; c <= '9'; c++)
+            BASE64URL_WHITELIST[c] = true;
+        BASE64URL_WHITELIST['-'] = true;
+        BASE64URL_WHITELIST['_'] = true;
+    }
 
     /**
      * Tells if the String is suitable for being a DeviceId. It must be: - not
-     * too short/too long - a Base64 string
+     * too short/too long - a Base64 string that
+     * {@link Base64UrlCoder#decode(String)} accepts
+     * 
+     * This is done in a single pass over the characters, without allocating
+     * anything, as it runs for every DeviceId the Gateway receives.
      * 
      * @param deviceId
      *            Will be checked
      * @return true if valid, else false
      */
     public static boolean isValidDeviceIdString(final String deviceId) {
-        /** Protects the decoding from messages that might make it crash */
-        if (deviceId.length() < 1)
+        final int length = deviceId.length();
+        if (length < 1 || length > MAX_DEVICE_ID_LEN)
             return false;
-        else if (deviceId.length() > MAX_DEVICE_ID_LEN)
+        /* Without padding, the decoder only accepts whole quadruplets */
+        if (length % 4 != 0)
             return false;
-        else {
-            final Matcher matcher = BASE64URL_WHITELIST.matcher(deviceId);
-            if (!matcher.matches())
+        for (int n = 0; n < length; n++) {
+            final char c = deviceId.charAt(n);
+            if (c >= BASE64URL_WHITELIST.length || !BASE64URL_WHITELIST[c])
                 return false;
         }
-        /** Tries to decode the DeviceId, as a last check */
-        try {
-            Base64UrlCoder.decode(deviceId);
-            return true;
-        }
-        catch (final Exception _) {
-            return false;
-        }
+        return true;
     }
 
     /**
@@ -16,10 +16,13 @@
  */
 package net.vleu.par.models;
 
+import java.io.IOException;
+
 import net.vleu.par.protocolbuffer.Devices.DeviceIdBuilderData;
 import biz.source_code.base64Coder.Base64UrlCoder;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 
 public final class DeviceIdBuilder {
     @SuppressWarnings("serial")
@@ -30,6 +33,48 @@ public final class DeviceIdBuilder {
         }
     }
 
+    /**
+     * Per-thread buffer for the serialized protocol buffers, large enough for
+     * any valid {@link DeviceId}
+     */
+    private static final ThreadLocal<byte[]> BYTES_BUFFER =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[DeviceId.MAX_DEVICE_ID_LEN * 3 / 4];
+                }
+            };
+
+    /**
+     * Per-thread buffer for the Base64 encoding, large enough for any valid
+     * {@link DeviceId}
+     */
+    private static final ThreadLocal<char[]> CHARS_BUFFER =
+            new ThreadLocal<char[]>() {
+                @Override
+                protected char[] initialValue() {
+                    return new char[DeviceId.MAX_DEVICE_ID_LEN];
+                }
+            };
+
+    /**
+     * @return The per-thread buffer if it has room for length bytes, else a
+     *         new array
+     */
+    private static byte[] bytesBuffer(final int length) {
+        final byte[] res = BYTES_BUFFER.get();
+        return length <= res.length ? res : new byte[length];
+    }
+
+    /**
+     * @return The per-thread buffer if it has room for length chars, else a
+     *         new array
+     */
+    private static char[] charsBuffer(final int length) {
+        final char[] res = CHARS_BUFFER.get();
+        return length <= res.length ? res : new char[length];
+    }
+
     /**
      * Decodes a DeviceId into a protocol buffer
      * 
@@ -40,16 +85,19 @@ public final class DeviceIdBuilder {
      */
     public static DeviceIdBuilderData deviceIdToProto(final DeviceId deviceId)
             throws InvalidDeviceIdSerialisation {
-        String deviceIdStr = deviceId.value;
-        final byte[] bytes = Base64UrlCoder.decode(deviceIdStr);
-        DeviceIdBuilderData proto;
+        final String deviceIdStr = deviceId.value;
+        final int length = deviceIdStr.length();
+        final int bytesCount =
+                Base64UrlCoder.decodedLength(deviceIdStr, 0, length);
+        final byte[] bytes = bytesBuffer(bytesCount);
+        Base64UrlCoder.decode(deviceIdStr, 0, length, bytes, 0);
         try {
-            proto = DeviceIdBuilderData.parseFrom(bytes);
+            return DeviceIdBuilderData.parseFrom(CodedInputStream.newInstance(
+                    bytes, 0, bytesCount));
         }
-        catch (final InvalidProtocolBufferException e) {
+        catch (final IOException e) {
             throw new InvalidDeviceIdSerialisation(deviceIdStr, e);
         }
-        return proto;
     }
 
     /**
@@ -61,9 +109,20 @@ public final class DeviceIdBuilder {
      */
     public static DeviceId fromProtocolBufferToDeviceId(
             final DeviceIdBuilderData proto) {
-        final byte[] bytes = proto.toByteArray();
-        final char[] base64urlChars = Base64UrlCoder.encode(bytes);
-        return new DeviceId(new String(base64urlChars));
+        final int bytesCount = proto.getSerializedSize();
+        final byte[] bytes = bytesBuffer(bytesCount);
+        try {
+            proto.writeTo(CodedOutputStream.newInstance(bytes, 0, bytesCount));
+        }
+        catch (final IOException e) {
+            throw new RuntimeException(
+                    "Serializing to a byte array threw an IOException", e);
+        }
+        final char[] chars =
+                charsBuffer(Base64UrlCoder.encodedLength(bytesCount));
+        final int charsCount =
+                Base64UrlCoder.encode(bytes, 0, bytesCount, chars, 0);
+        return new DeviceId(new String(chars, 0, charsCount));
     }
 
     /**
@@ -16,6 +16,7 @@
  */
 package net.vleu.par.models;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -23,6 +24,7 @@ import net.vleu.par.protocolbuffer.Commands.DirectiveData;
 import net.vleu.par.protocolbuffer.Commands.HapticNotificationData;
 import net.vleu.par.protocolbuffer.Commands.StatusBarNotificationData;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 public final class Directive {
@@ -112,7 +114,9 @@ public final class Directive {
     /**
      * Parses a byte array containing a {@link DirectiveData} protocol buffer,
      * and returns a {@link Directive} representing those parsed data. The
-     * protocol buffer is assumed to be valid and won't be checked.
+     * protocol buffer is assumed to be valid and won't be checked. The array
+     * is kept as the serialized form of the directive, so it must not be
+     * modified afterwards.
      * 
      * @param data
      *            The protocol buffer as a byte array, assumed to be valid.
@@ -124,7 +128,7 @@ public final class Directive {
             throws InvalidDirectiveSerialisation {
         final Directive res;
         try {
-            res = new Directive(DirectiveData.parseFrom(data));
+            res = new Directive(DirectiveData.parseFrom(data), data);
         }
         catch (final InvalidProtocolBufferException e) {
             throw new InvalidDirectiveSerialisation(
@@ -133,6 +137,35 @@ public final class Directive {
         return res;
     }
 
+    /**
+     * Wraps a byte array containing a {@link DirectiveData} protocol buffer
+     * that was valid when it was serialized, for example because it was
+     * checked before being stored. Only its framing is checked: it is not
+     * parsed until {@link #asProtocolBuffer()} is called, so a directive that
+     * is only passed along is never decoded. The array is kept as the
+     * serialized form of the directive, so it must not be modified afterwards.
+     * 
+     * @param data
+     *            The protocol buffer as a byte array
+     * @return A directive holding the data argument
+     * @throws InvalidDirectiveSerialisation
+     *             If data is not made of well-formed fields
+     */
+    public static Directive fromValidatedProtocolBuffer(final byte[] data)
+            throws InvalidDirectiveSerialisation {
+        final CodedInputStream stream = CodedInputStream.newInstance(data);
+        try {
+            int tag;
+            while ((tag = stream.readTag()) != 0)
+                stream.skipField(tag);
+        }
+        catch (final IOException e) {
+            throw new InvalidDirectiveSerialisation(
+                    "Protocol Buffer cannot be skimmed", e);
+        }
+        return new Directive(null, data);
+    }
+
     /**
      * Checks that the data stored in the directives are as described in the
      * .proto file
@@ -157,39 +190,105 @@ public final class Directive {
         }
     }
 
-    private final DirectiveData proto;
+    /**
+     * Caches {@link #hashCode()}, 0 until computed. Like
+     * {@link String#hashCode()}, it can be computed concurrently by several
+     * threads as they all get the same result.
+     */
+    private int hash;
+
+    /**
+     * The parsed {@link #protoBytes}, null until needed. At least one of
+     * them is not null.
+     */
+    private volatile DirectiveData proto;
+
+    /**
+     * The serialized {@link #proto}, null until needed. Volatile so that the
+     * content of the array is visible to the threads that see it.
+     */
+    private volatile byte[] protoBytes;
 
     public Directive(final DirectiveData proto) {
+        this(proto, null);
+    }
+
+    /**
+     * @param proto
+     *            The directive, or null if protoBytes is not
+     * @param protoBytes
+     *            The serialized proto if it is at hand, else null
+     */
+    private Directive(final DirectiveData proto, final byte[] protoBytes) {
         this.proto = proto;
+        this.protoBytes = protoBytes;
     }
 
+    /**
+     * Parses the directive on the first call only, if it was built by
+     * {@link #fromValidatedProtocolBuffer(byte[])}
+     * 
+     * @return The directive
+     * @throws IllegalStateException
+     *             If the bytes it was built from turn out to be invalid
+     */
     public DirectiveData asProtocolBuffer() {
-        return this.proto;
+        DirectiveData res = this.proto;
+        if (res == null) {
+            try {
+                res = DirectiveData.parseFrom(this.protoBytes);
+            }
+            catch (final InvalidProtocolBufferException e) {
+                throw new IllegalStateException(
+                        "A validated Directive cannot be parsed", e);
+            }
+            this.proto = res;
+        }
+        return res;
     }
 
+    /**
+     * Serializes the directive on the first call only
+     * 
+     * @return The serialized directive, shared by all callers, so it must not
+     *         be modified
+     */
     public byte[] asProtocolBufferBytes() {
-        return this.proto.toByteArray();
+        byte[] res = this.protoBytes;
+        if (res == null) {
+            res = this.proto.toByteArray();
+            this.protoBytes = res;
+        }
+        return res;
     }
 
     /**
-     * <b>This method is slow and meant to be used for tests</b> {@inheritDoc}
+     * Compares the serialized directives, {@inheritDoc}
      */
     @Override
     public boolean equals(final Object other) {
+        if (other == this)
+            return true;
         if (other != null && other instanceof Directive) {
             final Directive otherDirective = (Directive) other;
-            return Arrays.equals(asProtocolBufferBytes(),
-                    otherDirective.asProtocolBufferBytes());
+            return hashCode() == otherDirective.hashCode()
+                && Arrays.equals(asProtocolBufferBytes(),
+                        otherDirective.asProtocolBufferBytes());
         }
         return false;
     };
 
     /**
-     * <b>This method is slow</b> {@inheritDoc}
+     * Hashes the serialized directive on the first call only {@inheritDoc}
      */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(asProtocolBufferBytes());
+        int res = this.hash;
+        if (res == 0) {
+            res = Arrays.hashCode(asProtocolBufferBytes());
+            this.hash = res;
+        }
+        return res;
     }
 
     @Override
@@ -17,6 +17,7 @@
 package net.vleu.par.models;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
@@ -52,6 +53,9 @@ public final class GatewayRequest {
         private boolean allValid = true;
         /** Strings describing the errors will be added to it */
         private final ArrayList<String> errors;
+        /** The DeviceIds checked so far, by their string */
+        private final HashMap<String, DeviceId> validDeviceIds =
+                new HashMap<String, DeviceId>();
 
         /**
          * @param errors
@@ -62,7 +66,11 @@ public final class GatewayRequest {
         }
 
         private void checkDeviceId(final String deviceIdStr) {
-            if (!DeviceId.isValidDeviceIdString(deviceIdStr)) {
+            if (this.validDeviceIds.containsKey(deviceIdStr))
+                return;
+            if (DeviceId.isValidDeviceIdString(deviceIdStr))
+                this.validDeviceIds.put(deviceIdStr, new DeviceId(deviceIdStr));
+            else {
                 this.errors.add("Invalid DeviceId");
                 this.allValid = false;
             }
@@ -76,6 +84,11 @@ public final class GatewayRequest {
         @Override
         public void visit(final GetDeviceDirectivesData data) {
             checkDeviceId(data.getDeviceId());
+            if (data.getAcknowledgementsCount() > MAX_ACKNOWLEDGEMENTS) {
+                this.errors.add("More than " + MAX_ACKNOWLEDGEMENTS
+                    + " acknowledgements");
+                this.allValid = false;
+            }
         }
 
         @Override
@@ -105,6 +118,12 @@ public final class GatewayRequest {
         public void visit(RegisterDeviceData data);
     }
 
+    /**
+     * How many acknowledgements a {@link GetDeviceDirectivesData} can carry at
+     * most, as each of them costs a query to the Gateway
+     */
+    public static final int MAX_ACKNOWLEDGEMENTS = 64;
+
     public static void accept(final GatewayRequestData reqData,
             final ThrowingVisitor visitor) throws Exception {
         for (final QueueDirectiveData proto : reqData.getQueueDirectiveList())
@@ -155,14 +174,55 @@ public final class GatewayRequest {
         }
     }
 
+    /**
+     * Checks the request like
+     * {@link #isValid(GatewayRequestData, ArrayList)}, then wraps it along
+     * with the {@link DeviceId}s built while checking it, see
+     * {@link #getValidDeviceId(String)}
+     * 
+     * @param reqData
+     *            The request to check. Can be null (in which case it's
+     *            invalid).
+     * @param errors
+     *            Strings describing the errors will be added to it
+     * @return null if the request is invalid, else the checked request
+     */
+    public static GatewayRequest validate(final GatewayRequestData reqData,
+            final ArrayList<String> errors) {
+        if (reqData != null) {
+            final Validator validator = new Validator(errors);
+            accept(reqData, validator);
+            if (validator.allValid)
+                return new GatewayRequest(reqData, validator.validDeviceIds);
+            else
+                return null;
+        }
+        else {
+            errors.add("Not a ProtocolBuffer !");
+            return null;
+        }
+    }
+
     private final GatewayRequestData proto;
 
+    /**
+     * The DeviceIds found in {@link #proto}, by their string, if it went
+     * through {@link #validate(GatewayRequestData, ArrayList)}. Else empty.
+     */
+    private final HashMap<String, DeviceId> validDeviceIds;
+
     public GatewayRequest() {
-        this.proto = GatewayRequestData.getDefaultInstance();
+        this(GatewayRequestData.getDefaultInstance());
     }
 
     public GatewayRequest(final GatewayRequestData proto) {
+        this(proto, new HashMap<String, DeviceId>());
+    }
+
+    private GatewayRequest(final GatewayRequestData proto,
+            final HashMap<String, DeviceId> validDeviceIds) {
         this.proto = proto;
+        this.validDeviceIds = validDeviceIds;
     }
 
     public void accept(final ThrowingVisitor visitor) throws Exception {
@@ -177,6 +237,17 @@ public final class GatewayRequest {
         return this.proto.getGetDeviceDirectivesList();
     }
 
+    /**
+     * @param deviceIdStr
+     *            A DeviceId found in this request
+     * @return The {@link DeviceId} built when the request was checked by
+     *         {@link #validate(GatewayRequestData, ArrayList)}, or null if
+     *         this request was not built that way
+     */
+    public DeviceId getValidDeviceId(final String deviceIdStr) {
+        return this.validDeviceIds.get(deviceIdStr);
+    }
+
     public List<QueueDirectiveData> getQueueDirectivesData() {
         return this.proto.getQueueDirectiveList();
     }
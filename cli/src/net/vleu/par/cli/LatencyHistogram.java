@@ -0,0 +1,134 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.cli;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Records latencies in microseconds, with a relative error of at most 1/16,
+ * and tells their percentiles. Recording never allocates nor locks, so that
+ * the threads of a load test do not slow each other down.
+ */
+@ThreadSafe
+final class LatencyHistogram {
+    /** Each power of two is split into that many buckets */
+    private static final int SUB_BUCKETS = 16;
+
+    /** log2({@link #SUB_BUCKETS}) */
+    private static final int SUB_BUCKETS_BITS = 4;
+
+    /** Enough buckets for any positive long */
+    private static final int BUCKETS_COUNT = (64 - SUB_BUCKETS_BITS + 1)
+        * SUB_BUCKETS;
+
+    /**
+     * @param micros
+     *            A latency, positive or null
+     * @return The index of the bucket counting it
+     */
+    private static int bucketFor(final long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int shift = exponent - SUB_BUCKETS_BITS;
+        final int mantissa = (int) (micros >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * @param bucket
+     *            As returned by {@link #bucketFor(long)}
+     * @return The largest latency counted by this bucket
+     */
+    private static long highestInBucket(final int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS_COUNT);
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    /**
+     * @return How many latencies were recorded
+     */
+    public long getCount() {
+        return this.totalCount.get();
+    }
+
+    /**
+     * @return The largest latency recorded, in microseconds
+     */
+    public long getMaxMicros() {
+        return this.maxMicros.get();
+    }
+
+    /**
+     * @return The mean of the latencies recorded, in microseconds, or 0 if
+     *         there are none
+     */
+    public double getMeanMicros() {
+        final long count = this.totalCount.get();
+        return count == 0 ? 0 : (double) this.totalMicros.get() / count;
+    }
+
+    /**
+     * @param percentile
+     *            Between 0 and 100
+     * @return A latency in microseconds, such that at least that percentage
+     *         of the recorded latencies are lower or equal, or 0 if none were
+     *         recorded
+     */
+    public long getPercentileMicros(final double percentile) {
+        final long count = this.totalCount.get();
+        if (count == 0)
+            return 0;
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS_COUNT; bucket++) {
+            seen += this.counts.get(bucket);
+            if (seen >= rank && seen > 0)
+                return Math.min(highestInBucket(bucket), getMaxMicros());
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * @param micros
+     *            The latency to record, in microseconds. Negative values are
+     *            recorded as 0.
+     */
+    public void record(final long micros) {
+        final long positive = Math.max(0, micros);
+        this.counts.incrementAndGet(bucketFor(positive));
+        this.totalCount.incrementAndGet();
+        this.totalMicros.addAndGet(positive);
+        long max = this.maxMicros.get();
+        while (positive > max && !this.maxMicros.compareAndSet(max, positive))
+            max = this.maxMicros.get();
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright ©2011 Brice Arnould
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.vleu.par.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import net.vleu.par.Config;
+import net.vleu.par.cli.Options.LoadTestCommand;
+import net.vleu.par.models.DeviceId;
+import net.vleu.par.models.DeviceIdBuilder;
+import net.vleu.par.protocolbuffer.Commands.DirectiveData;
+import net.vleu.par.protocolbuffer.Commands.DirectiveIdData;
+import net.vleu.par.protocolbuffer.Commands.StatusBarNotificationData;
+import net.vleu.par.protocolbuffer.Devices.DeviceIdBuilderData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.GetDeviceDirectivesData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.QueueDirectiveData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayRequestData.RegisterDeviceData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData;
+import net.vleu.par.protocolbuffer.GatewayCommands.GatewayResponseData.DirectivesCursorData;
+
+/**
+ * Simulates devices and directive producers against a Gateway running in
+ * the development server, and reports the throughput, the latencies and the
+ * errors of each kind of request.
+ * 
+ * The devices are spread over several users, logged in through the fake
+ * login page of the development server. Each device is first registered,
+ * then the pollers fetch the directives of free devices, acknowledging
+ * those they already got, and sometimes register the device again, as a
+ * device getting a new C2DM registration id would. Meanwhile, each producer
+ * queues directives for random devices, like an instance of the web UI.
+ */
+@ThreadSafe
+final class LoadTest {
+    /** The kinds of requests sent by the simulation */
+    static enum Operation {
+        GET_DIRECTIVES, QUEUE_DIRECTIVE, REGISTER_DEVICE
+    }
+
+    /** The outcomes of the requests of a given {@link Operation} */
+    @ThreadSafe
+    static final class OperationStats {
+        /** Requests that failed at the HTTP level, 503 excluded */
+        final AtomicLong httpErrors = new AtomicLong();
+        /** Requests that failed before getting an HTTP status */
+        final AtomicLong ioErrors = new AtomicLong();
+        /** Latencies of all the requests, failed ones included */
+        final LatencyHistogram latencies = new LatencyHistogram();
+        /**
+         * 503 caused by the datastore contention, as per the body of the
+         * error
+         */
+        final AtomicLong tooManyConcurrentAccesses = new AtomicLong();
+        /** Requests rejected with a 503, TooManyConcurrentAccesses included */
+        final AtomicLong unavailable = new AtomicLong();
+
+        /**
+         * Prints a line describing the requests of this kind
+         * 
+         * @param name
+         *            Name of the operation
+         * @param seconds
+         *            Duration of the measure
+         * @param out
+         *            Where to print
+         */
+        void report(final String name, final double seconds,
+                final PrintStream out) {
+            final long count = this.latencies.getCount();
+            out.printf("%-16s %8d req %9.1f req/s  p50 %7.1f ms  "
+                + "p90 %7.1f ms  p99 %7.1f ms  max %7.1f ms%n", name, count,
+                    count / seconds, millis(this.latencies
+                            .getPercentileMicros(50)), millis(this.latencies
+                            .getPercentileMicros(90)), millis(this.latencies
+                            .getPercentileMicros(99)), millis(this.latencies
+                            .getMaxMicros()));
+            out.printf("%-16s %8.2f%% 503  %8.2f%% TooManyConcurrentAccesses"
+                + "  %8.2f%% other HTTP errors  %8.2f%% I/O errors%n", "",
+                    percent(this.unavailable.get(), count),
+                    percent(this.tooManyConcurrentAccesses.get(), count),
+                    percent(this.httpErrors.get(), count),
+                    percent(this.ioErrors.get(), count));
+        }
+    }
+
+    /** A device, as seen by the simulation */
+    @ThreadSafe
+    private static final class SimulatedDevice {
+        /** The cursor sent back with the last page, if any */
+        @GuardedBy("this")
+        String cursor;
+        final DeviceId id;
+        /** Maps creator ids to the latest timestamp received */
+        @GuardedBy("this")
+        final HashMap<Long, Integer> latestTimestamps =
+                new HashMap<Long, Integer>();
+        /** The session of the owner of the device */
+        final String sessionCookie;
+
+        SimulatedDevice(final DeviceId id, final String sessionCookie) {
+            this.id = id;
+            this.sessionCookie = sessionCookie;
+        }
+    }
+
+    /**
+     * Sessions of the development server are in this cookie, as per
+     * com.google.appengine.api.users.dev.LoginCookieUtils
+     */
+    private static final String DEV_LOGIN_COOKIE = "dev_appserver_login";
+
+    /** How long to wait for each poller and producer, once told to stop */
+    private static final long JOIN_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * How long a poller waits for a free device before checking whether it
+     * must stop
+     */
+    private static final long POLL_WAIT_MILLIS = 100;
+
+    private static double millis(final long micros) {
+        return micros / 1000.0;
+    }
+
+    private static double percent(final long part, final long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+
+    /**
+     * Reads a stream until its end
+     * 
+     * @return The bytes read
+     */
+    private static byte[] readFully(final InputStream stream)
+            throws IOException {
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        try {
+            int read;
+            while ((read = stream.read(buffer)) != -1)
+                res.write(buffer, 0, read);
+        }
+        finally {
+            stream.close();
+        }
+        return res.toByteArray();
+    }
+
+    /**
+     * Maps each operation to its statistics, for the requests sent after the
+     * initial registrations
+     */
+    private final EnumMap<Operation, OperationStats> allStats =
+            new EnumMap<Operation, OperationStats>(Operation.class);
+
+    private final URL apiUrl;
+
+    private final ArrayList<SimulatedDevice> devices =
+            new ArrayList<SimulatedDevice>();
+
+    /**
+     * The devices no poller uses, the least recently polled first. A poller
+     * takes one out while it uses it, so that no two pollers ever fetch the
+     * directives of the same device, and waits when all are in use.
+     */
+    private final BlockingQueue<SimulatedDevice> freeDevices =
+            new LinkedBlockingQueue<SimulatedDevice>();
+
+    private final LoadTestCommand options;
+
+    /** Set when the pollers and producers must stop */
+    private final AtomicBoolean stopping = new AtomicBoolean();
+
+    /**
+     * @param options
+     *            As parsed from the command line
+     * @throws IOException
+     *             If the URL of the Gateway is invalid
+     */
+    LoadTest(final LoadTestCommand options) throws IOException {
+        this.options = options;
+        this.apiUrl =
+                new URL(options.gatewayUrl + "/api/0/"
+                    + Config.SERVER_RPC_PROTOBUFF_SUFFIX);
+        for (final Operation operation : Operation.values())
+            this.allStats.put(operation, new OperationStats());
+    }
+
+    /**
+     * Sends a request to the Gateway and records its outcome
+     * 
+     * @param stats
+     *            Where to record the outcome
+     * @return The response, or null if the request failed
+     */
+    private GatewayResponseData call(final OperationStats stats,
+            final String sessionCookie, final GatewayRequestData request) {
+        final long start = System.nanoTime();
+        try {
+            final HttpURLConnection connection =
+                    (HttpURLConnection) this.apiUrl.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Cookie", sessionCookie);
+            connection.setRequestProperty("Content-Type",
+                    "application/octet-stream");
+            final byte[] body = request.toByteArray();
+            connection.setFixedLengthStreamingMode(body.length);
+            final OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            }
+            finally {
+                out.close();
+            }
+            final int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_OK)
+                return GatewayResponseData.parseFrom(readFully(connection
+                        .getInputStream()));
+            final InputStream errorStream = connection.getErrorStream();
+            final String error =
+                    errorStream == null ? "" : new String(
+                            readFully(errorStream), "UTF-8");
+            if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                stats.unavailable.incrementAndGet();
+                if (error.contains("TooManyConcurrentAccesses"))
+                    stats.tooManyConcurrentAccesses.incrementAndGet();
+            }
+            else
+                stats.httpErrors.incrementAndGet();
+            return null;
+        }
+        catch (final IOException e) {
+            stats.ioErrors.incrementAndGet();
+            return null;
+        }
+        finally {
+            stats.latencies.record(TimeUnit.NANOSECONDS.toMicros(System
+                    .nanoTime() - start));
+        }
+    }
+
+    /**
+     * Logs in the development server
+     * 
+     * @param email
+     *            Any e-mail address
+     * @return The value of the Cookie header for this user
+     * @throws IOException
+     *             If the development server could not be reached
+     */
+    private String devServerLogin(final String email) throws IOException {
+        final URL loginUrl =
+                new URL(this.options.gatewayUrl
+                    + "/_ah/login?action=Login&continue=%2F&email="
+                    + URLEncoder.encode(email, "UTF-8"));
+        final HttpURLConnection connection =
+                (HttpURLConnection) loginUrl.openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.connect();
+        final Map<String, List<String>> headers =
+                connection.getHeaderFields();
+        connection.disconnect();
+        for (final Map.Entry<String, List<String>> header : headers
+                .entrySet())
+            if ("Set-Cookie".equalsIgnoreCase(header.getKey()))
+                for (final String cookie : header.getValue())
+                    if (cookie.startsWith(DEV_LOGIN_COOKIE + "="))
+                        return cookie.split(";", 2)[0];
+        throw new IOException("No " + DEV_LOGIN_COOKIE + " cookie from "
+            + loginUrl + ", is it a development server ?");
+    }
+
+    /**
+     * @return A request fetching the directives of the device, and
+     *         acknowledging those already received
+     */
+    private GatewayRequestData makeGetRequest(final SimulatedDevice device) {
+        final GetDeviceDirectivesData.Builder get =
+                GetDeviceDirectivesData.newBuilder();
+        get.setDeviceId(device.id.value);
+        synchronized (device) {
+            if (device.cursor != null)
+                get.setCursor(device.cursor);
+            for (final Map.Entry<Long, Integer> entry : device.latestTimestamps
+                    .entrySet())
+                get.addAcknowledgements(DirectiveIdData.newBuilder()
+                        .setCreatorId(entry.getKey())
+                        .setTimestamp(entry.getValue()));
+        }
+        return GatewayRequestData.newBuilder().addGetDeviceDirectives(get)
+                .build();
+    }
+
+    /**
+     * @return A request registering the device, with a new C2DM registration
+     *         id
+     */
+    private GatewayRequestData makeRegisterRequest(
+            final SimulatedDevice device, final Random random) {
+        return GatewayRequestData
+                .newBuilder()
+                .addRegisterDevice(
+                        RegisterDeviceData
+                                .newBuilder()
+                                .setDeviceId(device.id.value)
+                                .setFriendlyName("Simulated device")
+                                .setC2DMRegistrationId(
+                                        "simulated-" + random.nextLong()))
+                .build();
+    }
+
+    /**
+     * Fetches the directives of the {@link #freeDevices} until
+     * {@link #stopping} is set
+     */
+    private void poll(final long seed) {
+        final Random random = new Random(seed);
+        while (!this.stopping.get()) {
+            final SimulatedDevice device;
+            try {
+                device =
+                        this.freeDevices.poll(POLL_WAIT_MILLIS,
+                                TimeUnit.MILLISECONDS);
+            }
+            catch (final InterruptedException e) {
+                return;
+            }
+            if (device == null)
+                continue;
+            try {
+                if (random.nextInt(100) < this.options.reregisterPercent)
+                    call(this.allStats.get(Operation.REGISTER_DEVICE),
+                            device.sessionCookie,
+                            makeRegisterRequest(device, random));
+                final GatewayResponseData response =
+                        call(this.allStats.get(Operation.GET_DIRECTIVES),
+                                device.sessionCookie, makeGetRequest(device));
+                if (response != null)
+                    recordReceived(device, response);
+            }
+            finally {
+                this.freeDevices.add(device);
+            }
+        }
+    }
+
+    /**
+     * Queues directives for random devices until {@link #stopping} is set,
+     * acting as a single creator
+     */
+    private void produce(final long seed) {
+        final Random random = new Random(seed);
+        final long creatorId = random.nextLong();
+        int timestamp = 0;
+        while (!this.stopping.get()) {
+            final SimulatedDevice device =
+                    this.devices.get(random.nextInt(this.devices.size()));
+            timestamp++;
+            final DirectiveData directive =
+                    DirectiveData
+                            .newBuilder()
+                            .setId(DirectiveIdData.newBuilder()
+                                    .setCreatorId(creatorId)
+                                    .setTimestamp(timestamp))
+                            .addStatusbarNotification(
+                                    StatusBarNotificationData.newBuilder()
+                                            .setTitle("Load test")
+                                            .setText("Directive " + timestamp))
+                            .build();
+            call(this.allStats.get(Operation.QUEUE_DIRECTIVE),
+                    device.sessionCookie,
+                    GatewayRequestData
+                            .newBuilder()
+                            .addQueueDirective(
+                                    QueueDirectiveData.newBuilder()
+                                            .setDeviceId(device.id.value)
+                                            .setDirective(directive)).build());
+        }
+    }
+
+    /**
+     * Remembers what has to be acknowledged by the next request of the device
+     */
+    private void recordReceived(final SimulatedDevice device,
+            final GatewayResponseData response) {
+        synchronized (device) {
+            for (final Long creatorId : response.getCreatorIdsToForgetList())
+                device.latestTimestamps.remove(creatorId);
+            for (final DirectiveData directive : response.getDirectiveList()) {
+                if (!directive.hasId())
+                    continue;
+                final Integer latest =
+                        device.latestTimestamps.get(directive.getId()
+                                .getCreatorId());
+                if (latest == null
+                    || latest < directive.getId().getTimestamp())
+                    device.latestTimestamps.put(directive.getId()
+                            .getCreatorId(), directive.getId().getTimestamp());
+            }
+            device.cursor = null;
+            for (final DirectivesCursorData cursor : response
+                    .getDirectivesCursorList())
+                if (cursor.getDeviceId().equals(device.id.value))
+                    device.cursor = cursor.getCursor();
+        }
+    }
+
+    /**
+     * Logs the users in, registers the devices, then runs the pollers and
+     * the producers for the requested duration and prints the report
+     * 
+     * @param out
+     *            Where to print the progress and the report
+     * @throws IOException
+     *             If the users could not be logged in
+     * @throws InterruptedException
+     *             If interrupted while waiting for the simulation
+     */
+    void run(final PrintStream out) throws IOException, InterruptedException {
+        final Random random = new Random(this.options.seed);
+        final String[] sessions = new String[this.options.users];
+        for (int n = 0; n < sessions.length; n++)
+            sessions[n] = devServerLogin("loadtest" + n + "@example.com");
+        for (int n = 0; n < this.options.devices; n++) {
+            final DeviceIdBuilderData idProto =
+                    DeviceIdBuilderData.newBuilder().setAndroidId(
+                            random.nextLong()).build();
+            this.devices.add(new SimulatedDevice(DeviceIdBuilder
+                    .fromProtocolBufferToDeviceId(idProto), sessions[n
+                % sessions.length]));
+        }
+        out.println("Registering " + this.devices.size() + " devices of "
+            + sessions.length + " users...");
+        final OperationStats registrationStats = new OperationStats();
+        final long registrationStart = System.nanoTime();
+        for (final SimulatedDevice device : this.devices)
+            call(registrationStats, device.sessionCookie,
+                    makeRegisterRequest(device, random));
+        registrationStats.report("INITIAL_REGISTER",
+                (System.nanoTime() - registrationStart) / 1e9, out);
+        final ArrayList<SimulatedDevice> shuffled =
+                new ArrayList<SimulatedDevice>(this.devices);
+        Collections.shuffle(shuffled, random);
+        this.freeDevices.addAll(shuffled);
+
+        out.println("Running " + this.options.pollers + " pollers and "
+            + this.options.producers + " producers for "
+            + this.options.durationSeconds + " seconds...");
+        final ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int n = 0; n < this.options.pollers; n++) {
+            final long seed = random.nextLong();
+            threads.add(new Thread("Poller " + n) {
+                @Override
+                public void run() {
+                    poll(seed);
+                }
+            });
+        }
+        for (int n = 0; n < this.options.producers; n++) {
+            final long seed = random.nextLong();
+            threads.add(new Thread("Producer " + n) {
+                @Override
+                public void run() {
+                    produce(seed);
+                }
+            });
+        }
+        final long start = System.nanoTime();
+        for (final Thread thread : threads)
+            thread.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.options.durationSeconds));
+        this.stopping.set(true);
+        for (final Thread thread : threads)
+            thread.join(JOIN_TIMEOUT_MILLIS);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        long total = 0;
+        for (final Operation operation : Operation.values()) {
+            final OperationStats stats = this.allStats.get(operation);
+            stats.report(operation.name(), seconds, out);
+            total += stats.latencies.getCount();
+        }
+        out.printf("%-16s %8d req %9.1f req/s%n", "TOTAL", total, total
+            / seconds);
+    }
+}
@@ -16,6 +16,8 @@
  */
 package net.vleu.par.cli;
 
+import net.vleu.par.cli.Options.LoadTestCommand;
+
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
 
@@ -75,6 +77,16 @@ public class Main {
             System.err.println(e.getMessage());
             return false;
         }
+        /* The load test logs in the development server by itself */
+        final String command = this.jCommander.getParsedCommand();
+        if (!this.options.help && !LoadTestCommand.NAME.equals(command)
+            && (this.options.googleUserName == null
+                || this.options.googlePassword == null)) {
+            System.err.println("The --user and --password options are "
+                + "required, except by the " + LoadTestCommand.NAME
+                + " command");
+            return false;
+        }
         return true;
     }
 
@@ -86,6 +98,14 @@ public class Main {
             showUsage();
             return;
         }
+        if (LoadTestCommand.NAME.equals(this.jCommander.getParsedCommand()))
+            try {
+                new LoadTest(this.options.loadTestCommand).run(System.out);
+            }
+            catch (final Exception e) {
+                System.err.println("Load test failed: " + e);
+                System.exit(1);
+            }
     }
 
     private void showUsage() {
@@ -106,6 +126,10 @@ public class Main {
         .println("    par @google_password.txt notification --text 'Hello'");
         System.err
         .println("    par @google_password.txt notification --text 'world !'");
+        System.err
+        .println("");
+        System.err
+        .println("    par loadtest --devices 5000 --producers 50");
     }
 
 }
@@ -23,6 +23,45 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 
 public final class Options {
+    @Parameters(
+            commandDescription = "Simulate devices and directive producers against a development server")
+    public static class LoadTestCommand {
+        public static final String NAME = "loadtest";
+
+        @Parameter(names = "--devices",
+                description = "How many devices to simulate")
+        public int devices = 1000;
+
+        @Parameter(names = "--duration",
+                description = "How long to measure, in seconds")
+        public int durationSeconds = 60;
+
+        @Parameter(names = "--gateway",
+                description = "Base URL of the development server")
+        public String gatewayUrl = "http://localhost:8888";
+
+        @Parameter(names = "--pollers",
+                description = "How many threads fetch directives for the devices")
+        public int pollers = 20;
+
+        @Parameter(names = "--producers",
+                description = "How many threads queue directives")
+        public int producers = 10;
+
+        @Parameter(
+                names = "--reregister-percent",
+                description = "Percentage of the fetches preceded by a new registration of the device")
+        public int reregisterPercent = 1;
+
+        @Parameter(names = "--seed",
+                description = "Seed of the simulation, for reproducible runs")
+        public long seed = 0;
+
+        @Parameter(names = "--users",
+                description = "How many users the devices are spread over")
+        public int users = 10;
+    }
+
     @Parameters(commandDescription = "Send a SMS")
     public static class SmsCommand {
         public static final String NAME = "sms";
@@ -47,20 +86,21 @@ public final class Options {
 
     public final static String PROGRAM_NAME = "par";
 
+    /** Required by every command but {@link LoadTestCommand} */
     @Parameter(
             names = { "--password" },
-            required = true,
             description = "Your Google password, be sure to read the note about security at the end")
     public String googlePassword;
 
-    @Parameter(names = { "--user" }, required = true,
-            description = "Your Google ID")
+    /** Required by every command but {@link LoadTestCommand} */
+    @Parameter(names = { "--user" }, description = "Your Google ID")
     public String googleUserName;
 
     @Parameter(names = { "--help", "-h" },
             description = "Show help and returns")
     public boolean help = false;
 
+    public final LoadTestCommand loadTestCommand = new LoadTestCommand();
     public final SmsCommand smsCommand = new SmsCommand();
     public final StatusBarNotificationCommand statusBarNotificationCommand =
             new StatusBarNotificationCommand();
@@ -73,6 +113,7 @@ public final class Options {
     public JCommander makeJcommander() {
         final JCommander jc = new JCommander(this);
         jc.setProgramName(PROGRAM_NAME);
+        jc.addCommand(LoadTestCommand.NAME, this.loadTestCommand);
         jc.addCommand(SmsCommand.NAME, this.smsCommand);
         jc.addCommand(StatusBarNotificationCommand.NAME,
                 this.statusBarNotificationCommand);